@@ -1,8 +1,5 @@
 package com.example.android.bluetoothlegatt;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-
 /**
  * Created by Adam Cattermole on 11/12/2016.
  */
@@ -10,12 +7,30 @@ public class Utility {
 
     private final static String[] directions = {"N", "NE", "E", "SE", "S", "SW", "W", "NW", "N"};
     private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
+
     public static short shortFromLittleEndianBytes(byte[] b) {
-        return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getShort();
+        return shortFromLittleEndianBytes(b, 0);
+    }
+
+    /**
+     * Reads a little-endian int16 starting at {@code offset} without copying or wrapping the array.
+     */
+    public static short shortFromLittleEndianBytes(byte[] b, int offset) {
+        return (short) ((b[offset] & 0xFF) | (b[offset + 1] << 8));
     }
 
     public static byte[] leBytesFromShort(short s) {
-        return ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN).putShort(s).array();
+        byte[] out = new byte[2];
+        leBytesFromShort(s, out, 0);
+        return out;
+    }
+
+    /**
+     * Writes {@code s} as a little-endian int16 into {@code out} starting at {@code offset}.
+     */
+    public static void leBytesFromShort(short s, byte[] out, int offset) {
+        out[offset] = (byte) s;
+        out[offset + 1] = (byte) (s >> 8);
     }
 
     public static String bytesToHexString(byte[] b) {
@@ -32,17 +47,30 @@ public class Utility {
         return b & 0xFF;
     }
 
+    /**
+     * Decodes the x, y, z little-endian int16 triplet sent by the accelerometer and magnetometer
+     * characteristics into {@code out[outOffset..outOffset+2]}, with no intermediate allocation.
+     */
+    public static void shortTripletFromLittleEndianBytes(byte[] b, short[] out, int outOffset) {
+        out[outOffset] = shortFromLittleEndianBytes(b, 0);
+        out[outOffset + 1] = shortFromLittleEndianBytes(b, 2);
+        out[outOffset + 2] = shortFromLittleEndianBytes(b, 4);
+    }
+
     public static float[] byteInputToFloat(byte[] b) {
-        byte[] x_bytes = new byte[2];
-        byte[] y_bytes = new byte[2];
-        byte[] z_bytes = new byte[2];
-        System.arraycopy(b, 0, x_bytes, 0, 2);
-        System.arraycopy(b, 2, y_bytes, 0, 2);
-        System.arraycopy(b, 4, z_bytes, 0, 2);
-        float[] out = new float[3];
-        out[0] = shortFromLittleEndianBytes(x_bytes) / 1000f;
-        out[1] = shortFromLittleEndianBytes(y_bytes) / 1000f;
-        out[2] = shortFromLittleEndianBytes(z_bytes) / 1000f;
+        return byteInputToFloat(b, new float[3]);
+    }
+
+    /**
+     * As {@link #byteInputToFloat(byte[])} but decodes into a caller owned array so it can be reused
+     * across notifications.
+     *
+     * @return {@code out}, for convenience.
+     */
+    public static float[] byteInputToFloat(byte[] b, float[] out) {
+        out[0] = shortFromLittleEndianBytes(b, 0) / 1000f;
+        out[1] = shortFromLittleEndianBytes(b, 2) / 1000f;
+        out[2] = shortFromLittleEndianBytes(b, 4) / 1000f;
         return out;
     }
 
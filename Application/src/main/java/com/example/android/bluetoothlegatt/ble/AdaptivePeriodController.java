@@ -0,0 +1,243 @@
+package com.example.android.bluetoothlegatt.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.Handler;
+import android.util.Log;
+import com.example.android.bluetoothlegatt.Utility;
+import com.example.android.bluetoothlegatt.data.LatencyHistogram;
+import com.example.android.bluetoothlegatt.mqtt.MqttConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Slows the micro:bit's sensors down while the outbound link cannot keep up, and speeds them back up
+ * once it recovers.
+ *
+ * Every {@link #CONTROL_INTERVAL_MS} the depth of the outbound queue and the mean delivery latency
+ * over the interval are compared with high and low thresholds. After
+ * {@link #BACKOFF_INTERVALS} consecutive congested intervals each period characteristic is moved one
+ * step longer on its ladder of allowed periods, and after {@link #RECOVER_INTERVALS} consecutive
+ * clear intervals one step shorter, never beyond the baseline period the device was set up with,
+ * kept in its {@link GattLayout} across reconnects. Intervals between the thresholds reset both
+ * counts, so the rate does not oscillate around a threshold.
+ *
+ * Each ladder is limited to the supported periods within the bounds set for the sensor in
+ * {@link MqttConfig}; a period outside them is taken as the nearest step inside.
+ */
+public class AdaptivePeriodController {
+    private final static String TAG = AdaptivePeriodController.class.getSimpleName();
+
+    public static final long CONTROL_INTERVAL_MS = 2000;
+    public static final int BACKOFF_INTERVALS = 2;
+    public static final int RECOVER_INTERVALS = 5;
+
+    public static final long HIGH_QUEUED_BYTES = 16 * 1024;
+    public static final long LOW_QUEUED_BYTES = 2 * 1024;
+    public static final long HIGH_LATENCY_MS = 2000;
+    public static final long LOW_LATENCY_MS = 500;
+
+    // Periods in ms which the micro:bit supports, shortest first. The accelerometer and magnetometer
+    // round other values to the nearest supported one. Limited to MqttConfig's bounds.
+    private static final int[] ACCELEROMETER_PERIODS = {20, 80, 160, 640};
+    private static final int[] MAGNETOMETER_PERIODS = {20, 80, 160, 640};
+    private static final int[] TEMPERATURE_PERIODS = {1000, 2000, 5000, 10000, 30000, 60000};
+
+    /**
+     * The outbound path being protected.
+     */
+    public interface Load {
+        /**
+         * @return Bytes waiting to be delivered.
+         */
+        long getQueuedBytes();
+
+        /**
+         * @return Histogram of publish to delivery latency, or null if not measured.
+         */
+        LatencyHistogram getDeliveryLatency();
+    }
+
+    private static class Period {
+        final UUID uuid;
+        final String name;
+        final int[] ladder;
+        // Fastest step allowed, where the period started, and the current step. -1 until known.
+        int minStep = -1;
+        int step = -1;
+
+        Period(String uuid, int[] supported, int minMs, int maxMs) {
+            this.uuid = UUID.fromString(uuid);
+            this.name = GattAttributes.lookup(uuid, uuid);
+            this.ladder = clamp(supported, minMs, maxMs);
+            if (ladder.length == 0) {
+                throw new IllegalArgumentException("No supported " + name + " between " + minMs
+                        + " and " + maxMs + " ms");
+            }
+        }
+    }
+
+    private final BluetoothLeService mService;
+    private final String mAddress;
+    private final Load mLoad;
+    private final Handler mHandler;
+    private final List<Period> mPeriods = new ArrayList<>();
+    private int mCongestedIntervals = 0;
+    private int mClearIntervals = 0;
+    private long mLastLatencyCount = 0;
+    private long mLastLatencyTotal = 0;
+    private long mChanges = 0;
+    private boolean mRunning = false;
+
+    AdaptivePeriodController(BluetoothLeService service, String address, Load load, Handler handler) {
+        mService = service;
+        mAddress = address;
+        mLoad = load;
+        mHandler = handler;
+        mPeriods.add(new Period(GattAttributes.ACCELEROMETER_PERIOD, ACCELEROMETER_PERIODS,
+                MqttConfig.ADAPTIVE_ACCELEROMETER_MIN_PERIOD_MS, MqttConfig.ADAPTIVE_ACCELEROMETER_MAX_PERIOD_MS));
+        mPeriods.add(new Period(GattAttributes.MAGNETOMETER_PERIOD, MAGNETOMETER_PERIODS,
+                MqttConfig.ADAPTIVE_MAGNETOMETER_MIN_PERIOD_MS, MqttConfig.ADAPTIVE_MAGNETOMETER_MAX_PERIOD_MS));
+        mPeriods.add(new Period(GattAttributes.TEMPERATURE_PERIOD, TEMPERATURE_PERIODS,
+                MqttConfig.ADAPTIVE_TEMPERATURE_MIN_PERIOD_MS, MqttConfig.ADAPTIVE_TEMPERATURE_MAX_PERIOD_MS));
+    }
+
+    private final Runnable mControl = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+            mHandler.postDelayed(this, CONTROL_INTERVAL_MS);
+        }
+    };
+
+    void start() {
+        if (!mRunning) {
+            mRunning = true;
+            mHandler.postDelayed(mControl, CONTROL_INTERVAL_MS);
+        }
+    }
+
+    void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks(mControl);
+    }
+
+    private void evaluate() {
+        GattSession session = mService.getSession(mAddress);
+        if (session == null || session.getState() != GattSession.STATE_READY) {
+            return;
+        }
+        // Start each period from the value last read from the device, never going faster than the
+        // baseline it was set up with. The device keeps a backed off period across a reconnect, so
+        // taking the floor from the current value would leave it slowed for good.
+        GattLayout layout = session.getLayout();
+        for (Period period : mPeriods) {
+            if (period.step < 0) {
+                Integer current = layout.getPeriods().get(period.uuid);
+                if (current != null && current > 0) {
+                    period.step = nearestStep(period.ladder, current);
+                    Integer baseline = layout.getBaselinePeriods().get(period.uuid);
+                    period.minStep = baseline != null && baseline > 0
+                            ? Math.min(period.step, nearestStep(period.ladder, baseline)) : period.step;
+                }
+            }
+        }
+
+        long queued = mLoad.getQueuedBytes();
+        long latencyMs = intervalLatencyMs();
+        boolean congested = queued > HIGH_QUEUED_BYTES || latencyMs > HIGH_LATENCY_MS;
+        boolean clear = queued < LOW_QUEUED_BYTES && latencyMs < LOW_LATENCY_MS;
+        if (congested) {
+            mClearIntervals = 0;
+            if (++mCongestedIntervals >= BACKOFF_INTERVALS) {
+                mCongestedIntervals = 0;
+                step(session, 1, queued, latencyMs);
+            }
+        } else if (clear) {
+            mCongestedIntervals = 0;
+            if (++mClearIntervals >= RECOVER_INTERVALS) {
+                mClearIntervals = 0;
+                step(session, -1, queued, latencyMs);
+            }
+        } else {
+            mCongestedIntervals = 0;
+            mClearIntervals = 0;
+        }
+    }
+
+    // Mean delivery latency since the last evaluation, 0 if nothing was delivered
+    private long intervalLatencyMs() {
+        LatencyHistogram latency = mLoad.getDeliveryLatency();
+        if (latency == null) {
+            return 0;
+        }
+        long count = latency.getCount();
+        long total = latency.getTotalNanos();
+        long delivered = count - mLastLatencyCount;
+        long mean = delivered > 0 ? (total - mLastLatencyTotal) / delivered / 1000000L : 0;
+        mLastLatencyCount = count;
+        mLastLatencyTotal = total;
+        return mean;
+    }
+
+    private void step(GattSession session, int direction, long queued, long latencyMs) {
+        for (Period period : mPeriods) {
+            if (period.step < 0) {
+                continue;
+            }
+            int next = Math.max(period.minStep, Math.min(period.ladder.length - 1, period.step + direction));
+            if (next == period.step) {
+                continue;
+            }
+            BluetoothGattCharacteristic characteristic = session.getLayout().getCharacteristic(period.uuid);
+            if (characteristic == null) {
+                continue;
+            }
+            Log.i(TAG, String.format(Locale.UK, "%s: %s %d ms -> %d ms (queued=%d bytes, latency=%d ms)",
+                    mAddress, period.name, period.ladder[period.step], period.ladder[next], queued, latencyMs));
+            period.step = next;
+            mChanges++;
+            session.write(characteristic, Utility.leBytesFromShort((short) period.ladder[next]));
+            // Read back so the session's record of the period is updated
+            session.read(characteristic);
+        }
+    }
+
+    // The supported periods from minMs to maxMs inclusive
+    private static int[] clamp(int[] supported, int minMs, int maxMs) {
+        int from = 0;
+        while (from < supported.length && supported[from] < minMs) {
+            from++;
+        }
+        int to = supported.length;
+        while (to > from && supported[to - 1] > maxMs) {
+            to--;
+        }
+        return Arrays.copyOfRange(supported, from, to);
+    }
+
+    private static int nearestStep(int[] ladder, int periodMs) {
+        int index = Arrays.binarySearch(ladder, periodMs);
+        if (index >= 0) {
+            return index;
+        }
+        int insertion = -index - 1;
+        if (insertion == 0) {
+            return 0;
+        }
+        if (insertion == ladder.length) {
+            return ladder.length - 1;
+        }
+        return periodMs - ladder[insertion - 1] <= ladder[insertion] - periodMs ? insertion - 1 : insertion;
+    }
+
+    /**
+     * @return Number of period changes made.
+     */
+    public long getChangeCount() {
+        return mChanges;
+    }
+}
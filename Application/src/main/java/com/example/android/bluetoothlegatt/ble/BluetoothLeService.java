@@ -20,6 +20,8 @@
 
 package com.example.android.bluetoothlegatt.ble;
 
+import android.app.Notification;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.*;
 import android.content.Context;
@@ -27,30 +29,60 @@ import android.content.Intent;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.SystemClock;
 import android.util.Log;
+import com.example.android.bluetoothlegatt.R;
 import com.example.android.bluetoothlegatt.Utility;
-
+import com.example.android.bluetoothlegatt.data.LatencyHistogram;
+import com.example.android.bluetoothlegatt.data.PipelineLatency;
+import com.example.android.bluetoothlegatt.data.SampleHandler;
+import com.example.android.bluetoothlegatt.data.SampleRingBuffer;
+import com.example.android.bluetoothlegatt.mqtt.MqttPipeline;
+import com.example.android.bluetoothlegatt.ui.DeviceScanActivity;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connections and data communication with the GATT servers hosted on one or
+ * more Bluetooth LE devices. Each device has its own {@link GattSession}, and samples from all of
+ * them, and from any other {@link SensorSource} added, are tagged with their device address and
+ * fanned in to a single {@link SampleRingBuffer}.
+ *
+ * The service also owns the {@link MqttPipeline} which publishes those samples, and subscribes to
+ * each device's sensors as soon as its services are discovered, so data keeps flowing to the broker
+ * whether or not an Activity is bound. It is started as well as bound, and runs in the foreground
+ * while a device or the broker is connected.
  */
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    // Decoded samples are handed from the GATT callback threads to the consumers registered through
+    // the LocalBinder, rather than being broadcast.
+    private static final int SAMPLE_BUFFER_CAPACITY = 256;
+    private final SampleRingBuffer mSamples = new SampleRingBuffer(SAMPLE_BUFFER_CAPACITY);
+    private GattDispatchTable mDispatchTable;
+    // Raw values from every source, the GATT sessions and any simulated boards, are decoded into
+    // the ring buffer on the source's thread
+    private SampleDecoder mSampleDecoder;
+    private final CopyOnWriteArrayList<SensorSource> mSources = new CopyOnWriteArrayList<>();
+
+    // Per stage latency of every sample and the rates achieved by polls, logged periodically while
+    // the service is running
+    private static final long STATS_REPORT_INTERVAL_MS = 30000;
+    private final PipelineLatency mLatency = new PipelineLatency();
+    private PollingScheduler mPollingScheduler;
+    // Adaptive sensor period control, by device address. Only touched on the main thread.
+    private final HashMap<String, AdaptivePeriodController> mPeriodControllers = new HashMap<>();
+
+    private final Handler mHandler = new Handler();
+    private GattSessionManager mSessionManager;
 
     public final static String ACTION_GATT_CONNECTED =
             "com.example.bluetooth.le.ACTION_GATT_CONNECTED";
@@ -58,166 +90,221 @@ public class BluetoothLeService extends Service {
             "com.example.bluetooth.le.ACTION_GATT_DISCONNECTED";
     public final static String ACTION_GATT_SERVICES_DISCOVERED =
             "com.example.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE =
-            "com.example.bluetooth.le.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA =
-            "com.example.bluetooth.le.EXTRA_DATA";
-
-    public final static String ACCELEROMETER_MEASUREMENT =
-            "com.example.bluetooth.le.ACCELEROMETER_MEASUREMENT";
-    public final static String ACCELEROMETER_PERIOD =
-            "com.example.bluetooth.le.ACCELEROMETER_PERIOD";
-    public final static String TEMPERATURE_MEASUREMENT =
-            "com.example.bluetooth.le.TEMPERATURE_MEASUREMENT";
-    public final static String TEMPERATURE_PERIOD =
-            "com.example.bluetooth.le.TEMPERATURE_PERIOD";
-    public final static String BUTTON_A_MEASUREMENT =
-            "com.example.bluetooth.le.BUTTON_A_MEASUREMENT";
-    public final static String BUTTON_B_MEASUREMENT =
-            "com.example.bluetooth.le.BUTTON_B_MEASUREMENT";
-    public final static String MAGNETOMETER_MEASUREMENT =
-            "com.example.bluetooth.le.MAGNETOMETER_MEASUREMENT";
-    public final static String MAGNETOMETER_PERIOD =
-            "com.example.bluetooth.le.MAGNETOMETER_PERIOD";
-    public final static String MAGNETOMETER_BEARING =
-            "com.example.bluetooth.le.MAGNETOMETER_BEARING";
-
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    public final static String ACTION_DEVICE_READY =
+            "com.example.bluetooth.le.ACTION_DEVICE_READY";
+    public final static String ACTION_MQTT_CONNECTED =
+            "com.example.bluetooth.le.ACTION_MQTT_CONNECTED";
+    public final static String ACTION_MQTT_DISCONNECTED =
+            "com.example.bluetooth.le.ACTION_MQTT_DISCONNECTED";
+    public final static String EXTRA_ADDRESS =
+            "com.example.bluetooth.le.EXTRA_ADDRESS";
+
+    // Accelerometer period requested when a device is set up
+    public static final short ACCELEROMETER_PERIOD_MS = 80;
+    private static final int NOTIFICATION_ID = 1;
+
+    private MqttPipeline mMqttPipeline;
+    private SampleRingBuffer.Consumer mPipelineConsumer;
+    private boolean mForeground = false;
+
+    // Receives connection events and data from every session
+    private final GattSession.Callbacks mSessionCallbacks = new GattSession.Callbacks() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection. Delayed by 2 sec due to caching bug
-                // https://devzone.nordicsemi.com/question/22751/nrftoobox-on-android-not-recognizing-changes-in-application-type-running-on-nordic-pcb/
-                SystemClock.sleep(2000);
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
+        public void onSessionStateChanged(final GattSession session, final String action) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (ACTION_GATT_CONNECTED.equals(action)) {
+                        mMqttPipeline.onDeviceConnected(session.getAddress());
+                    } else if (ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
+                        subscribeToSensors(session);
+                    } else if (ACTION_GATT_DISCONNECTED.equals(action)) {
+                        stopAdaptivePeriods(session.getAddress());
+                        mMqttPipeline.onDeviceDisconnected(session.getAddress());
+                    }
+                    updateForeground();
+                }
+            });
+            broadcastUpdate(action, session.getAddress());
         }
+    };
 
+    private void broadcastUpdate(final String action, final String address) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
+        sendBroadcast(intent);
+    }
+
+    private final MqttPipeline.Listener mPipelineListener = new MqttPipeline.Listener() {
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
-            }
+        public void onConnectionStateChanged(boolean connected) {
+            sendBroadcast(new Intent(connected ? ACTION_MQTT_CONNECTED : ACTION_MQTT_DISCONNECTED));
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    updateForeground();
+                }
+            });
         }
+    };
 
+    // Lets the sensor periods follow how well the broker link keeps up
+    private final AdaptivePeriodController.Load mOutboundLoad = new AdaptivePeriodController.Load() {
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            }
+        public long getQueuedBytes() {
+            return mMqttPipeline.getQueuedBytes();
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public LatencyHistogram getDeliveryLatency() {
+            return mLatency.getStage(PipelineLatency.STAGE_DELIVERY);
         }
     };
 
-    private void broadcastUpdate(final String action) {
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    private static final UUID ACCELEROMETER_PERIOD_UUID = UUID.fromString(GattAttributes.ACCELEROMETER_PERIOD);
+    private static final UUID[] PERIOD_UUIDS = {ACCELEROMETER_PERIOD_UUID,
+            UUID.fromString(GattAttributes.TEMPERATURE_PERIOD), UUID.fromString(GattAttributes.MAGNETOMETER_PERIOD)};
+    private static final UUID[] MEASUREMENT_UUIDS = {UUID.fromString(GattAttributes.ACCELEROMETER_MEASUREMENT),
+            UUID.fromString(GattAttributes.TEMPERATURE_MEASUREMENT), UUID.fromString(GattAttributes.BUTTON_A_MEASUREMENT),
+            UUID.fromString(GattAttributes.BUTTON_B_MEASUREMENT), UUID.fromString(GattAttributes.MAGNETOMETER_MEASUREMENT),
+            UUID.fromString(GattAttributes.MAGNETOMETER_BEARING)};
+
+    /**
+     * Sets the accelerometer period, reads back each period and enables notification of every
+     * sensor the device offers, then broadcasts {@link #ACTION_DEVICE_READY}. Runs on the main
+     * thread each time the device's services are discovered, so a reconnect resubscribes without
+     * the UI. If the device's layout is unchanged since the previous connection, it is resubscribed
+     * from its {@link GattLayout} instead.
+     */
+    private void subscribeToSensors(final GattSession session) {
+        GattLayout layout = session.getLayout();
+        if (layout.isCached()) {
+            resubscribe(session, layout);
+            return;
+        }
+        final String address = session.getAddress();
+        BluetoothGattCharacteristic accelerometerPeriod = layout.getCharacteristic(ACCELEROMETER_PERIOD_UUID);
+        if (accelerometerPeriod != null) {
+            Log.d(TAG, "Accelerometer period set to " + ACCELEROMETER_PERIOD_MS + " ms");
+            session.write(accelerometerPeriod, Utility.leBytesFromShort(ACCELEROMETER_PERIOD_MS));
+        }
+        // Periods are left at the device's default otherwise, AdaptivePeriodController lengthens
+        // them under load
+        for (UUID uuid : PERIOD_UUIDS) {
+            BluetoothGattCharacteristic characteristic = layout.getCharacteristic(uuid);
+            if (characteristic != null) {
+                session.read(characteristic);
+            }
+        }
+        for (UUID uuid : MEASUREMENT_UUIDS) {
+            BluetoothGattCharacteristic characteristic = layout.getCharacteristic(uuid);
+            if (characteristic != null) {
+                session.setNotification(characteristic, true);
+            } else {
+                Log.d(TAG, GattAttributes.lookup(uuid.toString(), uuid.toString()) + " not found");
+            }
+        }
+        // Each read and notification enable is issued as soon as the previous operation completes
+        session.runWhenIdle(new Runnable() {
+            @Override
+            public void run() {
+                startAdaptivePeriods(address, mOutboundLoad);
+                broadcastUpdate(ACTION_DEVICE_READY, address);
+            }
+        });
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        final Intent intent = new Intent(action);
-//        Log.d(TAG, "data received from: "+characteristic.getUuid());
-        if (UUID.fromString(GattAttributes.ACCELEROMETER_MEASUREMENT).equals(characteristic.getUuid())) {
-            intent.addCategory(ACCELEROMETER_MEASUREMENT);
-
-            // range is -1024 : +1024
-            // Starting with the LED display face up and level (perpendicular to gravity) and edge connector towards your body:
-            // A negative X value means tilting left, a positive X value means tilting right
-            // A negative Y value means tilting away from you, a positive Y value means tilting towards you
-            // A negative Z value means ?
-            float[] accel_out = Utility.byteInputToFloat(characteristic.getValue());
-            String value = String.format(Locale.UK, "(%.3f,%.3f,%.3f)", accel_out[0], accel_out[1], accel_out[2]);
-            Log.d(TAG, "Accelerometer data converted: "+value);
-            intent.putExtra(EXTRA_DATA, value);
-        } else if (UUID.fromString(GattAttributes.ACCELEROMETER_PERIOD).equals(characteristic.getUuid())) {
-            intent.addCategory(ACCELEROMETER_PERIOD);
-            short period = Utility.shortFromLittleEndianBytes(characteristic.getValue());
-            Log.d(TAG, "Accelerometer period: "+period);
-            intent.putExtra(EXTRA_DATA, period);
-        } else if (UUID.fromString(GattAttributes.TEMPERATURE_MEASUREMENT).equals(characteristic.getUuid())) {
-            intent.addCategory(TEMPERATURE_MEASUREMENT);
-            byte[] b = characteristic.getValue();
-            String value = Integer.toString(Utility.byteToInteger(b[0]));
-            Log.d(TAG, "Temp Measurement: "+value);
-            intent.putExtra(EXTRA_DATA, value);
-        } else if (UUID.fromString(GattAttributes.TEMPERATURE_PERIOD).equals(characteristic.getUuid())) {
-            intent.addCategory(TEMPERATURE_PERIOD);
-            short period = Utility.shortFromLittleEndianBytes(characteristic.getValue());
-            Log.d(TAG, "Temperature period: "+period);
-            intent.putExtra(EXTRA_DATA, period);
-        } else if (UUID.fromString(GattAttributes.BUTTON_A_MEASUREMENT).equals(characteristic.getUuid())) {
-            intent.addCategory(BUTTON_A_MEASUREMENT);
-            byte[] b = characteristic.getValue();
-            String value = Integer.toString(Utility.byteToInteger(b[0]));
-            Log.d(TAG, "Button A data: "+value);
-            intent.putExtra(EXTRA_DATA, value);
-        } else if (UUID.fromString(GattAttributes.BUTTON_B_MEASUREMENT).equals(characteristic.getUuid())) {
-            intent.addCategory(BUTTON_B_MEASUREMENT);
-            byte[] b = characteristic.getValue();
-            String value = Integer.toString(Utility.byteToInteger(b[0]));
-            Log.d(TAG, "Button B data: "+value);
-            intent.putExtra(EXTRA_DATA, value);
-        } else if (UUID.fromString(GattAttributes.MAGNETOMETER_MEASUREMENT).equals(characteristic.getUuid())) {
-            intent.addCategory(MAGNETOMETER_MEASUREMENT);
-            float[] magn_out = Utility.byteInputToFloat(characteristic.getValue());
-            String value = String.format(Locale.UK, "(%.3f,%.3f,%.3f)", magn_out[0], magn_out[1], magn_out[2]);
-            Log.d(TAG, "Magnetometer data converted: "+value);
-            intent.putExtra(EXTRA_DATA, value);
-        } else if (UUID.fromString(GattAttributes.MAGNETOMETER_PERIOD).equals(characteristic.getUuid())) {
-            intent.addCategory(MAGNETOMETER_PERIOD);
-            short period = Utility.shortFromLittleEndianBytes(characteristic.getValue());
-            Log.d(TAG, "Magnetometer period: "+period);
-            intent.putExtra(EXTRA_DATA, period);
-        } else if (UUID.fromString(GattAttributes.MAGNETOMETER_BEARING).equals(characteristic.getUuid())) {
-            intent.addCategory(MAGNETOMETER_BEARING);
-            byte[] bearing_bytes = new byte[2];
-            System.arraycopy(characteristic.getValue(), 0, bearing_bytes, 0, 2);
-            short bearing = Utility.shortFromLittleEndianBytes(bearing_bytes);
-            String out = String.format(Locale.UK, "%s - %d",Utility.compassBearing(bearing), bearing);
-            Log.d(TAG, "Magnetometer bearing: " + out);
-            intent.putExtra(EXTRA_DATA, out);
-        } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                for(byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" +
-                        stringBuilder.toString());
-                Log.d(TAG, "Received data: "+stringBuilder.toString());
+    /**
+     * Enables notification of the characteristics subscribed to on the previous connection, first
+     * so samples flow as soon as possible, then writes back the baseline of each period, undoing any
+     * back off from before the link dropped or a reset of the device. The baselines were read from
+     * the device before, so are not read back.
+     */
+    private void resubscribe(GattSession session, GattLayout layout) {
+        final String address = session.getAddress();
+        Log.d(TAG, "Resubscribing to " + layout);
+        for (UUID uuid : new ArrayList<>(layout.getSubscriptions())) {
+            BluetoothGattCharacteristic characteristic = layout.getCharacteristic(uuid);
+            if (characteristic != null) {
+                session.setNotification(characteristic, true);
             }
         }
-        sendBroadcast(intent);
+        for (UUID uuid : PERIOD_UUIDS) {
+            BluetoothGattCharacteristic characteristic = layout.getCharacteristic(uuid);
+            Integer periodMs = uuid.equals(ACCELEROMETER_PERIOD_UUID)
+                    ? Integer.valueOf(ACCELEROMETER_PERIOD_MS) : layout.getBaselinePeriods().get(uuid);
+            if (characteristic != null && periodMs != null) {
+                session.write(characteristic, Utility.leBytesFromShort(periodMs.shortValue()));
+            }
+        }
+        session.runWhenIdle(new Runnable() {
+            @Override
+            public void run() {
+                startAdaptivePeriods(address, mOutboundLoad);
+                broadcastUpdate(ACTION_DEVICE_READY, address);
+            }
+        });
+    }
+
+    /**
+     * Keeps the service in the foreground while any device or the broker is connected, and stops
+     * it once neither is so it only lives on while an Activity is bound.
+     */
+    private void updateForeground() {
+        boolean active = mMqttPipeline.isConnected();
+        for (GattSession session : mSessionManager.getSessions()) {
+            active |= session.getState() != GattSession.STATE_DISCONNECTED;
+        }
+        if (active && !mForeground) {
+            mForeground = true;
+            startForeground(NOTIFICATION_ID, buildNotification());
+        } else if (!active && mForeground) {
+            mForeground = false;
+            stopForeground(true);
+            stopSelf();
+        }
+    }
+
+    private Notification buildNotification() {
+        Intent intent = new Intent(this, DeviceScanActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        return new Notification.Builder(this)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(R.string.notification_streaming))
+                .setContentIntent(PendingIntent.getActivity(this, 0, intent, 0))
+                .setOngoing(true)
+                .build();
     }
 
     public class LocalBinder extends Binder {
         public BluetoothLeService getService() {
             return BluetoothLeService.this;
         }
+
+        /**
+         * Registers a handler to receive every decoded sample on its own consumer thread.
+         *
+         * @return The consumer, to be passed to {@link #removeSampleHandler} when finished.
+         */
+        public SampleRingBuffer.Consumer addSampleHandler(String name, SampleHandler handler) {
+            return mSamples.addConsumer(name, handler);
+        }
+
+        public void removeSampleHandler(SampleRingBuffer.Consumer consumer) {
+            mSamples.removeConsumer(consumer);
+        }
+
+        /**
+         * @return Latency histograms for the pipeline, into which consumers record their own stages.
+         */
+        public PipelineLatency getLatency() {
+            return mLatency;
+        }
+
+        public MqttPipeline getMqttPipeline() {
+            return mMqttPipeline;
+        }
     }
 
     @Override
@@ -226,16 +313,101 @@ public class BluetoothLeService extends Service {
     }
 
     @Override
-    public boolean onUnbind(Intent intent) {
-        // After using a given device, you should make sure that BluetoothGatt.close() is called
-        // such that resources are cleaned up properly.  In this particular example, close() is
-        // invoked when the UI is disconnected from the Service.
-        close();
-        return super.onUnbind(intent);
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Started so the connections outlive the Activity, they are closed in onDestroy
+        return START_STICKY;
     }
 
     private final IBinder mBinder = new LocalBinder();
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mDispatchTable = GattDispatchTable.forMicroBit();
+        mSessionManager = new GattSessionManager(this, mDispatchTable, mHandler, mSessionCallbacks);
+        mSampleDecoder = new SampleDecoder(mDispatchTable, mSamples, mLatency);
+        addSensorSource(mSessionManager);
+        mPollingScheduler = new PollingScheduler(new PollingScheduler.Reader() {
+            @Override
+            public void read(String address, BluetoothGattCharacteristic characteristic, Runnable completion) {
+                GattSession session = getSession(address);
+                if (session != null) {
+                    session.read(characteristic, completion);
+                }
+            }
+        });
+        mMqttPipeline = new MqttPipeline(this, mDispatchTable, mLatency, mPipelineListener);
+        mPipelineConsumer = mSamples.addConsumer(MqttPipeline.class.getSimpleName(), mMqttPipeline);
+        mHandler.postDelayed(mReportStats, STATS_REPORT_INTERVAL_MS);
+    }
+
+    private final Runnable mReportStats = new Runnable() {
+        @Override
+        public void run() {
+            dumpLatency();
+            mMqttPipeline.logStats();
+            if (mSampleDecoder.getUnroutedCount() > 0) {
+                Log.i(TAG, mSampleDecoder.getUnroutedCount() + " values received for unknown characteristics");
+            }
+            if (mSampleDecoder.getShortValueCount() > 0) {
+                Log.w(TAG, mSampleDecoder.getShortValueCount() + " values too short to decode");
+            }
+            String polls = mPollingScheduler.report();
+            if (!polls.isEmpty()) {
+                Log.i(TAG, "Polling:\n" + polls);
+            }
+            mHandler.postDelayed(this, STATS_REPORT_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * Starts decoding the source's values into the sample ring buffer alongside those of the
+     * connected devices, e.g. a {@link SimulatedMicroBit} to load the pipeline without a board.
+     */
+    public void addSensorSource(SensorSource source) {
+        if (mSources.addIfAbsent(source)) {
+            source.start(mSampleDecoder);
+        }
+    }
+
+    public void removeSensorSource(SensorSource source) {
+        if (mSources.remove(source)) {
+            source.stop();
+        }
+    }
+
+    /**
+     * Logs the latency percentiles of each stage recorded so far.
+     */
+    public void dumpLatency() {
+        String dump = mLatency.dump();
+        if (!dump.isEmpty()) {
+            Log.i(TAG, "Pipeline latency:\n" + dump);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mReportStats);
+        dumpLatency();
+        mPollingScheduler.shutdown();
+        for (AdaptivePeriodController controller : mPeriodControllers.values()) {
+            controller.stop();
+        }
+        mPeriodControllers.clear();
+        for (SensorSource source : mSources) {
+            removeSensorSource(source);
+        }
+        mSessionManager.closeAll();
+        mSamples.removeConsumer(mPipelineConsumer);
+        mMqttPipeline.close();
+        mSamples.close();
+        if (mForeground) {
+            stopForeground(true);
+        }
+    }
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -262,7 +434,8 @@ public class BluetoothLeService extends Service {
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device. Other devices which are already
+     * connected are unaffected.
      *
      * @param address The device address of the destination device.
      *
@@ -276,31 +449,22 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
+        return mSessionManager.obtain(address).connect(mBluetoothAdapter);
+    }
 
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                return false;
-            }
-        }
+    /**
+     * Connects to the broker. Samples are spooled in the outbox until then.
+     */
+    public void connectMqtt() {
+        mMqttPipeline.connect();
+    }
 
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
-        }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
-        return true;
+    public void disconnectMqtt() {
+        mMqttPipeline.disconnect();
+    }
+
+    public boolean isMqttConnected() {
+        return mMqttPipeline.isConnected();
     }
 
     /**
@@ -309,79 +473,132 @@ public class BluetoothLeService extends Service {
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    public void disconnect(final String address) {
+        GattSession session = getSession(address);
+        if (session == null) {
             return;
         }
-        mBluetoothGatt.disconnect();
+        session.disconnect();
     }
 
     /**
      * After using a given BLE device, the app must call this method to ensure resources are
      * released properly.
      */
-    public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+    public void close(final String address) {
+        stopAdaptivePeriods(address);
+        mPollingScheduler.cancelAll(address);
+        mSessionManager.close(address);
+    }
+
+    /**
+     * Closes the connections to every device.
+     */
+    public void closeAll() {
+        for (GattSession session : mSessionManager.getSessions()) {
+            stopAdaptivePeriods(session.getAddress());
+            mPollingScheduler.cancelAll(session.getAddress());
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        mSessionManager.closeAll();
     }
 
     /**
-     * Request a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
+     * Queues a read on a given {@code BluetoothGattCharacteristic}. The read result is reported
      * asynchronously through the {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
      * callback.
      *
+     * @param address The device the characteristic belongs to.
      * @param characteristic The characteristic to read from.
      */
-    public void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    public void readCharacteristic(String address, BluetoothGattCharacteristic characteristic) {
+        GattSession session = getSession(address);
+        if (session == null) {
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        session.read(characteristic);
     }
 
     /**
-     * Should write the bytes to a given {@code BluetoothGattCharacteristic}.
+     * Reads the characteristic every {@code periodMs} until {@link #stopPolling} is called or the
+     * device is closed. Ticks are skipped while a previous read is outstanding.
+     *
+     * @param address The device the characteristic belongs to.
+     * @param characteristic The characteristic to read from.
+     * @param periodMs Requested time between reads.
+     * @return The poll, from which the achieved rate can be read.
+     */
+    public PollingScheduler.Poll startPolling(String address, BluetoothGattCharacteristic characteristic, long periodMs) {
+        return mPollingScheduler.schedule(address, characteristic, periodMs);
+    }
+
+    public void stopPolling(String address, BluetoothGattCharacteristic characteristic) {
+        mPollingScheduler.cancel(address, characteristic.getUuid());
+    }
+
+    public PollingScheduler getPollingScheduler() {
+        return mPollingScheduler;
+    }
+
+    /**
+     * Starts adjusting the device's sensor periods to the given outbound load. Must be called on
+     * the main thread once the periods have been read from the device.
+     */
+    public AdaptivePeriodController startAdaptivePeriods(String address, AdaptivePeriodController.Load load) {
+        stopAdaptivePeriods(address);
+        AdaptivePeriodController controller = new AdaptivePeriodController(this, address, load, mHandler);
+        mPeriodControllers.put(address, controller);
+        controller.start();
+        return controller;
+    }
+
+    public void stopAdaptivePeriods(String address) {
+        AdaptivePeriodController controller = mPeriodControllers.remove(address);
+        if (controller != null) {
+            controller.stop();
+        }
+    }
+
+    /**
+     * Queues a write of the bytes to a given {@code BluetoothGattCharacteristic}.
+     * @param address The device the characteristic belongs to.
      * @param characteristic The characteristic to write to.
      * @param value The value to write to the characteristic
      */
-    public void writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    public void writeCharacteristic(String address, BluetoothGattCharacteristic characteristic, byte[] value) {
+        GattSession session = getSession(address);
+        if (session == null) {
             return;
         }
-        characteristic.setValue(value);
-        mBluetoothGatt.writeCharacteristic(characteristic);
+        session.write(characteristic, value);
     }
 
     /**
-     * Enables or disables notification on a give characteristic.
+     * Enables or disables notification on a give characteristic. The descriptor write is queued
+     * behind any outstanding operations.
      *
+     * @param address The device the characteristic belongs to.
      * @param characteristic Characteristic to act on.
      * @param enabled If true, enable notification.  False otherwise.
      */
-    public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
+    public void setCharacteristicNotification(String address, BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+        GattSession session = getSession(address);
+        if (session == null) {
             return;
         }
-        UUID serviceUUID = characteristic.getService().getUuid();
-        // This is specific to the microbit services
-        if (serviceUUID.equals(UUID.fromString(GattAttributes.ACCELEROMETER_SERVICE)) ||
-                serviceUUID.equals(UUID.fromString(GattAttributes.TEMPERATURE_SERVICE)) ||
-                serviceUUID.equals(UUID.fromString(GattAttributes.BUTTON_SERVICE)) ||
-                serviceUUID.equals(UUID.fromString(GattAttributes.MAGNETOMETER_SERVICE))) {
-            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
-                    UUID.fromString(GattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            mBluetoothGatt.writeDescriptor(descriptor);
+        session.setNotification(characteristic, enabled);
+    }
+
+    /**
+     * Runs {@code callback} on the main thread once all GATT operations queued so far for the device
+     * have completed.
+     */
+    public void runWhenOperationsComplete(String address, Runnable callback) {
+        GattSession session = getSession(address);
+        if (session == null) {
+            return;
         }
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
+        session.runWhenIdle(callback);
     }
 
     /**
@@ -390,13 +607,36 @@ public class BluetoothLeService extends Service {
      *
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null) return null;
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        GattSession session = mSessionManager.get(address);
+        if (session == null) return null;
+
+        return session.getServices();
+    }
+
+    /**
+     * @return The session for the device, or null if it has never been connected.
+     */
+    public GattSession getSession(String address) {
+        if (mBluetoothAdapter == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return null;
+        }
+        GattSession session = mSessionManager.get(address);
+        if (session == null) {
+            Log.w(TAG, "No session for device " + address);
+        }
+        return session;
+    }
 
-        return mBluetoothGatt.getServices();
+    public Collection<GattSession> getSessions() {
+        return mSessionManager.getSessions();
     }
 
-    public boolean discoverServices() {
-        return mBluetoothGatt.discoverServices();
+    /**
+     * @return The table mapping each {@code SensorSample} type to its characteristic and topic.
+     */
+    public GattDispatchTable getDispatchTable() {
+        return mDispatchTable;
     }
 }
@@ -0,0 +1,170 @@
+package com.example.android.bluetoothlegatt.ble;
+
+import com.example.android.bluetoothlegatt.Utility;
+import com.example.android.bluetoothlegatt.data.SensorSample;
+import com.example.android.bluetoothlegatt.mqtt.MqttConfig;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Lookup table from characteristic {@code UUID} to the route used to decode and forward its value.
+ * It is built once when the service starts so incoming notifications are dispatched with a single
+ * hash lookup instead of parsing and comparing every known UUID string.
+ */
+public class GattDispatchTable {
+
+    // x, y, z little-endian int16 triplet (accelerometer and magnetometer data)
+    public static final int DECODER_TRIPLET = 0;
+    // little-endian uint16 period in ms
+    public static final int DECODER_PERIOD = 1;
+    // single unsigned byte (temperature, button state)
+    public static final int DECODER_UINT8 = 2;
+    // little-endian int16 compass bearing in degrees
+    public static final int DECODER_BEARING = 3;
+
+    public static class Route {
+        public final UUID uuid;
+        public final String name;
+        public final int type;
+        public final String topic;
+        public final int decoder;
+        // Bytes the decoder reads, shorter values cannot be decoded
+        public final int length;
+
+        Route(UUID uuid, String name, int type, String topic, int decoder) {
+            this.uuid = uuid;
+            this.name = name;
+            this.type = type;
+            this.topic = topic;
+            this.decoder = decoder;
+            this.length = valueLength(decoder);
+        }
+    }
+
+    private final HashMap<UUID, Route> mRoutes = new HashMap<>();
+    private final Route[] mRoutesByType = new Route[SensorSample.TYPE_COUNT];
+    private final HashSet<UUID> mNotifyServices = new HashSet<>();
+    private final UUID mClientConfigUuid = UUID.fromString(GattAttributes.CLIENT_CHARACTERISTIC_CONFIG);
+
+    /**
+     * Registers the handler for a characteristic.
+     *
+     * @param uuid The characteristic UUID, as defined in {@code GattAttributes}.
+     * @param type The {@code SensorSample.TYPE_} the decoded value is delivered as.
+     * @param topic The MQTT topic the value is published to, or null if it is not published.
+     * @param decoder One of the {@code DECODER_} constants.
+     */
+    public void addRoute(String uuid, int type, String topic, int decoder) {
+        Route route = new Route(UUID.fromString(uuid), GattAttributes.lookup(uuid, uuid), type, topic, decoder);
+        mRoutes.put(route.uuid, route);
+        mRoutesByType[type] = route;
+    }
+
+    /**
+     * @return The route for the characteristic, or null if it is not one we know how to decode.
+     */
+    public Route lookup(UUID characteristicUuid) {
+        return mRoutes.get(characteristicUuid);
+    }
+
+    public Route lookup(int sampleType) {
+        return mRoutesByType[sampleType];
+    }
+
+    private static int valueLength(int decoder) {
+        switch (decoder) {
+            case DECODER_TRIPLET:
+                return 6;
+            case DECODER_PERIOD:
+            case DECODER_BEARING:
+                return 2;
+            case DECODER_UINT8:
+                return 1;
+            default:
+                throw new IllegalArgumentException("Unknown decoder " + decoder);
+        }
+    }
+
+    /**
+     * Decodes a characteristic value into {@code out} according to the route's decoder. The value
+     * must be at least {@link Route#length} bytes.
+     */
+    public static void decode(Route route, byte[] value, SensorSample out) {
+        out.type = route.type;
+        switch (route.decoder) {
+            case DECODER_TRIPLET:
+                out.x = Utility.shortFromLittleEndianBytes(value, 0);
+                out.y = Utility.shortFromLittleEndianBytes(value, 2);
+                out.z = Utility.shortFromLittleEndianBytes(value, 4);
+                break;
+            case DECODER_PERIOD:
+                out.value = Utility.shortFromLittleEndianBytes(value, 0) & 0xFFFF;
+                break;
+            case DECODER_UINT8:
+                out.value = Utility.byteToInteger(value[0]);
+                break;
+            case DECODER_BEARING:
+                out.value = Utility.shortFromLittleEndianBytes(value, 0);
+                break;
+        }
+    }
+
+    /**
+     * Marks a service whose characteristics require the client configuration descriptor to be
+     * written before notifications are delivered.
+     */
+    public void addNotifyService(String uuid) {
+        mNotifyServices.add(UUID.fromString(uuid));
+    }
+
+    public boolean isNotifyService(UUID serviceUuid) {
+        return mNotifyServices.contains(serviceUuid);
+    }
+
+    /**
+     * @return The micro:bit services we expect a connected device to expose.
+     */
+    public Set<UUID> getNotifyServices() {
+        return Collections.unmodifiableSet(mNotifyServices);
+    }
+
+    public UUID getClientConfigUuid() {
+        return mClientConfigUuid;
+    }
+
+    /**
+     * @return The routes of every micro:bit sensor characteristic, publishing each measurement to
+     *         its {@code MqttConfig} topic.
+     */
+    public static GattDispatchTable forMicroBit() {
+        GattDispatchTable table = new GattDispatchTable();
+        table.addRoute(GattAttributes.ACCELEROMETER_MEASUREMENT, SensorSample.TYPE_ACCELEROMETER,
+                MqttConfig.TOPIC_ACCELEROMETER, GattDispatchTable.DECODER_TRIPLET);
+        table.addRoute(GattAttributes.ACCELEROMETER_PERIOD, SensorSample.TYPE_ACCELEROMETER_PERIOD,
+                null, GattDispatchTable.DECODER_PERIOD);
+        table.addRoute(GattAttributes.TEMPERATURE_MEASUREMENT, SensorSample.TYPE_TEMPERATURE,
+                MqttConfig.TOPIC_TEMPERATURE, GattDispatchTable.DECODER_UINT8);
+        table.addRoute(GattAttributes.TEMPERATURE_PERIOD, SensorSample.TYPE_TEMPERATURE_PERIOD,
+                null, GattDispatchTable.DECODER_PERIOD);
+        table.addRoute(GattAttributes.BUTTON_A_MEASUREMENT, SensorSample.TYPE_BUTTON_A,
+                MqttConfig.TOPIC_BUTTON, GattDispatchTable.DECODER_UINT8);
+        table.addRoute(GattAttributes.BUTTON_B_MEASUREMENT, SensorSample.TYPE_BUTTON_B,
+                MqttConfig.TOPIC_BUTTON, GattDispatchTable.DECODER_UINT8);
+        table.addRoute(GattAttributes.MAGNETOMETER_MEASUREMENT, SensorSample.TYPE_MAGNETOMETER,
+                MqttConfig.TOPIC_MAGNETOMETER_DATA, GattDispatchTable.DECODER_TRIPLET);
+        table.addRoute(GattAttributes.MAGNETOMETER_PERIOD, SensorSample.TYPE_MAGNETOMETER_PERIOD,
+                null, GattDispatchTable.DECODER_PERIOD);
+        table.addRoute(GattAttributes.MAGNETOMETER_BEARING, SensorSample.TYPE_MAGNETOMETER_BEARING,
+                MqttConfig.TOPIC_MAGNETOMETER_BEARING, GattDispatchTable.DECODER_BEARING);
+        // This is specific to the microbit services
+        table.addNotifyService(GattAttributes.ACCELEROMETER_SERVICE);
+        table.addNotifyService(GattAttributes.TEMPERATURE_SERVICE);
+        table.addNotifyService(GattAttributes.BUTTON_SERVICE);
+        table.addNotifyService(GattAttributes.MAGNETOMETER_SERVICE);
+        return table;
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.android.bluetoothlegatt.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What is known of a device's GATT database from earlier connections: a fingerprint of its
+ * services and characteristics, an index from characteristic UUID to characteristic, the
+ * characteristics the device should be subscribed to, and the last known and baseline value of each
+ * period. The baseline is the first value known for a period, i.e. the one the device was set up
+ * with, and is not changed by later writes such as those of the {@link AdaptivePeriodController}.
+ * Layouts are kept per address by the {@link GattSessionManager}, so they outlive both the link and
+ * the session.
+ *
+ * Android hands out new characteristic objects on every service discovery, so the index is rebuilt
+ * each time, but in the same pass as the fingerprint is taken. If the fingerprint matches the
+ * previous connection's the device has not been reflashed, and the subscriptions and periods can
+ * be restored without reading anything back first. Otherwise they are forgotten.
+ */
+public class GattLayout {
+
+    private final String mAddress;
+    private final HashMap<UUID, BluetoothGattCharacteristic> mCharacteristics = new HashMap<>();
+    private final Set<UUID> mSubscriptions = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+    private final Map<UUID, Integer> mPeriods = new ConcurrentHashMap<>();
+    private final Map<UUID, Integer> mBaselinePeriods = new ConcurrentHashMap<>();
+    private boolean mIndexed = false;
+    private long mFingerprint;
+    // True if the latest discovery matched the layout of the connection before it
+    private boolean mCached = false;
+    private int mDiscoveries = 0;
+    private int mMatches = 0;
+
+    GattLayout(String address) {
+        mAddress = address;
+    }
+
+    /**
+     * Indexes the services found by a discovery and checks them against the previous discovery.
+     * Called on the GATT callback thread.
+     *
+     * @return True if the layout is unchanged, so the cached subscriptions and periods still apply.
+     */
+    synchronized boolean update(List<BluetoothGattService> services) {
+        mCharacteristics.clear();
+        long fingerprint = 17;
+        for (BluetoothGattService service : services) {
+            fingerprint = mix(fingerprint, service.getUuid(), service.getInstanceId());
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                fingerprint = mix(fingerprint, characteristic.getUuid(),
+                        characteristic.getInstanceId() ^ characteristic.getProperties() << 16);
+                // The first of a UUID wins, as with BluetoothGattService.getCharacteristic
+                if (!mCharacteristics.containsKey(characteristic.getUuid())) {
+                    mCharacteristics.put(characteristic.getUuid(), characteristic);
+                }
+            }
+        }
+        mDiscoveries++;
+        mCached = mIndexed && fingerprint == mFingerprint;
+        if (mCached) {
+            mMatches++;
+        } else {
+            mSubscriptions.clear();
+            mPeriods.clear();
+            mBaselinePeriods.clear();
+        }
+        mIndexed = true;
+        mFingerprint = fingerprint;
+        return mCached;
+    }
+
+    private static long mix(long hash, UUID uuid, int id) {
+        hash = hash * 31 + uuid.getMostSignificantBits();
+        hash = hash * 31 + uuid.getLeastSignificantBits();
+        return hash * 31 + id;
+    }
+
+    /**
+     * @return The characteristic from the latest discovery, or null if the device does not have it.
+     */
+    public synchronized BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        return mCharacteristics.get(uuid);
+    }
+
+    /**
+     * @return True if the latest discovery matched the previous connection's layout, and there are
+     *         subscriptions to restore.
+     */
+    public synchronized boolean isCached() {
+        return mCached && !mSubscriptions.isEmpty();
+    }
+
+    void setSubscribed(UUID characteristic, boolean subscribed) {
+        if (subscribed) {
+            mSubscriptions.add(characteristic);
+        } else {
+            mSubscriptions.remove(characteristic);
+        }
+    }
+
+    void setPeriod(UUID characteristic, int periodMs) {
+        mPeriods.put(characteristic, periodMs);
+        if (!mBaselinePeriods.containsKey(characteristic)) {
+            mBaselinePeriods.put(characteristic, periodMs);
+        }
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * @return The characteristics which should have notifications enabled, kept across connections.
+     */
+    public Set<UUID> getSubscriptions() {
+        return Collections.unmodifiableSet(mSubscriptions);
+    }
+
+    /**
+     * @return The last period read from or written to each period characteristic, in ms.
+     */
+    public Map<UUID, Integer> getPeriods() {
+        return Collections.unmodifiableMap(mPeriods);
+    }
+
+    /**
+     * @return The first period read from or written to each period characteristic since the layout
+     *         was discovered, in ms. Adapted periods never go faster than these.
+     */
+    public Map<UUID, Integer> getBaselinePeriods() {
+        return Collections.unmodifiableMap(mBaselinePeriods);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mAddress + ": characteristics=" + mCharacteristics.size() + " subscriptions="
+                + mSubscriptions.size() + " periods=" + mPeriods.size() + " discoveries=" + mDiscoveries
+                + " matched=" + mMatches;
+    }
+}
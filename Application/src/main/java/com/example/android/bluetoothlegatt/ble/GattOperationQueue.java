@@ -0,0 +1,221 @@
+package com.example.android.bluetoothlegatt.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Serialises GATT operations. Android only allows one outstanding read or write per connection, so
+ * operations are queued and the next one is issued as soon as the callback for the current one
+ * arrives. An operation which fails, or whose callback does not arrive within
+ * {@link #OPERATION_TIMEOUT_MS}, is retried up to {@link #MAX_ATTEMPTS} times and then skipped.
+ * A read may be given a completion callback, which is posted once the read has succeeded or been
+ * skipped, but not after an attempt which is retried.
+ */
+public class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    public static final long OPERATION_TIMEOUT_MS = 1000;
+    public static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MS = 50;
+
+    static final int OP_READ = 0;
+    static final int OP_WRITE = 1;
+    static final int OP_DESCRIPTOR_WRITE = 2;
+    private static final int OP_CALLBACK = 3;
+
+    private static class Operation {
+        final int type;
+        final BluetoothGattCharacteristic characteristic;
+        final BluetoothGattDescriptor descriptor;
+        final byte[] value;
+        final Runnable callback;
+        int attempts = 0;
+
+        Operation(int type, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor,
+                  byte[] value, Runnable callback) {
+            this.type = type;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+            this.callback = callback;
+        }
+    }
+
+    private final Handler mHandler;
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<>();
+    private BluetoothGatt mGatt;
+    private Operation mCurrent;
+    private int mRetries = 0;
+    private int mFailures = 0;
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (mCurrent != null) {
+                    retry("timed out");
+                }
+            }
+        }
+    };
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (GattOperationQueue.this) {
+                if (mCurrent != null) {
+                    execute(mCurrent);
+                }
+            }
+        }
+    };
+
+    /**
+     * @param handler Handler used for timeouts and retries, and to run the {@link #runWhenIdle} callbacks.
+     */
+    public GattOperationQueue(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Sets the connection operations are issued on. Any queued operations are discarded.
+     */
+    public synchronized void setGatt(BluetoothGatt gatt) {
+        clear();
+        mGatt = gatt;
+    }
+
+    public synchronized void read(BluetoothGattCharacteristic characteristic) {
+        read(characteristic, null);
+    }
+
+    /**
+     * @param completion Posted to the handler when the read succeeds or is skipped, may be null.
+     */
+    public synchronized void read(BluetoothGattCharacteristic characteristic, Runnable completion) {
+        enqueue(new Operation(OP_READ, characteristic, null, null, completion));
+    }
+
+    public synchronized void write(BluetoothGattCharacteristic characteristic, byte[] value) {
+        enqueue(new Operation(OP_WRITE, characteristic, null, value, null));
+    }
+
+    public synchronized void writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+        enqueue(new Operation(OP_DESCRIPTOR_WRITE, null, descriptor, value, null));
+    }
+
+    /**
+     * Posts {@code callback} to the handler once every operation queued before it has completed or
+     * been given up on.
+     */
+    public synchronized void runWhenIdle(Runnable callback) {
+        enqueue(new Operation(OP_CALLBACK, null, null, null, callback));
+    }
+
+    /**
+     * Called from the GATT callback for the operation type with its status.
+     */
+    public synchronized void onOperationComplete(int type, int status) {
+        if (mCurrent == null || mCurrent.type != type) {
+            return;
+        }
+        mHandler.removeCallbacks(mTimeout);
+        mHandler.removeCallbacks(mRetry);
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            retry("failed with status " + status);
+            return;
+        }
+        finish();
+    }
+
+    /**
+     * Discards every queued operation, e.g. when the connection is lost.
+     */
+    public synchronized void clear() {
+        mHandler.removeCallbacks(mTimeout);
+        mHandler.removeCallbacks(mRetry);
+        mPending.clear();
+        mCurrent = null;
+    }
+
+    public synchronized int size() {
+        return mPending.size() + (mCurrent == null ? 0 : 1);
+    }
+
+    public synchronized int getRetryCount() {
+        return mRetries;
+    }
+
+    public synchronized int getFailureCount() {
+        return mFailures;
+    }
+
+    private void enqueue(Operation operation) {
+        mPending.add(operation);
+        next();
+    }
+
+    private void next() {
+        while (mCurrent == null && !mPending.isEmpty()) {
+            Operation operation = mPending.poll();
+            if (operation.type == OP_CALLBACK) {
+                mHandler.post(operation.callback);
+            } else {
+                mCurrent = operation;
+                execute(operation);
+            }
+        }
+    }
+
+    private void execute(Operation operation) {
+        operation.attempts++;
+        boolean started = false;
+        if (mGatt != null) {
+            switch (operation.type) {
+                case OP_READ:
+                    started = mGatt.readCharacteristic(operation.characteristic);
+                    break;
+                case OP_WRITE:
+                    operation.characteristic.setValue(operation.value);
+                    started = mGatt.writeCharacteristic(operation.characteristic);
+                    break;
+                case OP_DESCRIPTOR_WRITE:
+                    operation.descriptor.setValue(operation.value);
+                    started = mGatt.writeDescriptor(operation.descriptor);
+                    break;
+            }
+        }
+        if (started) {
+            mHandler.postDelayed(mTimeout, OPERATION_TIMEOUT_MS);
+        } else {
+            retry("could not be started");
+        }
+    }
+
+    private void retry(String reason) {
+        mHandler.removeCallbacks(mTimeout);
+        if (mCurrent.attempts < MAX_ATTEMPTS) {
+            Log.w(TAG, "GATT operation " + mCurrent.type + " " + reason + ", retrying");
+            mRetries++;
+            mHandler.postDelayed(mRetry, RETRY_DELAY_MS);
+        } else {
+            Log.e(TAG, "GATT operation " + mCurrent.type + " " + reason + " after "
+                    + mCurrent.attempts + " attempts, skipping");
+            mFailures++;
+            finish();
+        }
+    }
+
+    private void finish() {
+        if (mCurrent.callback != null) {
+            mHandler.post(mCurrent.callback);
+        }
+        mCurrent = null;
+        next();
+    }
+}
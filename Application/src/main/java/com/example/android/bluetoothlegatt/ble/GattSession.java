@@ -0,0 +1,406 @@
+package com.example.android.bluetoothlegatt.ble;
+
+import android.bluetooth.*;
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+import com.example.android.bluetoothlegatt.Utility;
+import com.example.android.bluetoothlegatt.data.SensorSample;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The GATT connection to a single micro:bit: its connection state machine, operation queue,
+ * subscriptions and sample counters. The device's characteristics, intended subscriptions and
+ * periods are kept in its {@link GattLayout}. Sessions are owned by the {@link GattSessionManager}.
+ */
+public class GattSession {
+    private final static String TAG = GattSession.class.getSimpleName();
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    // Connected, services are being discovered
+    public static final int STATE_CONNECTED = 2;
+    // Services discovered, characteristics can be read, written and subscribed to
+    public static final int STATE_READY = 3;
+
+    // Service discovery is retried, after refreshing the device's cached services, when the
+    // micro:bit services are missing. The backoff doubles on each attempt.
+    private static final int MAX_DISCOVERY_ATTEMPTS = 4;
+    private static final long DISCOVERY_RETRY_DELAY_MS = 250;
+
+    interface Callbacks {
+        /**
+         * @param action One of the {@code BluetoothLeService.ACTION_GATT_} actions.
+         */
+        void onSessionStateChanged(GattSession session, String action);
+    }
+
+    private final String mAddress;
+    private final Context mContext;
+    private final GattDispatchTable mDispatchTable;
+    private final Handler mHandler;
+    private final Callbacks mCallbacks;
+    private final SensorSource.Listener mValues;
+    private final GattLayout mLayout;
+    // Reads and writes are issued one at a time as each completes
+    private final GattOperationQueue mOperationQueue;
+    private BluetoothGatt mGatt;
+    private volatile int mState = STATE_DISCONNECTED;
+
+    private int mDiscoveryAttempts = 0;
+    private long mConnectedNanos;
+    private long mDiscoveryTimeMs = -1;
+    // Time taken from service discovery to the first notification, for the current connection
+    private long mServicesDiscoveredNanos;
+    private volatile boolean mAwaitingFirstNotification = false;
+    private long mSetupTimeMs = -1;
+    private volatile boolean mLayoutCached = false;
+
+    // Characteristics with notifications enabled on the current connection
+    private final Set<UUID> mSubscriptions = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+
+    // Written only on the GATT callback thread
+    private final long[] mSampleCounts = new long[SensorSample.TYPE_COUNT];
+    private final long[] mReportedCounts = new long[SensorSample.TYPE_COUNT];
+    private long mLastReportNanos = System.nanoTime();
+
+    GattSession(String address, Context context, GattDispatchTable dispatchTable, Handler handler,
+                Callbacks callbacks, SensorSource.Listener values, GattLayout layout) {
+        mAddress = address;
+        mContext = context;
+        mDispatchTable = dispatchTable;
+        mHandler = handler;
+        mCallbacks = callbacks;
+        mValues = values;
+        mLayout = layout;
+        mOperationQueue = new GattOperationQueue(handler);
+    }
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                mState = STATE_CONNECTED;
+                mCallbacks.onSessionStateChanged(GattSession.this, BluetoothLeService.ACTION_GATT_CONNECTED);
+                Log.i(TAG, "Connected to GATT server " + mAddress);
+                // Attempts to discover services after successful connection. This is posted rather than
+                // run on the callback thread, and a stale service cache is handled in onServicesDiscovered
+                mConnectedNanos = System.nanoTime();
+                mDiscoveryAttempts = 0;
+                mDiscoveryTimeMs = -1;
+                mSetupTimeMs = -1;
+                mHandler.post(mDiscoverServices);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mState = STATE_DISCONNECTED;
+                mOperationQueue.clear();
+                mHandler.removeCallbacks(mDiscoverServices);
+                mAwaitingFirstNotification = false;
+                mSubscriptions.clear();
+                Log.i(TAG, "Disconnected from GATT server " + mAddress);
+                mCallbacks.onSessionStateChanged(GattSession.this, BluetoothLeService.ACTION_GATT_DISCONNECTED);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "onServicesDiscovered received: " + status);
+                if (!retryServiceDiscovery(gatt)) {
+                    // Nothing can be subscribed to, so drop the link rather than stay connected
+                    // without services. The disconnect is reported as usual, so the service and UI
+                    // recover and the device can be connected again.
+                    Log.e(TAG, "Service discovery failed for " + mAddress + ", disconnecting");
+                    gatt.disconnect();
+                }
+                return;
+            }
+            if (!hasExpectedServices(gatt) && retryServiceDiscovery(gatt)) {
+                return;
+            }
+            mLayoutCached = mLayout.update(gatt.getServices());
+            mServicesDiscoveredNanos = System.nanoTime();
+            mDiscoveryTimeMs = (mServicesDiscoveredNanos - mConnectedNanos) / 1000000L;
+            Log.i(TAG, "Services discovered " + mDiscoveryTimeMs + " ms after connecting to " + mAddress
+                    + ", in " + mDiscoveryAttempts + " attempt(s), layout "
+                    + (mLayoutCached ? "unchanged" : "new"));
+            mAwaitingFirstNotification = true;
+            mState = STATE_READY;
+            mCallbacks.onSessionStateChanged(GattSession.this, BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                deliver(characteristic);
+            }
+            mOperationQueue.onOperationComplete(GattOperationQueue.OP_READ, status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          BluetoothGattCharacteristic characteristic,
+                                          int status) {
+            // A period written is the device's period from now on, without reading it back
+            if (status == BluetoothGatt.GATT_SUCCESS && isPeriod(characteristic)) {
+                deliver(characteristic);
+            }
+            mOperationQueue.onOperationComplete(GattOperationQueue.OP_WRITE, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            mOperationQueue.onOperationComplete(GattOperationQueue.OP_DESCRIPTOR_WRITE, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            if (mAwaitingFirstNotification) {
+                mAwaitingFirstNotification = false;
+                mSetupTimeMs = (System.nanoTime() - mServicesDiscoveredNanos) / 1000000L;
+                Log.i(TAG, "First notification from " + mAddress + " " + mSetupTimeMs
+                        + " ms after service discovery" + (mLayoutCached ? ", layout cached" : ""));
+            }
+            deliver(characteristic);
+        }
+    };
+
+    private final Runnable mDiscoverServices = new Runnable() {
+        @Override
+        public void run() {
+            if (mGatt == null || mState != STATE_CONNECTED) {
+                return;
+            }
+            mDiscoveryAttempts++;
+            Log.i(TAG, "Attempting to start service discovery:" +
+                    mGatt.discoverServices());
+        }
+    };
+
+    private boolean hasExpectedServices(BluetoothGatt gatt) {
+        for (UUID uuid : mDispatchTable.getNotifyServices()) {
+            if (gatt.getService(uuid) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Schedules another service discovery after clearing the device's service cache, which may be
+     * stale if the micro:bit has been reflashed since it was last discovered. See
+     * https://devzone.nordicsemi.com/question/22751/nrftoobox-on-android-not-recognizing-changes-in-application-type-running-on-nordic-pcb/
+     *
+     * @return False if the discovery attempts have been used up.
+     */
+    private boolean retryServiceDiscovery(BluetoothGatt gatt) {
+        if (mDiscoveryAttempts >= MAX_DISCOVERY_ATTEMPTS) {
+            Log.w(TAG, "Expected services still missing after " + mDiscoveryAttempts + " discovery attempts");
+            return false;
+        }
+        refreshDeviceCache(gatt);
+        long delay = DISCOVERY_RETRY_DELAY_MS << (mDiscoveryAttempts - 1);
+        Log.i(TAG, "Expected services missing, retrying discovery in " + delay + " ms");
+        mHandler.postDelayed(mDiscoverServices, delay);
+        return true;
+    }
+
+    // BluetoothGatt.refresh() is hidden from the public API, but is the only way to drop the cache
+    private static void refreshDeviceCache(BluetoothGatt gatt) {
+        try {
+            Method refresh = gatt.getClass().getMethod("refresh");
+            refresh.invoke(gatt);
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to refresh the GATT service cache", e);
+        }
+    }
+
+    /**
+     * Connects, or reconnects if this session has connected before.
+     *
+     * @return Return true if the connection is initiated successfully.
+     */
+    boolean connect(BluetoothAdapter adapter) {
+        // Previously connected device.  Try to reconnect.
+        if (mGatt != null) {
+            Log.d(TAG, "Trying to use an existing BluetoothGatt for connection to " + mAddress);
+            if (mGatt.connect()) {
+                mState = STATE_CONNECTING;
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        final BluetoothDevice device = adapter.getRemoteDevice(mAddress);
+        if (device == null) {
+            Log.w(TAG, "Device not found.  Unable to connect.");
+            return false;
+        }
+        // We want to directly connect to the device, so we are setting the autoConnect
+        // parameter to false.
+        mGatt = device.connectGatt(mContext, false, mGattCallback);
+        mOperationQueue.setGatt(mGatt);
+        Log.d(TAG, "Trying to create a new connection to " + mAddress);
+        mState = STATE_CONNECTING;
+        return true;
+    }
+
+    void disconnect() {
+        if (mGatt == null) {
+            Log.w(TAG, "No connection to " + mAddress);
+            return;
+        }
+        mGatt.disconnect();
+    }
+
+    void close() {
+        if (mGatt == null) {
+            return;
+        }
+        mOperationQueue.setGatt(null);
+        mHandler.removeCallbacks(mDiscoverServices);
+        mGatt.close();
+        mGatt = null;
+        mState = STATE_DISCONNECTED;
+    }
+
+    void read(BluetoothGattCharacteristic characteristic) {
+        mOperationQueue.read(characteristic);
+    }
+
+    /**
+     * @param completion Posted once the read has succeeded or been given up on.
+     */
+    void read(BluetoothGattCharacteristic characteristic, Runnable completion) {
+        mOperationQueue.read(characteristic, completion);
+    }
+
+    void write(BluetoothGattCharacteristic characteristic, byte[] value) {
+        mOperationQueue.write(characteristic, value);
+    }
+
+    void setNotification(BluetoothGattCharacteristic characteristic, boolean enabled) {
+        if (mGatt == null) {
+            return;
+        }
+        mGatt.setCharacteristicNotification(characteristic, enabled);
+        if (enabled) {
+            mSubscriptions.add(characteristic.getUuid());
+        } else {
+            mSubscriptions.remove(characteristic.getUuid());
+        }
+        mLayout.setSubscribed(characteristic.getUuid(), enabled);
+        if (mDispatchTable.isNotifyService(characteristic.getService().getUuid())) {
+            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
+                    mDispatchTable.getClientConfigUuid());
+            mOperationQueue.writeDescriptor(descriptor, enabled
+                    ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                    : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        }
+    }
+
+    void runWhenIdle(Runnable callback) {
+        mOperationQueue.runWhenIdle(callback);
+    }
+
+    /**
+     * Counts a notified or read value and remembers it if it is a period, then passes it on to be
+     * decoded. Called on the GATT callback thread.
+     */
+    private void deliver(BluetoothGattCharacteristic characteristic) {
+        byte[] value = characteristic.getValue();
+        GattDispatchTable.Route route = mDispatchTable.lookup(characteristic.getUuid());
+        if (route != null && value != null) {
+            mSampleCounts[route.type]++;
+            if (route.decoder == GattDispatchTable.DECODER_PERIOD && value.length >= 2) {
+                mLayout.setPeriod(route.uuid, Utility.shortFromLittleEndianBytes(value, 0) & 0xFFFF);
+            }
+        }
+        mValues.onCharacteristicValue(mAddress, characteristic.getUuid(), value);
+    }
+
+    private boolean isPeriod(BluetoothGattCharacteristic characteristic) {
+        GattDispatchTable.Route route = mDispatchTable.lookup(characteristic.getUuid());
+        return route != null && route.decoder == GattDispatchTable.DECODER_PERIOD;
+    }
+
+    /**
+     * @return The sample rate of each type received since the previous call, e.g.
+     *         {@code "ACCELEROMETER=12.5/s MAGNETOMETER=12.4/s"}. Types with no samples are omitted.
+     */
+    String reportRates() {
+        long now = System.nanoTime();
+        double seconds = (now - mLastReportNanos) / 1e9;
+        mLastReportNanos = now;
+        StringBuilder report = new StringBuilder();
+        for (int type = 0; type < SensorSample.TYPE_COUNT; type++) {
+            long count = mSampleCounts[type];
+            long delta = count - mReportedCounts[type];
+            mReportedCounts[type] = count;
+            if (delta > 0) {
+                report.append(mDispatchTable.lookup(type).name)
+                        .append('=')
+                        .append(String.format(Locale.UK, "%.1f/s ", delta / seconds));
+            }
+        }
+        return report.toString().trim();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public List<BluetoothGattService> getServices() {
+        if (mGatt == null) return null;
+
+        return mGatt.getServices();
+    }
+
+    public Set<UUID> getSubscriptions() {
+        return Collections.unmodifiableSet(mSubscriptions);
+    }
+
+    /**
+     * @return The last period read from or written to each period characteristic, in ms.
+     */
+    public Map<UUID, Integer> getPeriods() {
+        return mLayout.getPeriods();
+    }
+
+    public GattLayout getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * @return The time from service discovery to the first notification on the current connection,
+     *         or -1 if no notification has been received yet.
+     */
+    public long getSetupTimeMs() {
+        return mSetupTimeMs;
+    }
+
+    /**
+     * @return The time from connecting to the services being discovered for the current
+     *         connection, or -1 if discovery has not completed.
+     */
+    public long getDiscoveryTimeMs() {
+        return mDiscoveryTimeMs;
+    }
+}
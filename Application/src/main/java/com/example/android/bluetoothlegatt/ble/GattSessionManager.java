@@ -0,0 +1,123 @@
+package com.example.android.bluetoothlegatt.ble;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a {@link GattSession} per device address so several micro:bits can be relayed at once, and
+ * periodically logs the sample rate achieved by each. As a {@link SensorSource} it delivers the
+ * values notified or read by every session.
+ */
+public class GattSessionManager implements SensorSource {
+    private final static String TAG = GattSessionManager.class.getSimpleName();
+
+    private static final long RATE_REPORT_INTERVAL_MS = 10000;
+
+    private final ConcurrentHashMap<String, GattSession> mSessions = new ConcurrentHashMap<>();
+    // Kept when a session is closed, so reopening it can reuse what was discovered
+    private final ConcurrentHashMap<String, GattLayout> mLayouts = new ConcurrentHashMap<>();
+    private final Context mContext;
+    private final GattDispatchTable mDispatchTable;
+    private final Handler mHandler;
+    private final GattSession.Callbacks mCallbacks;
+    private boolean mReportingRates = false;
+    private volatile Listener mListener;
+
+    GattSessionManager(Context context, GattDispatchTable dispatchTable, Handler handler,
+                       GattSession.Callbacks callbacks) {
+        mContext = context;
+        mDispatchTable = dispatchTable;
+        mHandler = handler;
+        mCallbacks = callbacks;
+    }
+
+    // Handed to every session, values are dropped while the source is stopped
+    private final Listener mValues = new Listener() {
+        @Override
+        public void onCharacteristicValue(String address, UUID characteristic, byte[] value) {
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onCharacteristicValue(address, characteristic, value);
+            }
+        }
+    };
+
+    @Override
+    public void start(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void stop() {
+        mListener = null;
+    }
+
+    private final Runnable mReportRates = new Runnable() {
+        @Override
+        public void run() {
+            for (GattSession session : mSessions.values()) {
+                if (session.getState() == GattSession.STATE_READY) {
+                    Log.i(TAG, session.getAddress() + ": " + session.reportRates());
+                }
+            }
+            mHandler.postDelayed(this, RATE_REPORT_INTERVAL_MS);
+        }
+    };
+
+    /**
+     * @return The session for the device, creating it if this is the first connection to it.
+     */
+    synchronized GattSession obtain(String address) {
+        GattSession session = mSessions.get(address);
+        if (session == null) {
+            GattLayout layout = mLayouts.get(address);
+            if (layout == null) {
+                layout = new GattLayout(address);
+                mLayouts.put(address, layout);
+            }
+            session = new GattSession(address, mContext, mDispatchTable, mHandler, mCallbacks, mValues, layout);
+            mSessions.put(address, session);
+        }
+        if (!mReportingRates) {
+            mReportingRates = true;
+            mHandler.postDelayed(mReportRates, RATE_REPORT_INTERVAL_MS);
+        }
+        return session;
+    }
+
+    /**
+     * @return The session for the device, or null if it has never been connected.
+     */
+    public GattSession get(String address) {
+        return address == null ? null : mSessions.get(address);
+    }
+
+    public Collection<GattSession> getSessions() {
+        return Collections.unmodifiableCollection(mSessions.values());
+    }
+
+    /**
+     * Closes the device's connection and forgets its session.
+     */
+    synchronized void close(String address) {
+        GattSession session = mSessions.remove(address);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    synchronized void closeAll() {
+        for (GattSession session : mSessions.values()) {
+            session.close();
+        }
+        mSessions.clear();
+        mHandler.removeCallbacks(mReportRates);
+        mReportingRates = false;
+    }
+}
@@ -0,0 +1,223 @@
+package com.example.android.bluetoothlegatt.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Polls characteristics by reading them at fixed rates, for values the micro:bit does not notify.
+ *
+ * Every poll runs on a single scheduled executor at a fixed rate, so its period does not drift by
+ * the time taken to read. If the previous read of a characteristic has not completed by the next
+ * tick that tick is skipped rather than queueing another read behind it. The rate achieved and the
+ * jitter of each tick against its schedule are recorded per characteristic.
+ */
+public class PollingScheduler {
+
+    // A read which has not completed by now was discarded by the GattOperationQueue, e.g. on
+    // disconnection
+    private static final long READ_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            GattOperationQueue.OPERATION_TIMEOUT_MS * GattOperationQueue.MAX_ATTEMPTS + 500);
+
+    interface Reader {
+        /**
+         * @param completion To be run once the read has succeeded or been given up on.
+         */
+        void read(String address, BluetoothGattCharacteristic characteristic, Runnable completion);
+    }
+
+    private final Reader mReader;
+    private final ScheduledExecutorService mExecutor;
+    private final ConcurrentHashMap<String, Poll> mPolls = new ConcurrentHashMap<>();
+
+    PollingScheduler(Reader reader) {
+        mReader = reader;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PollingScheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static String key(String address, UUID uuid) {
+        return address + "/" + uuid;
+    }
+
+    /**
+     * Starts reading the characteristic every {@code periodMs}, replacing any existing poll of it.
+     */
+    public Poll schedule(String address, BluetoothGattCharacteristic characteristic, long periodMs) {
+        Poll poll = new Poll(address, characteristic, periodMs);
+        poll.mStartNanos = System.nanoTime();
+        // Started before it is visible, so a concurrent cancel always finds the future
+        poll.mFuture = mExecutor.scheduleAtFixedRate(poll, 0, periodMs, TimeUnit.MILLISECONDS);
+        Poll previous = mPolls.put(key(address, characteristic.getUuid()), poll);
+        if (previous != null) {
+            previous.cancel();
+        }
+        return poll;
+    }
+
+    public void cancel(String address, UUID uuid) {
+        Poll poll = mPolls.remove(key(address, uuid));
+        if (poll != null) {
+            poll.cancel();
+        }
+    }
+
+    /**
+     * Stops every poll of the device, e.g. when it disconnects.
+     */
+    public void cancelAll(String address) {
+        for (Poll poll : mPolls.values()) {
+            if (poll.mAddress.equals(address)) {
+                cancel(address, poll.getUuid());
+            }
+        }
+    }
+
+    public Collection<Poll> getPolls() {
+        return Collections.unmodifiableCollection(mPolls.values());
+    }
+
+    /**
+     * @return One line per poll, empty if there are none.
+     */
+    public String report() {
+        StringBuilder builder = new StringBuilder();
+        for (Poll poll : mPolls.values()) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(poll);
+        }
+        return builder.toString();
+    }
+
+    public void shutdown() {
+        mPolls.clear();
+        mExecutor.shutdownNow();
+    }
+
+    public class Poll implements Runnable {
+        private final String mAddress;
+        private final BluetoothGattCharacteristic mCharacteristic;
+        private final long mPeriodNanos;
+        private volatile ScheduledFuture<?> mFuture;
+        private volatile long mStartNanos;
+        // Time the outstanding read was issued, 0 if none
+        private final AtomicLong mReadIssuedNanos = new AtomicLong();
+
+        // Written on the executor thread only
+        private long mTicks = 0;
+        private long mSkipped = 0;
+        private long mTimedOut = 0;
+        private long mTotalJitterNanos = 0;
+        private long mMaxJitterNanos = 0;
+        private final AtomicLong mCompleted = new AtomicLong();
+        // Only the poll's own reads count, not those of the same characteristic issued elsewhere
+        private final Runnable mCompletion = new Runnable() {
+            @Override
+            public void run() {
+                onReadComplete();
+            }
+        };
+
+        Poll(String address, BluetoothGattCharacteristic characteristic, long periodMs) {
+            mAddress = address;
+            mCharacteristic = characteristic;
+            mPeriodNanos = TimeUnit.MILLISECONDS.toNanos(periodMs);
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            // How late this tick is against its fixed rate schedule
+            long jitter = now - (mStartNanos + mTicks * mPeriodNanos);
+            mTicks++;
+            if (jitter > 0) {
+                mTotalJitterNanos += jitter;
+                mMaxJitterNanos = Math.max(mMaxJitterNanos, jitter);
+            }
+            long issued = mReadIssuedNanos.get();
+            if (issued != 0) {
+                if (now - issued < READ_TIMEOUT_NANOS) {
+                    mSkipped++;
+                    return;
+                }
+                mTimedOut++;
+            }
+            mReadIssuedNanos.set(now);
+            mReader.read(mAddress, mCharacteristic, mCompletion);
+        }
+
+        private void onReadComplete() {
+            if (mReadIssuedNanos.getAndSet(0) != 0) {
+                mCompleted.incrementAndGet();
+            }
+        }
+
+        void cancel() {
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public UUID getUuid() {
+            return mCharacteristic.getUuid();
+        }
+
+        public double getRequestedHz() {
+            return 1e9 / mPeriodNanos;
+        }
+
+        /**
+         * @return Completed reads per second since the poll started.
+         */
+        public double getAchievedHz() {
+            long elapsed = System.nanoTime() - mStartNanos;
+            return elapsed <= 0 ? 0 : mCompleted.get() * 1e9 / elapsed;
+        }
+
+        public double getMeanJitterMs() {
+            return mTicks == 0 ? 0 : mTotalJitterNanos / 1e6 / mTicks;
+        }
+
+        public double getMaxJitterMs() {
+            return mMaxJitterNanos / 1e6;
+        }
+
+        public long getSkippedCount() {
+            return mSkipped;
+        }
+
+        public long getTimedOutCount() {
+            return mTimedOut;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.UK,
+                    "%s %s: requested=%.1fHz achieved=%.1fHz jitter(mean/max)=%.1f/%.1fms skipped=%d timedOut=%d",
+                    mAddress, GattAttributes.lookup(getUuid().toString(), getUuid().toString()),
+                    getRequestedHz(), getAchievedHz(), getMeanJitterMs(), getMaxJitterMs(), mSkipped, mTimedOut);
+        }
+    }
+}
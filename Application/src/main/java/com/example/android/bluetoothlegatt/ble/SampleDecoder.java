@@ -0,0 +1,76 @@
+package com.example.android.bluetoothlegatt.ble;
+
+import com.example.android.bluetoothlegatt.data.PipelineLatency;
+import com.example.android.bluetoothlegatt.data.SampleRingBuffer;
+import com.example.android.bluetoothlegatt.data.SensorSample;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes raw characteristic values from any number of {@link SensorSource}s into the next free
+ * slot of a {@link SampleRingBuffer}. Called on each source's thread, so this must not block or
+ * allocate.
+ */
+public class SampleDecoder implements SensorSource.Listener {
+
+    private final GattDispatchTable mDispatchTable;
+    private final SampleRingBuffer mSamples;
+    private final PipelineLatency mLatency;
+    private final AtomicLong mUnrouted = new AtomicLong();
+    private final AtomicLong mShortValues = new AtomicLong();
+
+    /**
+     * @param latency Receives the decode time of each sample, may be null.
+     */
+    public SampleDecoder(GattDispatchTable dispatchTable, SampleRingBuffer samples, PipelineLatency latency) {
+        mDispatchTable = dispatchTable;
+        mSamples = samples;
+        mLatency = latency;
+    }
+
+    @Override
+    public void onCharacteristicValue(String address, UUID characteristic, byte[] value) {
+        final long ingressNanos = System.nanoTime();
+        GattDispatchTable.Route route = mDispatchTable.lookup(characteristic);
+        if (route == null || value == null) {
+            // Our subscriptions are specific, so anything else is unexpected
+            mUnrouted.incrementAndGet();
+            return;
+        }
+        if (value.length < route.length) {
+            // Checked before claiming, as a slot claimed cannot be given back
+            mShortValues.incrementAndGet();
+            return;
+        }
+        // Each source calls back on its own thread, so producers are serialised here
+        synchronized (mSamples) {
+            SensorSample sample = mSamples.claim();
+            if (sample == null) {
+                // A consumer is a full buffer behind, drop rather than block the source's thread
+                return;
+            }
+            sample.timestampNanos = ingressNanos;
+            sample.device = address;
+            GattDispatchTable.decode(route, value, sample);
+            mSamples.publish();
+        }
+        if (mLatency != null) {
+            mLatency.record(PipelineLatency.STAGE_DECODE, System.nanoTime() - ingressNanos);
+        }
+    }
+
+    /**
+     * @return The number of values received for characteristics without a route.
+     */
+    public long getUnroutedCount() {
+        return mUnrouted.get();
+    }
+
+    /**
+     * @return The number of values too short for their characteristic's decoder, which are dropped.
+     */
+    public long getShortValueCount() {
+        return mShortValues.get();
+    }
+}
@@ -0,0 +1,278 @@
+package com.example.android.bluetoothlegatt.ble;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Devices seen while scanning, keyed by address, so each advertisement is a map lookup rather than
+ * a search of the list shown, however many boards are advertising.
+ *
+ * Each entry keeps the device's name, its RSSI smoothed by a first order low pass filter, and when
+ * it was last seen; devices not seen for {@code expiryMs} are dropped by {@link #expire}. Optionally
+ * only micro:bits are listed, recognised by their advertised name or a micro:bit service UUID in
+ * the scan record. The record is only parsed until the device has been identified, so other
+ * advertisers cost no more than the lookup.
+ *
+ * Advertisements arrive on the Bluetooth binder thread while the list is read on the UI thread, so
+ * the methods are synchronized. The UI should poll {@link #getVersion} at its own cadence and take a
+ * {@link #snapshot} only when it has changed, rather than refreshing on every advertisement.
+ */
+public class ScanIndex {
+
+    public static final String MICROBIT_NAME_PREFIX = "BBC micro:bit";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Advertising data types, see the Bluetooth Core Specification Supplement
+    private static final int AD_INCOMPLETE_128_BIT_UUIDS = 0x06;
+    private static final int AD_COMPLETE_128_BIT_UUIDS = 0x07;
+    private static final int AD_SHORTENED_LOCAL_NAME = 0x08;
+    private static final int AD_COMPLETE_LOCAL_NAME = 0x09;
+
+    // The micro:bit services are e95dXXXX-251d-470a-a062-fa1922dfa9a8, advertised least
+    // significant byte first, so all but bytes 12 and 13 are common to every service
+    private static final byte[] MICROBIT_SERVICE_BASE = {
+            (byte) 0xa8, (byte) 0xa9, (byte) 0xdf, (byte) 0x22, (byte) 0x19, (byte) 0xfa,
+            (byte) 0x62, (byte) 0xa0, (byte) 0x0a, (byte) 0x47, (byte) 0x1d, (byte) 0x25,
+            0, 0, (byte) 0x5d, (byte) 0xe9};
+
+    /**
+     * A device seen while scanning. Those returned by {@link #snapshot} are copies, so may be kept.
+     */
+    public static class Entry {
+        public final String address;
+        // Null until the device advertises one
+        public String name;
+        // Smoothed, in dBm
+        public double rssi;
+        public long firstSeenNanos;
+        public long lastSeenNanos;
+        public long advertisements;
+        boolean matched;
+        // Rounded RSSI when the version was last bumped for this entry
+        int shownRssi;
+
+        Entry(String address) {
+            this.address = address;
+        }
+
+        Entry(Entry other) {
+            address = other.address;
+            name = other.name;
+            rssi = other.rssi;
+            firstSeenNanos = other.firstSeenNanos;
+            lastSeenNanos = other.lastSeenNanos;
+            advertisements = other.advertisements;
+            matched = other.matched;
+            shownRssi = other.shownRssi;
+        }
+    }
+
+    // Strongest first, so the nearest boards head the list
+    private static final Comparator<Entry> BY_RSSI = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Double.compare(b.rssi, a.rssi);
+        }
+    };
+
+    private final boolean mMicroBitsOnly;
+    private final double mSmoothing;
+    private final long mExpiryNanos;
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    private long mVersion = 0;
+    private long mAdvertisements = 0;
+    private long mExpired = 0;
+
+    /**
+     * @param microBitsOnly True to list only micro:bits, false to list every advertiser.
+     * @param smoothing Weight of the previous smoothed RSSI, from 0 for no smoothing up to but not
+     *                  including 1.
+     * @param expiryMs Time since a device was last seen after which it is dropped.
+     */
+    public ScanIndex(boolean microBitsOnly, double smoothing, long expiryMs) {
+        if (smoothing < 0 || smoothing >= 1) {
+            throw new IllegalArgumentException("Smoothing must be in [0, 1): " + smoothing);
+        }
+        if (expiryMs <= 0) {
+            throw new IllegalArgumentException("Expiry must be positive: " + expiryMs);
+        }
+        mMicroBitsOnly = microBitsOnly;
+        mSmoothing = smoothing;
+        mExpiryNanos = expiryMs * 1000000L;
+    }
+
+    /**
+     * Records an advertisement, as passed to {@code LeScanCallback.onLeScan}.
+     *
+     * @param nowNanos {@code System.nanoTime()} when it was received.
+     */
+    public synchronized void onAdvertisement(String address, int rssi, byte[] scanRecord, long nowNanos) {
+        mAdvertisements++;
+        Entry entry = mEntries.get(address);
+        if (entry == null) {
+            entry = new Entry(address);
+            entry.rssi = rssi;
+            entry.firstSeenNanos = nowNanos;
+            mEntries.put(address, entry);
+        } else {
+            entry.rssi = mSmoothing * entry.rssi + (1 - mSmoothing) * rssi;
+        }
+        entry.lastSeenNanos = nowNanos;
+        entry.advertisements++;
+
+        boolean changed = false;
+        if (!entry.matched && !mMicroBitsOnly) {
+            entry.matched = true;
+            changed = true;
+        }
+        // The name may only be in a later scan response, so keep looking until there is one
+        if (entry.name == null && scanRecord != null) {
+            entry.name = parseLocalName(scanRecord);
+            changed |= entry.name != null;
+            if (!entry.matched && (isMicroBitName(entry.name) || advertisesMicroBitService(scanRecord))) {
+                entry.matched = true;
+                changed = true;
+            }
+        }
+        if (!entry.matched) {
+            return;
+        }
+        int shownRssi = (int) Math.round(entry.rssi);
+        if (changed || shownRssi != entry.shownRssi) {
+            entry.shownRssi = shownRssi;
+            mVersion++;
+        }
+    }
+
+    /**
+     * Drops devices not seen for the expiry time.
+     *
+     * @return The number of devices dropped.
+     */
+    public synchronized int expire(long nowNanos) {
+        int expired = 0;
+        Iterator<Entry> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (nowNanos - entry.lastSeenNanos > mExpiryNanos) {
+                entries.remove();
+                expired++;
+                if (entry.matched) {
+                    mVersion++;
+                }
+            }
+        }
+        mExpired += expired;
+        return expired;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mVersion++;
+    }
+
+    /**
+     * @return A number which changes whenever the listed devices, their names or their RSSI to the
+     * nearest dBm change.
+     */
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Replaces the contents of {@code out} with copies of the listed devices, strongest first.
+     */
+    public synchronized void snapshot(ArrayList<Entry> out) {
+        out.clear();
+        for (Entry entry : mEntries.values()) {
+            if (entry.matched) {
+                out.add(new Entry(entry));
+            }
+        }
+        Collections.sort(out, BY_RSSI);
+    }
+
+    /**
+     * @return Devices tracked, including those not listed.
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public static boolean isMicroBitName(String name) {
+        return name != null && name.startsWith(MICROBIT_NAME_PREFIX);
+    }
+
+    /**
+     * @return The complete or else shortened local name in the scan record, or null if neither is
+     * present.
+     */
+    public static String parseLocalName(byte[] scanRecord) {
+        String shortened = null;
+        int i = 0;
+        while (i < scanRecord.length) {
+            int length = scanRecord[i] & 0xff;
+            if (length == 0 || i + length >= scanRecord.length) {
+                break;
+            }
+            int type = scanRecord[i + 1] & 0xff;
+            if (type == AD_COMPLETE_LOCAL_NAME) {
+                return new String(scanRecord, i + 2, length - 1, UTF_8);
+            } else if (type == AD_SHORTENED_LOCAL_NAME && shortened == null) {
+                shortened = new String(scanRecord, i + 2, length - 1, UTF_8);
+            }
+            i += length + 1;
+        }
+        return shortened;
+    }
+
+    /**
+     * @return True if the scan record lists a 128-bit service UUID of the micro:bit profile.
+     */
+    public static boolean advertisesMicroBitService(byte[] scanRecord) {
+        int i = 0;
+        while (i < scanRecord.length) {
+            int length = scanRecord[i] & 0xff;
+            if (length == 0 || i + length >= scanRecord.length) {
+                break;
+            }
+            int type = scanRecord[i + 1] & 0xff;
+            if (type == AD_INCOMPLETE_128_BIT_UUIDS || type == AD_COMPLETE_128_BIT_UUIDS) {
+                for (int uuid = i + 2; uuid + 16 <= i + length + 1; uuid += 16) {
+                    if (isMicroBitService(scanRecord, uuid)) {
+                        return true;
+                    }
+                }
+            }
+            i += length + 1;
+        }
+        return false;
+    }
+
+    private static boolean isMicroBitService(byte[] scanRecord, int offset) {
+        for (int b = 0; b < 16; b++) {
+            if ((b < 12 || b > 13) && scanRecord[offset + b] != MICROBIT_SERVICE_BASE[b]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int listed = 0;
+        for (Entry entry : mEntries.values()) {
+            if (entry.matched) {
+                listed++;
+            }
+        }
+        return String.format(Locale.UK, "tracked=%d listed=%d advertisements=%d expired=%d",
+                mEntries.size(), listed, mAdvertisements, mExpired);
+    }
+}
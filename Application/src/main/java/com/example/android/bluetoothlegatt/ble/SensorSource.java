@@ -0,0 +1,32 @@
+package com.example.android.bluetoothlegatt.ble;
+
+import java.util.UUID;
+
+/**
+ * Something which produces raw micro:bit characteristic values, such as the GATT connections
+ * managed by {@link GattSessionManager} or a {@link SimulatedMicroBit}. Values are delivered
+ * undecoded, exactly as they arrive over the air, so everything downstream of the source is
+ * exercised whichever backend is used.
+ */
+public interface SensorSource {
+
+    interface Listener {
+        /**
+         * Called on the source's thread for each notified or read value. The array may be reused
+         * once this returns, so it must be copied to be kept.
+         *
+         * @param address Address of the device the value came from.
+         */
+        void onCharacteristicValue(String address, UUID characteristic, byte[] value);
+    }
+
+    /**
+     * Starts delivering values to the listener.
+     */
+    void start(Listener listener);
+
+    /**
+     * Stops delivering values. No more are delivered once this returns.
+     */
+    void stop();
+}
@@ -0,0 +1,412 @@
+package com.example.android.bluetoothlegatt.ble;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link SensorSource} which emits the characteristic values a micro:bit running the Bluetooth
+ * profile would notify, byte for byte, without a phone or a board. It lets decoding, batching and
+ * publishing be load tested on a desktop JVM at many times the real rates.
+ *
+ * The simulated board turns slowly while rocking in pitch and roll. The accelerometer reports
+ * gravity and the magnetometer a dipping field in the board's frame, flat and level reading
+ * (0, 0, -1000) milli-g, and the bearing follows the heading, so the three agree. Temperature drifts
+ * around room temperature and each button is pressed every few seconds. The period characteristics
+ * are emitted once on start, as if they had been read.
+ *
+ * Rates, jitter and bursts are configured before {@link #start(Listener)}. Values are emitted on
+ * the simulator's own thread, or one at a time with {@link #step(Listener)} to run as fast as the
+ * caller can consume them.
+ */
+public class SimulatedMicroBit implements SensorSource {
+
+    // Defaults of the micro:bit Bluetooth profile
+    public static final double DEFAULT_ACCELEROMETER_PERIOD_MS = 20;
+    public static final double DEFAULT_MAGNETOMETER_PERIOD_MS = 20;
+    public static final double DEFAULT_TEMPERATURE_PERIOD_MS = 1000;
+    // Mean time between changes of each button's state
+    public static final double DEFAULT_BUTTON_PERIOD_MS = 3000;
+
+    private static final int KIND_ACCELEROMETER = 0;
+    private static final int KIND_MAGNETOMETER = 1;
+    private static final int KIND_BEARING = 2;
+    private static final int KIND_TEMPERATURE = 3;
+    private static final int KIND_BUTTON_A = 4;
+    private static final int KIND_BUTTON_B = 5;
+    private static final int KIND_PERIOD = 6;
+    // Not a characteristic, starts a burst on the fast streams when due
+    private static final int KIND_BURST = 7;
+
+    // Simulated motion, in seconds of simulated time
+    private static final double TURN_SECONDS = 20;
+    private static final double PITCH_SECONDS = 7;
+    private static final double ROLL_SECONDS = 11;
+    private static final double MAX_PITCH = 0.3;
+    private static final double MAX_ROLL = 0.2;
+    private static final double GRAVITY_MILLI_G = 1000;
+    private static final double ACCELEROMETER_NOISE = 8;
+    // Horizontal and vertical components of the Earth's field in magnetometer units
+    private static final double FIELD_HORIZONTAL = 200;
+    private static final double FIELD_VERTICAL = 400;
+    private static final double MAGNETOMETER_NOISE = 3;
+
+    private static class Stream {
+        final int kind;
+        final UUID uuid;
+        final byte[] value;
+        // Nominal period in ms, reported by the matching period characteristic
+        double periodMs;
+        long periodNanos;
+        long nextNanos;
+        int burstRemaining;
+        // The stream whose period this period characteristic reports
+        Stream measured;
+
+        Stream(int kind, String uuid, int length, double periodMs) {
+            this.kind = kind;
+            this.uuid = uuid == null ? null : UUID.fromString(uuid);
+            this.value = new byte[length];
+            this.periodMs = periodMs;
+        }
+    }
+
+    private final String mAddress;
+    private final Random mRandom;
+    private final Stream mAccelerometer;
+    private final Stream mMagnetometer;
+    private final Stream mBearing;
+    private final Stream mTemperature;
+    private final Stream[] mStreams;
+    private final double[] mRotated = new double[3];
+    private double mSpeedup = 1;
+    private double mJitter = 0;
+    private int mBurstLength = 0;
+    private long mStartNanos;
+    private int mButtonA = 0;
+    private int mButtonB = 0;
+    private long mEmitted = 0;
+    private Thread mThread;
+    private volatile boolean mRunning = false;
+
+    /**
+     * @param address The device address samples are tagged with.
+     * @param seed Seed for the noise, jitter and button presses, so runs can be repeated.
+     */
+    public SimulatedMicroBit(String address, long seed) {
+        mAddress = address;
+        mRandom = new Random(seed);
+        mAccelerometer = new Stream(KIND_ACCELEROMETER, GattAttributes.ACCELEROMETER_MEASUREMENT, 6,
+                DEFAULT_ACCELEROMETER_PERIOD_MS);
+        mMagnetometer = new Stream(KIND_MAGNETOMETER, GattAttributes.MAGNETOMETER_MEASUREMENT, 6,
+                DEFAULT_MAGNETOMETER_PERIOD_MS);
+        mBearing = new Stream(KIND_BEARING, GattAttributes.MAGNETOMETER_BEARING, 2,
+                DEFAULT_MAGNETOMETER_PERIOD_MS);
+        mTemperature = new Stream(KIND_TEMPERATURE, GattAttributes.TEMPERATURE_MEASUREMENT, 1,
+                DEFAULT_TEMPERATURE_PERIOD_MS);
+        Stream accelerometerPeriod = new Stream(KIND_PERIOD, GattAttributes.ACCELEROMETER_PERIOD, 2, 0);
+        accelerometerPeriod.measured = mAccelerometer;
+        Stream magnetometerPeriod = new Stream(KIND_PERIOD, GattAttributes.MAGNETOMETER_PERIOD, 2, 0);
+        magnetometerPeriod.measured = mMagnetometer;
+        Stream temperaturePeriod = new Stream(KIND_PERIOD, GattAttributes.TEMPERATURE_PERIOD, 2, 0);
+        temperaturePeriod.measured = mTemperature;
+        mStreams = new Stream[]{
+                accelerometerPeriod, magnetometerPeriod, temperaturePeriod,
+                mAccelerometer, mMagnetometer, mBearing, mTemperature,
+                new Stream(KIND_BUTTON_A, GattAttributes.BUTTON_A_MEASUREMENT, 1, DEFAULT_BUTTON_PERIOD_MS),
+                new Stream(KIND_BUTTON_B, GattAttributes.BUTTON_B_MEASUREMENT, 1, DEFAULT_BUTTON_PERIOD_MS),
+                new Stream(KIND_BURST, null, 0, 0)
+        };
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Sets the notification period of the accelerometer, magnetometer or temperature. The
+     * magnetometer period also applies to the bearing.
+     *
+     * @param characteristic The measurement or period characteristic UUID.
+     */
+    public void setPeriod(String characteristic, double periodMs) {
+        if (periodMs <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + periodMs);
+        }
+        UUID uuid = UUID.fromString(characteristic);
+        for (Stream stream : mStreams) {
+            if (uuid.equals(stream.uuid)) {
+                Stream measured = stream.kind == KIND_PERIOD ? stream.measured : stream;
+                if (measured.kind == KIND_BUTTON_A || measured.kind == KIND_BUTTON_B) {
+                    break;
+                }
+                measured.periodMs = periodMs;
+                if (measured == mMagnetometer) {
+                    mBearing.periodMs = periodMs;
+                }
+                return;
+            }
+        }
+        throw new IllegalArgumentException("No periodic characteristic " + characteristic);
+    }
+
+    /**
+     * Divides every period by {@code factor}, so the simulated board runs that many times faster
+     * than real time. The period characteristics still report the nominal periods.
+     */
+    public void setSpeedup(double factor) {
+        if (factor <= 0) {
+            throw new IllegalArgumentException("Speedup must be positive: " + factor);
+        }
+        mSpeedup = factor;
+    }
+
+    /**
+     * @param fraction Each interval between values is scaled by a random factor in
+     *                 1 +/- {@code fraction}, as connection event timing does to real notifications.
+     */
+    public void setJitter(double fraction) {
+        if (fraction < 0 || fraction >= 1) {
+            throw new IllegalArgumentException("Jitter must be in [0, 1): " + fraction);
+        }
+        mJitter = fraction;
+    }
+
+    /**
+     * Every {@code intervalMs} of simulated time, the accelerometer, magnetometer and bearing each
+     * emit {@code length} extra values back to back, as a stalled link does when it catches up.
+     *
+     * @param length Extra values per burst, 0 disables bursts.
+     */
+    public void setBurst(double intervalMs, int length) {
+        if (length < 0 || (length > 0 && intervalMs <= 0)) {
+            throw new IllegalArgumentException("Invalid burst: " + length + " every " + intervalMs + " ms");
+        }
+        mStreams[mStreams.length - 1].periodMs = length > 0 ? intervalMs : 0;
+        mBurstLength = length;
+    }
+
+    /**
+     * @return Values emitted per second of real time at the configured periods, speedup and bursts,
+     *         not counting button presses.
+     */
+    public double getNominalRate() {
+        double perSecond = 1000 / mAccelerometer.periodMs + 1000 / mMagnetometer.periodMs
+                + 1000 / mBearing.periodMs + 1000 / mTemperature.periodMs;
+        double burstIntervalMs = mStreams[mStreams.length - 1].periodMs;
+        if (mBurstLength > 0) {
+            perSecond += 3 * mBurstLength * 1000 / burstIntervalMs;
+        }
+        return perSecond * mSpeedup;
+    }
+
+    /**
+     * @return The number of values emitted.
+     */
+    public synchronized long getEmittedCount() {
+        return mEmitted;
+    }
+
+    @Override
+    public synchronized void start(final Listener listener) {
+        if (mThread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        reset(System.nanoTime());
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mRunning) {
+                    long waitNanos = nextDueNanos() - System.nanoTime();
+                    if (waitNanos > 0) {
+                        LockSupport.parkNanos(waitNanos);
+                    } else {
+                        step(listener);
+                    }
+                }
+            }
+        }, SimulatedMicroBit.class.getSimpleName() + " " + mAddress);
+        mThread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+            mRunning = false;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Schedules every stream from {@code startNanos}, to drive the simulator with {@link #step}
+     * rather than {@link #start}.
+     */
+    public synchronized void reset(long startNanos) {
+        mStartNanos = startNanos;
+        for (Stream stream : mStreams) {
+            stream.periodNanos = (long) (stream.periodMs * 1e6 / mSpeedup);
+            stream.burstRemaining = 0;
+            if (stream.kind == KIND_PERIOD) {
+                stream.nextNanos = startNanos;
+            } else if (stream.periodNanos > 0) {
+                stream.nextNanos = startNanos + stream.periodNanos;
+            } else {
+                stream.nextNanos = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * @return The System.nanoTime() the next value is due, without waiting for it.
+     */
+    public synchronized long nextDueNanos() {
+        return earliest().nextNanos;
+    }
+
+    /**
+     * Emits the next value due, however far ahead of time it is, and schedules the one after it.
+     * Its time on the simulated board is the time it was due.
+     */
+    public synchronized void step(Listener listener) {
+        Stream stream = earliest();
+        if (stream.nextNanos == Long.MAX_VALUE) {
+            return;
+        }
+        double seconds = (stream.nextNanos - mStartNanos) * mSpeedup / 1e9;
+        switch (stream.kind) {
+            case KIND_BURST:
+                startBurst(stream.nextNanos);
+                schedule(stream);
+                return;
+            case KIND_ACCELEROMETER:
+                writeAccelerometer(seconds, stream.value);
+                break;
+            case KIND_MAGNETOMETER:
+                writeMagnetometer(seconds, stream.value);
+                break;
+            case KIND_BEARING:
+                writeShort(stream.value, (short) (Math.round(Math.toDegrees(heading(seconds))) % 360));
+                break;
+            case KIND_TEMPERATURE:
+                stream.value[0] = (byte) Math.round(21 + 2 * Math.sin(2 * Math.PI * seconds / 600));
+                break;
+            case KIND_BUTTON_A:
+                mButtonA ^= 1;
+                stream.value[0] = (byte) mButtonA;
+                break;
+            case KIND_BUTTON_B:
+                mButtonB ^= 1;
+                stream.value[0] = (byte) mButtonB;
+                break;
+            case KIND_PERIOD:
+                writeShort(stream.value, (short) Math.round(stream.measured.periodMs));
+                break;
+        }
+        schedule(stream);
+        mEmitted++;
+        listener.onCharacteristicValue(mAddress, stream.uuid, stream.value);
+    }
+
+    private Stream earliest() {
+        Stream earliest = mStreams[0];
+        for (int i = 1; i < mStreams.length; i++) {
+            if (mStreams[i].nextNanos < earliest.nextNanos) {
+                earliest = mStreams[i];
+            }
+        }
+        return earliest;
+    }
+
+    private void schedule(Stream stream) {
+        if (stream.kind == KIND_PERIOD) {
+            stream.nextNanos = Long.MAX_VALUE;
+        } else if (stream.burstRemaining > 0) {
+            // Burst values follow each other immediately
+            stream.burstRemaining--;
+        } else {
+            double interval = stream.periodNanos;
+            if (mJitter > 0 && stream.kind != KIND_BURST) {
+                interval *= 1 + mJitter * (2 * mRandom.nextDouble() - 1);
+            }
+            if (stream.kind == KIND_BUTTON_A || stream.kind == KIND_BUTTON_B) {
+                // Presses are random, releases follow shortly after
+                interval = stream.value[0] == 0 ? -Math.log(1 - mRandom.nextDouble()) * interval : interval / 20;
+            }
+            stream.nextNanos += Math.max(1, (long) interval);
+        }
+    }
+
+    private void startBurst(long nowNanos) {
+        if (mBurstLength == 0) {
+            return;
+        }
+        Stream[] fast = {mAccelerometer, mMagnetometer, mBearing};
+        for (Stream stream : fast) {
+            if (stream.nextNanos != Long.MAX_VALUE) {
+                stream.nextNanos = Math.min(stream.nextNanos, nowNanos);
+                stream.burstRemaining = mBurstLength;
+            }
+        }
+    }
+
+    private double heading(double seconds) {
+        double heading = 2 * Math.PI * seconds / TURN_SECONDS;
+        return heading - 2 * Math.PI * Math.floor(heading / (2 * Math.PI));
+    }
+
+    private void writeAccelerometer(double seconds, byte[] out) {
+        // Gravity points down in the world frame, z up
+        rotate(seconds, 0, 0, -GRAVITY_MILLI_G);
+        writeTriplet(out, ACCELEROMETER_NOISE);
+    }
+
+    private void writeMagnetometer(double seconds, byte[] out) {
+        // The horizontal component points north, so it turns against the board's heading
+        double heading = heading(seconds);
+        rotate(seconds, FIELD_HORIZONTAL * Math.cos(heading), -FIELD_HORIZONTAL * Math.sin(heading),
+                -FIELD_VERTICAL);
+        writeTriplet(out, MAGNETOMETER_NOISE);
+    }
+
+    /**
+     * Rotates a world frame vector by the board's pitch then roll into {@link #mRotated}.
+     */
+    private void rotate(double seconds, double x, double y, double z) {
+        double pitch = MAX_PITCH * Math.sin(2 * Math.PI * seconds / PITCH_SECONDS);
+        double roll = MAX_ROLL * Math.sin(2 * Math.PI * seconds / ROLL_SECONDS);
+        double cosPitch = Math.cos(pitch);
+        double sinPitch = Math.sin(pitch);
+        double cosRoll = Math.cos(roll);
+        double sinRoll = Math.sin(roll);
+        double px = cosPitch * x + sinPitch * z;
+        double pz = -sinPitch * x + cosPitch * z;
+        mRotated[0] = px;
+        mRotated[1] = cosRoll * y - sinRoll * pz;
+        mRotated[2] = sinRoll * y + cosRoll * pz;
+    }
+
+    private void writeTriplet(byte[] out, double noise) {
+        for (int axis = 0; axis < 3; axis++) {
+            long value = Math.round(mRotated[axis] + noise * mRandom.nextGaussian());
+            value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+            out[axis * 2] = (byte) value;
+            out[axis * 2 + 1] = (byte) (value >> 8);
+        }
+    }
+
+    private static void writeShort(byte[] out, short value) {
+        out[0] = (byte) value;
+        out[1] = (byte) (value >> 8);
+    }
+}
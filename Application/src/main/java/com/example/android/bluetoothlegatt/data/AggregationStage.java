@@ -0,0 +1,81 @@
+package com.example.android.bluetoothlegatt.data;
+
+import java.util.HashMap;
+
+/**
+ * Routes the triplet samples of the enabled sensor types to a {@link WindowAggregator} per device,
+ * all reporting to one listener. Not thread safe, it should be driven by a single consumer.
+ */
+public class AggregationStage {
+
+    private final long mWindowMs;
+    private final long mSlideMs;
+    private final WindowAggregator.Listener mListener;
+    private final boolean[] mEnabled = new boolean[SensorSample.TYPE_COUNT];
+    private final HashMap<String, WindowAggregator[]> mAggregators = new HashMap<>();
+
+    public AggregationStage(long windowMs, long slideMs, WindowAggregator.Listener listener) {
+        mWindowMs = windowMs;
+        mSlideMs = slideMs;
+        mListener = listener;
+    }
+
+    /**
+     * Starts summarising samples of the type, which must be the accelerometer or magnetometer.
+     */
+    public void enable(int sampleType) {
+        if (sampleType != SensorSample.TYPE_ACCELEROMETER && sampleType != SensorSample.TYPE_MAGNETOMETER) {
+            throw new IllegalArgumentException("Only triplet samples can be aggregated, not type " + sampleType);
+        }
+        mEnabled[sampleType] = true;
+    }
+
+    public boolean isEnabled(int sampleType) {
+        return mEnabled[sampleType];
+    }
+
+    public void onSample(SensorSample sample) {
+        if (!mEnabled[sample.type]) {
+            return;
+        }
+        WindowAggregator[] aggregators = mAggregators.get(sample.device);
+        if (aggregators == null) {
+            aggregators = new WindowAggregator[SensorSample.TYPE_COUNT];
+            mAggregators.put(sample.device, aggregators);
+        }
+        WindowAggregator aggregator = aggregators[sample.type];
+        if (aggregator == null) {
+            aggregator = new WindowAggregator(mWindowMs, mSlideMs, mListener);
+            aggregators[sample.type] = aggregator;
+        }
+        aggregator.add(sample);
+    }
+
+    /**
+     * Emits the partially filled windows of the device, e.g. when it disconnects.
+     */
+    public void flush(String device) {
+        WindowAggregator[] aggregators = mAggregators.get(device);
+        if (aggregators == null) {
+            return;
+        }
+        for (WindowAggregator aggregator : aggregators) {
+            if (aggregator != null) {
+                aggregator.flush();
+            }
+        }
+    }
+
+    /**
+     * Emits every partially filled window.
+     */
+    public void flush() {
+        for (WindowAggregator[] aggregators : mAggregators.values()) {
+            for (WindowAggregator aggregator : aggregators) {
+                if (aggregator != null) {
+                    aggregator.flush();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.android.bluetoothlegatt.data;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Suppresses samples of slow moving characteristics which do not differ from the last one forwarded
+ * for the same device.
+ *
+ * Buttons are forwarded only when their state changes. Temperature and bearing are forwarded once
+ * they have moved by at least their configured delta from the last forwarded value, the bearing
+ * being compared around the circle. Any value is forwarded if nothing has been for
+ * {@code heartbeatMs}, so consumers know it is still current. Other sample types are always
+ * forwarded. Not thread safe, it should be driven by a single consumer.
+ */
+public class ChangeFilter {
+
+    private final int mTemperatureDelta;
+    private final int mBearingDelta;
+    private final long mHeartbeatNanos;
+    private final HashMap<String, DeviceState> mDevices = new HashMap<>();
+    private final long[] mForwarded = new long[SensorSample.TYPE_COUNT];
+    private final long[] mSuppressed = new long[SensorSample.TYPE_COUNT];
+
+    private static class DeviceState {
+        final boolean[] seen = new boolean[SensorSample.TYPE_COUNT];
+        final int[] lastValue = new int[SensorSample.TYPE_COUNT];
+        final long[] lastNanos = new long[SensorSample.TYPE_COUNT];
+    }
+
+    /**
+     * @param temperatureDelta Change in degrees C needed to forward a temperature.
+     * @param bearingDelta Change in degrees needed to forward a bearing.
+     * @param heartbeatMs Longest time without forwarding a value.
+     */
+    public ChangeFilter(int temperatureDelta, int bearingDelta, long heartbeatMs) {
+        mTemperatureDelta = Math.max(1, temperatureDelta);
+        mBearingDelta = Math.max(1, bearingDelta);
+        mHeartbeatNanos = heartbeatMs * 1000000L;
+    }
+
+    /**
+     * @return True if the sample should be published.
+     */
+    public boolean accept(SensorSample sample) {
+        int delta;
+        switch (sample.type) {
+            case SensorSample.TYPE_BUTTON_A:
+            case SensorSample.TYPE_BUTTON_B:
+                delta = 1;
+                break;
+            case SensorSample.TYPE_TEMPERATURE:
+                delta = mTemperatureDelta;
+                break;
+            case SensorSample.TYPE_MAGNETOMETER_BEARING:
+                delta = mBearingDelta;
+                break;
+            default:
+                mForwarded[sample.type]++;
+                return true;
+        }
+        DeviceState state = mDevices.get(sample.device);
+        if (state == null) {
+            state = new DeviceState();
+            mDevices.put(sample.device, state);
+        }
+        int type = sample.type;
+        if (state.seen[type] && difference(type, state.lastValue[type], sample.value) < delta
+                && sample.timestampNanos - state.lastNanos[type] < mHeartbeatNanos) {
+            mSuppressed[type]++;
+            return false;
+        }
+        state.seen[type] = true;
+        state.lastValue[type] = sample.value;
+        state.lastNanos[type] = sample.timestampNanos;
+        mForwarded[type]++;
+        return true;
+    }
+
+    private static int difference(int type, int previous, int value) {
+        int difference = Math.abs(value - previous);
+        if (type == SensorSample.TYPE_MAGNETOMETER_BEARING) {
+            difference %= 360;
+            difference = Math.min(difference, 360 - difference);
+        }
+        return difference;
+    }
+
+    /**
+     * Forgets the last values of the device, so its next samples are forwarded, e.g. after it
+     * reconnects.
+     */
+    public void reset(String device) {
+        mDevices.remove(device);
+    }
+
+    public long getForwardedCount(int sampleType) {
+        return mForwarded[sampleType];
+    }
+
+    public long getSuppressedCount(int sampleType) {
+        return mSuppressed[sampleType];
+    }
+
+    /**
+     * @return Forwarded and suppressed counts of the filtered types.
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.UK,
+                "forwarded/suppressed buttonA=%d/%d buttonB=%d/%d temperature=%d/%d bearing=%d/%d",
+                mForwarded[SensorSample.TYPE_BUTTON_A], mSuppressed[SensorSample.TYPE_BUTTON_A],
+                mForwarded[SensorSample.TYPE_BUTTON_B], mSuppressed[SensorSample.TYPE_BUTTON_B],
+                mForwarded[SensorSample.TYPE_TEMPERATURE], mSuppressed[SensorSample.TYPE_TEMPERATURE],
+                mForwarded[SensorSample.TYPE_MAGNETOMETER_BEARING], mSuppressed[SensorSample.TYPE_MAGNETOMETER_BEARING]);
+    }
+}
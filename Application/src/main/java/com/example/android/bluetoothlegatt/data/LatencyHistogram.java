@@ -0,0 +1,135 @@
+package com.example.android.bluetoothlegatt.data;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory histogram of latencies in nanoseconds, in the style of HdrHistogram.
+ *
+ * Values below 2^{@code precisionBits} are counted exactly. Above that each power of two range is
+ * split into 2^({@code precisionBits} - 1) equal buckets, so a value is reported to within a
+ * relative error of 2^-({@code precisionBits} - 1). Values above the trackable maximum are counted
+ * in the last bucket. Recording does not allocate or lock and may happen from any thread; reads
+ * made while recording is in progress are approximate.
+ */
+public class LatencyHistogram {
+
+    private final int mPrecisionBits;
+    private final int mSubBucketCount;
+    private final int mHalfCount;
+    private final long mHighestTrackable;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * @param highestTrackableNanos Largest value distinguished from those above it.
+     * @param precisionBits Between 2 and 16; 7 gives under 2% error.
+     */
+    public LatencyHistogram(long highestTrackableNanos, int precisionBits) {
+        if (precisionBits < 2 || precisionBits > 16) {
+            throw new IllegalArgumentException("precisionBits must be between 2 and 16");
+        }
+        mPrecisionBits = precisionBits;
+        mSubBucketCount = 1 << precisionBits;
+        mHalfCount = mSubBucketCount / 2;
+        mHighestTrackable = Math.max(highestTrackableNanos, mSubBucketCount);
+        mCounts = new AtomicLongArray(indexFor(mHighestTrackable) + 1);
+    }
+
+    private int indexFor(long value) {
+        if (value < mSubBucketCount) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - mPrecisionBits + 1;
+        int sub = (int) (value >>> shift);
+        return mSubBucketCount + (shift - 1) * mHalfCount + (sub - mHalfCount);
+    }
+
+    // Largest value which falls in the bucket at index
+    private long highestValueAt(int index) {
+        if (index < mSubBucketCount) {
+            return index;
+        }
+        int shift = (index - mSubBucketCount) / mHalfCount + 1;
+        long sub = (index - mSubBucketCount) % mHalfCount + mHalfCount;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            // clock went backwards across threads
+            nanos = 0;
+        }
+        mCounts.incrementAndGet(indexFor(Math.min(nanos, mHighestTrackable)));
+        mTotalCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    /**
+     * @return Sum of every recorded value, so the mean over an interval can be found from the
+     * difference of two readings along with {@link #getCount()}.
+     */
+    public long getTotalNanos() {
+        return mTotalNanos.get();
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    public double getMeanNanos() {
+        long count = mTotalCount.get();
+        return count == 0 ? 0 : (double) mTotalNanos.get() / count;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return The value at or below which the given percentage of recorded values fall, or 0 if
+     * nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = mTotalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            seen += mCounts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueAt(i), mMaxNanos.get());
+            }
+        }
+        return mMaxNanos.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount.set(0);
+        mTotalNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    /**
+     * @return Count, mean, p50, p99, p99.9 and max, in milliseconds.
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.UK, "n=%d mean=%.2fms p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms",
+                getCount(), getMeanNanos() / 1e6, getValueAtPercentile(50) / 1e6,
+                getValueAtPercentile(99) / 1e6, getValueAtPercentile(99.9) / 1e6, getMaxNanos() / 1e6);
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.bluetoothlegatt.data;
+
+import java.util.HashMap;
+
+/**
+ * Fuses each device's accelerometer and magnetometer into pitch, roll and tilt compensated heading,
+ * so consumers get orientation as one record rather than joining the raw streams themselves.
+ *
+ * Axes are those of the micro:bit: lying flat and level, face up, the accelerometer reads about
+ * (0, 0, -1000) and the horizontal part of the field points along +x when heading north. Pitch is
+ * the rotation about y and roll about x, taken from the direction of gravity; the magnetometer is
+ * rotated back to level by them before the heading is taken, so tilting the board does not swing
+ * the heading as it does the board's own bearing.
+ *
+ * Optionally each vector is passed through a first order low pass filter before the angles are
+ * computed, trading a little lag for less jitter. A record is emitted for each magnetometer sample
+ * once an accelerometer sample no older than {@code maxSkewMs} has arrived for the device. Memory is
+ * fixed per device and nothing is allocated per sample. Not thread safe, it should be driven by a
+ * single consumer.
+ */
+public class OrientationFusion {
+
+    public interface Listener {
+        /**
+         * @param orientation Reused for the next record, so copy anything kept.
+         */
+        void onOrientation(Orientation orientation);
+    }
+
+    /**
+     * A fused record, angles in degrees.
+     */
+    public static class Orientation {
+        public String device;
+        // Ingress time of the magnetometer sample, and of the accelerometer sample it was fused with
+        public long timestampNanos;
+        public long accelerometerNanos;
+        // Rotation about y, -90 to 90
+        public double pitch;
+        // Rotation about x, -180 to 180
+        public double roll;
+        // 0 to 360 from magnetic north, in the same sense as the board's own bearing
+        public double heading;
+    }
+
+    private static class DeviceState {
+        final double[] accelerometer = new double[3];
+        final double[] magnetometer = new double[3];
+        boolean accelerometerSeen;
+        boolean magnetometerSeen;
+        long accelerometerNanos;
+    }
+
+    private final double mSmoothing;
+    private final long mMaxSkewNanos;
+    private final Listener mListener;
+    private final HashMap<String, DeviceState> mDevices = new HashMap<>();
+    private final Orientation mOrientation = new Orientation();
+    private long mEmitted = 0;
+    private long mStale = 0;
+
+    /**
+     * @param smoothing Weight of the previous filtered vector, from 0 for no filtering up to but
+     *                  not including 1.
+     * @param maxSkewMs Oldest accelerometer sample fused with a magnetometer sample.
+     */
+    public OrientationFusion(double smoothing, long maxSkewMs, Listener listener) {
+        if (smoothing < 0 || smoothing >= 1) {
+            throw new IllegalArgumentException("Smoothing must be in [0, 1): " + smoothing);
+        }
+        mSmoothing = smoothing;
+        mMaxSkewNanos = maxSkewMs * 1000000L;
+        mListener = listener;
+    }
+
+    public void onSample(SensorSample sample) {
+        if (sample.type != SensorSample.TYPE_ACCELEROMETER && sample.type != SensorSample.TYPE_MAGNETOMETER) {
+            return;
+        }
+        DeviceState state = mDevices.get(sample.device);
+        if (state == null) {
+            state = new DeviceState();
+            mDevices.put(sample.device, state);
+        }
+        if (sample.type == SensorSample.TYPE_ACCELEROMETER) {
+            filter(state.accelerometer, sample, state.accelerometerSeen);
+            state.accelerometerSeen = true;
+            state.accelerometerNanos = sample.timestampNanos;
+            return;
+        }
+        filter(state.magnetometer, sample, state.magnetometerSeen);
+        state.magnetometerSeen = true;
+        if (!state.accelerometerSeen) {
+            return;
+        }
+        if (sample.timestampNanos - state.accelerometerNanos > mMaxSkewNanos) {
+            mStale++;
+            return;
+        }
+        fuse(state.accelerometer, state.magnetometer, mOrientation);
+        mOrientation.device = sample.device;
+        mOrientation.timestampNanos = sample.timestampNanos;
+        mOrientation.accelerometerNanos = state.accelerometerNanos;
+        mEmitted++;
+        mListener.onOrientation(mOrientation);
+    }
+
+    private void filter(double[] vector, SensorSample sample, boolean seen) {
+        double weight = seen ? mSmoothing : 0;
+        vector[0] = weight * vector[0] + (1 - weight) * sample.x;
+        vector[1] = weight * vector[1] + (1 - weight) * sample.y;
+        vector[2] = weight * vector[2] + (1 - weight) * sample.z;
+    }
+
+    /**
+     * Computes pitch, roll and tilt compensated heading from an accelerometer and magnetometer
+     * reading in the same frame.
+     */
+    public static void fuse(double[] accelerometer, double[] magnetometer, Orientation out) {
+        double ax = accelerometer[0];
+        double ay = accelerometer[1];
+        double az = accelerometer[2];
+        double roll = Math.atan2(ay, -az);
+        double pitch = Math.atan2(-ax, Math.sqrt(ay * ay + az * az));
+        double cosRoll = Math.cos(roll);
+        double sinRoll = Math.sin(roll);
+        double cosPitch = Math.cos(pitch);
+        double sinPitch = Math.sin(pitch);
+        // Undo the roll, then the pitch, leaving the field in the level frame
+        double my = cosRoll * magnetometer[1] + sinRoll * magnetometer[2];
+        double mz = -sinRoll * magnetometer[1] + cosRoll * magnetometer[2];
+        double mx = cosPitch * magnetometer[0] - sinPitch * mz;
+        double heading = Math.toDegrees(Math.atan2(-my, mx));
+        out.pitch = Math.toDegrees(pitch);
+        out.roll = Math.toDegrees(roll);
+        out.heading = heading < 0 ? heading + 360 : heading;
+    }
+
+    public long getEmittedCount() {
+        return mEmitted;
+    }
+
+    /**
+     * @return Magnetometer samples not fused because the accelerometer sample was too old.
+     */
+    public long getStaleCount() {
+        return mStale;
+    }
+
+    @Override
+    public String toString() {
+        return "emitted=" + mEmitted + " stale=" + mStale;
+    }
+}
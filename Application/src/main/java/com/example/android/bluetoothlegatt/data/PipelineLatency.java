@@ -0,0 +1,70 @@
+package com.example.android.bluetoothlegatt.data;
+
+/**
+ * Latency histograms for each hop a sample takes from the GATT callback to MQTT delivery. Every
+ * stage is measured from {@link SensorSample#timestampNanos} or from the end of the previous stage
+ * on the same clock, {@link System#nanoTime()}.
+ */
+public class PipelineLatency {
+
+    // GATT callback to the decoded sample being published to the ring buffer
+    public static final int STAGE_DECODE = 0;
+    // GATT callback to a consumer receiving the sample
+    public static final int STAGE_RECEIVE = 1;
+    // Consumer receiving the sample to its payload being handed on for publishing
+    public static final int STAGE_CONSUMER = 2;
+    // Payload accepted for publishing to it being sent to the MQTT client
+    public static final int STAGE_QUEUED = 3;
+    // Sent to the MQTT client to deliveryComplete
+    public static final int STAGE_DELIVERY = 4;
+    // GATT callback to deliveryComplete
+    public static final int STAGE_TOTAL = 5;
+    public static final int STAGE_COUNT = 6;
+
+    private static final String[] STAGE_NAMES = {"decode", "receive", "consumer", "queued", "delivery", "total"};
+    // One minute with under 2% error takes about 2k buckets per stage
+    private static final long HIGHEST_TRACKABLE_NANOS = 60L * 1000 * 1000 * 1000;
+    private static final int PRECISION_BITS = 7;
+
+    private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_COUNT];
+
+    public PipelineLatency() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStages[i] = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS, PRECISION_BITS);
+        }
+    }
+
+    public void record(int stage, long nanos) {
+        mStages[stage].record(nanos);
+    }
+
+    public LatencyHistogram getStage(int stage) {
+        return mStages[stage];
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram stage : mStages) {
+            stage.reset();
+        }
+    }
+
+    /**
+     * @return One line per stage which has recorded anything.
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            if (mStages[i].getCount() > 0) {
+                if (builder.length() > 0) {
+                    builder.append('\n');
+                }
+                builder.append(STAGE_NAMES[i]).append(": ").append(mStages[i]);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,11 @@
+package com.example.android.bluetoothlegatt.data;
+
+/**
+ * Receives samples from a {@link SampleRingBuffer} on the consumer's own thread.
+ */
+public interface SampleHandler {
+    /**
+     * @param sample The slot holding the sample. It is reused once this method returns.
+     */
+    void onSample(SensorSample sample);
+}
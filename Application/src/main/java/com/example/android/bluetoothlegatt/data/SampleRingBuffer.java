@@ -0,0 +1,193 @@
+package com.example.android.bluetoothlegatt.data;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/multi-consumer ring of preallocated {@link SensorSample} slots.
+ *
+ * The producer (the GATT callback thread) calls {@link #claim()}, fills in the returned slot and
+ * then {@link #publish()}es it; neither call allocates or blocks. Where there are several producing
+ * threads they must hold a common lock from claim to publish. Each consumer added with
+ * {@link #addConsumer(String, SampleHandler)} gets its own thread and sequence, and sees every
+ * sample published after it was added. When the slowest consumer is a full ring behind, new samples
+ * are dropped rather than overwriting unread slots.
+ */
+public class SampleRingBuffer {
+
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    // Longest removeConsumer waits for the consumer's current sample to be handled
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    private final SensorSample[] mSlots;
+    private final int mMask;
+    // Sequence of the last published slot, written only by the producer
+    private final AtomicLong mPublished = new AtomicLong(-1);
+    private final AtomicLong mDropped = new AtomicLong();
+    private final CopyOnWriteArrayList<Consumer> mConsumers = new CopyOnWriteArrayList<>();
+    // Producer only state
+    private long mClaimed = -1;
+    private long mGate = -1;
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two.
+     */
+    public SampleRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mSlots = new SensorSample[size];
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new SensorSample();
+        }
+        mMask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * Claims the next slot for writing. Must only be called from the producer thread, and every
+     * successful claim must be followed by {@link #publish()}.
+     *
+     * @return The slot to fill in, or null if the ring is full and the sample should be dropped.
+     */
+    public SensorSample claim() {
+        long next = mClaimed + 1;
+        long wrapPoint = next - mSlots.length;
+        if (wrapPoint > mGate) {
+            mGate = minimumConsumerSequence(mClaimed);
+            if (wrapPoint > mGate) {
+                mDropped.incrementAndGet();
+                return null;
+            }
+        }
+        mClaimed = next;
+        return mSlots[(int) (next & mMask)];
+    }
+
+    /**
+     * Makes the last claimed slot visible to the consumers.
+     */
+    public void publish() {
+        mPublished.set(mClaimed);
+        for (Consumer consumer : mConsumers) {
+            if (consumer.mWaiting) {
+                LockSupport.unpark(consumer.mThread);
+            }
+        }
+    }
+
+    /**
+     * @return The number of samples dropped because a consumer fell a full ring behind.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return The number of samples published so far.
+     */
+    public long getPublishedCount() {
+        return mPublished.get() + 1;
+    }
+
+    /**
+     * Starts a consumer thread which delivers every subsequently published sample to the handler.
+     */
+    public Consumer addConsumer(String name, SampleHandler handler) {
+        Consumer consumer = new Consumer(name, handler, mPublished.get());
+        mConsumers.add(consumer);
+        consumer.mThread.start();
+        return consumer;
+    }
+
+    /**
+     * Stops the consumer's thread and waits for it to finish, so its handler is not called once this
+     * returns. Samples it has not yet handled are discarded.
+     */
+    public void removeConsumer(Consumer consumer) {
+        if (mConsumers.remove(consumer)) {
+            consumer.stop();
+            consumer.join();
+        }
+    }
+
+    /**
+     * Stops all consumers.
+     */
+    public void close() {
+        for (Consumer consumer : mConsumers) {
+            removeConsumer(consumer);
+        }
+    }
+
+    private long minimumConsumerSequence(long minimum) {
+        for (Consumer consumer : mConsumers) {
+            minimum = Math.min(minimum, consumer.mSequence.get());
+        }
+        return minimum;
+    }
+
+    public class Consumer implements Runnable {
+        private final SampleHandler mHandler;
+        private final Thread mThread;
+        // Sequence of the last slot this consumer has finished with
+        private final AtomicLong mSequence;
+        private volatile boolean mWaiting = false;
+        private volatile boolean mRunning = true;
+
+        private Consumer(String name, SampleHandler handler, long sequence) {
+            mHandler = handler;
+            mSequence = new AtomicLong(sequence);
+            mThread = new Thread(this, name);
+            mThread.setDaemon(true);
+        }
+
+        /**
+         * @return The number of published samples this consumer has yet to handle.
+         */
+        public long getBacklog() {
+            return mPublished.get() - mSequence.get();
+        }
+
+        @Override
+        public void run() {
+            long next = mSequence.get() + 1;
+            while (mRunning) {
+                long available = mPublished.get();
+                if (available < next) {
+                    mWaiting = true;
+                    // re-check after advertising that we are waiting so a publish is never missed
+                    if (mPublished.get() < next && mRunning) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                    mWaiting = false;
+                    continue;
+                }
+                for (; next <= available && mRunning; next++) {
+                    mHandler.onSample(mSlots[(int) (next & mMask)]);
+                }
+                mSequence.lazySet(next - 1);
+            }
+        }
+
+        private void stop() {
+            mRunning = false;
+            LockSupport.unpark(mThread);
+        }
+
+        private void join() {
+            if (Thread.currentThread() == mThread) {
+                // Removed from its own handler
+                return;
+            }
+            try {
+                mThread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
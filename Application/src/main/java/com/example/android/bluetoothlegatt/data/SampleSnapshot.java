@@ -0,0 +1,84 @@
+package com.example.android.bluetoothlegatt.data;
+
+/**
+ * Latest value of each sample type, written by a consumer at whatever rate samples arrive and read
+ * by a renderer at its own rate. A type is only marked changed when its value differs from the one
+ * held, so the renderer can skip anything the reader has already seen. Intermediate values written
+ * between two reads are overwritten, not queued.
+ */
+public class SampleSnapshot {
+
+    private final SensorSample[] mLatest = new SensorSample[SensorSample.TYPE_COUNT];
+    private final boolean[] mPresent = new boolean[SensorSample.TYPE_COUNT];
+    private int mChanged;
+    private long mWritten;
+    private long mChangedWrites;
+
+    public SampleSnapshot() {
+        for (int i = 0; i < mLatest.length; i++) {
+            mLatest[i] = new SensorSample();
+        }
+    }
+
+    /**
+     * Copies the sample in.
+     *
+     * @return True if this is the first change since the last {@link #read}, so the reader needs
+     *         waking. False if the value was unchanged or a wake up is already due.
+     */
+    public synchronized boolean write(SensorSample sample) {
+        mWritten++;
+        SensorSample latest = mLatest[sample.type];
+        if (mPresent[sample.type] && latest.value == sample.value
+                && latest.x == sample.x && latest.y == sample.y && latest.z == sample.z) {
+            return false;
+        }
+        mPresent[sample.type] = true;
+        latest.copyFrom(sample);
+        mChangedWrites++;
+        boolean wake = mChanged == 0;
+        mChanged |= 1 << sample.type;
+        return wake;
+    }
+
+    /**
+     * Copies each type changed since the last call into {@code out}, which must have a sample for
+     * every type.
+     *
+     * @return Bit mask of the types copied, 1 << type.
+     */
+    public synchronized int read(SensorSample[] out) {
+        int changed = mChanged;
+        for (int type = 0; type < SensorSample.TYPE_COUNT; type++) {
+            if ((changed & (1 << type)) != 0) {
+                out[type].copyFrom(mLatest[type]);
+            }
+        }
+        mChanged = 0;
+        return changed;
+    }
+
+    /**
+     * Forgets every value, so the next of each type counts as a change.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mPresent.length; i++) {
+            mPresent[i] = false;
+        }
+        mChanged = 0;
+    }
+
+    /**
+     * @return Samples written, including unchanged values.
+     */
+    public synchronized long getWrittenCount() {
+        return mWritten;
+    }
+
+    /**
+     * @return Samples written which changed the held value.
+     */
+    public synchronized long getChangedCount() {
+        return mChangedWrites;
+    }
+}
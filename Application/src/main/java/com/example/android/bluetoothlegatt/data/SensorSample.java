@@ -0,0 +1,42 @@
+package com.example.android.bluetoothlegatt.data;
+
+/**
+ * A single decoded reading from the micro:bit. Instances are preallocated as the slots of a
+ * {@link SampleRingBuffer} and overwritten in place, so consumers must copy any values they want to
+ * keep beyond {@link SampleHandler#onSample(SensorSample)}.
+ */
+public class SensorSample {
+
+    public static final int TYPE_ACCELEROMETER = 0;
+    public static final int TYPE_ACCELEROMETER_PERIOD = 1;
+    public static final int TYPE_TEMPERATURE = 2;
+    public static final int TYPE_TEMPERATURE_PERIOD = 3;
+    public static final int TYPE_BUTTON_A = 4;
+    public static final int TYPE_BUTTON_B = 5;
+    public static final int TYPE_MAGNETOMETER = 6;
+    public static final int TYPE_MAGNETOMETER_PERIOD = 7;
+    public static final int TYPE_MAGNETOMETER_BEARING = 8;
+    public static final int TYPE_COUNT = 9;
+
+    public int type;
+    // address of the micro:bit the sample came from
+    public String device;
+    // raw axes for the accelerometer (milli-g) and magnetometer
+    public short x;
+    public short y;
+    public short z;
+    // period (ms), temperature (C), button state or bearing (degrees) for the scalar types
+    public int value;
+    // System.nanoTime() when the value was received from the device
+    public long timestampNanos;
+
+    public void copyFrom(SensorSample other) {
+        type = other.type;
+        device = other.device;
+        x = other.x;
+        y = other.y;
+        z = other.z;
+        value = other.value;
+        timestampNanos = other.timestampNanos;
+    }
+}
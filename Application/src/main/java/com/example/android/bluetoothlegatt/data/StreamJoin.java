@@ -0,0 +1,307 @@
+package com.example.android.bluetoothlegatt.data;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Aligns two triplet streams of each device by ingress timestamp, e.g. the accelerometer with the
+ * magnetometer, so consumers get one stream of frames holding both rather than two independent
+ * streams at different periods.
+ *
+ * A frame is emitted for every sample of the primary stream. The secondary stream's value at that
+ * time is taken either from its nearest sample or by linear interpolation between the samples
+ * either side, which must be within {@code toleranceMs} of the primary sample; a primary sample
+ * with no secondary sample close enough is counted as unmatched and dropped. Primary samples are
+ * held in a small jitter buffer until a secondary sample at or after their time arrives, or until
+ * the device's stream time has moved {@code maxDelayMs} past them, whichever is first. Samples
+ * arriving older than one already resolved are counted as late and dropped.
+ *
+ * Buffers are fixed per device and nothing is allocated per sample. Not thread safe, it should be
+ * driven by a single consumer.
+ */
+public class StreamJoin {
+
+    public interface Listener {
+        /**
+         * @param frame Reused for the next frame, so copy anything kept.
+         */
+        void onFrame(AlignedFrame frame);
+    }
+
+    /**
+     * A primary sample with the secondary stream's value at its time, in raw sensor units.
+     */
+    public static class AlignedFrame {
+        public String device;
+        // Ingress time of the primary sample
+        public long timestampNanos;
+        public final short[] primary = new short[3];
+        public final double[] secondary = new double[3];
+        // True if the secondary value was interpolated, otherwise it is that of the nearest sample
+        public boolean interpolated;
+        // Ingress time of the nearest secondary sample relative to the primary sample
+        public long offsetNanos;
+    }
+
+    // Ring of triplet samples, oldest first
+    private static class Buffer {
+        final long[] nanos;
+        final short[] values;
+        int head = 0;
+        int size = 0;
+
+        Buffer(int capacity) {
+            nanos = new long[capacity];
+            values = new short[capacity * 3];
+        }
+
+        int slot(int i) {
+            return (head + i) % nanos.length;
+        }
+
+        boolean isFull() {
+            return size == nanos.length;
+        }
+
+        void add(SensorSample sample) {
+            int slot = slot(size);
+            nanos[slot] = sample.timestampNanos;
+            values[slot * 3] = sample.x;
+            values[slot * 3 + 1] = sample.y;
+            values[slot * 3 + 2] = sample.z;
+            size++;
+        }
+
+        void removeFirst() {
+            head = (head + 1) % nanos.length;
+            size--;
+        }
+    }
+
+    private static class DeviceState {
+        final Buffer primary;
+        final Buffer secondary;
+        // Latest ingress time seen on either stream
+        long streamNanos = Long.MIN_VALUE;
+        // Time of the last primary sample resolved
+        long resolvedNanos = Long.MIN_VALUE;
+
+        DeviceState(int capacity) {
+            primary = new Buffer(capacity);
+            secondary = new Buffer(capacity);
+        }
+    }
+
+    private final int mPrimaryType;
+    private final int mSecondaryType;
+    private final long mToleranceNanos;
+    private final long mMaxDelayNanos;
+    private final boolean mInterpolate;
+    private final int mCapacity;
+    private final Listener mListener;
+    private final HashMap<String, DeviceState> mDevices = new HashMap<>();
+    private final AlignedFrame mFrame = new AlignedFrame();
+    private long mInterpolated = 0;
+    private long mNearest = 0;
+    private long mUnmatched = 0;
+    private long mLate = 0;
+    private long mOverflowed = 0;
+
+    /**
+     * @param primaryType Sample type a frame is emitted for.
+     * @param secondaryType Sample type aligned to it.
+     * @param toleranceMs Furthest a secondary sample may be from the primary sample to be used.
+     * @param maxDelayMs Longest a primary sample is held waiting for a later secondary sample.
+     * @param interpolate True to interpolate between the secondary samples either side, false to
+     *                    take the nearest.
+     * @param capacity Samples buffered per stream and device.
+     */
+    public StreamJoin(int primaryType, int secondaryType, long toleranceMs, long maxDelayMs,
+                      boolean interpolate, int capacity, Listener listener) {
+        if (!isTriplet(primaryType) || !isTriplet(secondaryType) || primaryType == secondaryType) {
+            throw new IllegalArgumentException("Can only join two different triplet types, not "
+                    + primaryType + " and " + secondaryType);
+        }
+        if (toleranceMs < 0 || maxDelayMs < 0 || capacity < 2) {
+            throw new IllegalArgumentException("Invalid tolerance " + toleranceMs + " ms, delay "
+                    + maxDelayMs + " ms or capacity " + capacity);
+        }
+        mPrimaryType = primaryType;
+        mSecondaryType = secondaryType;
+        mToleranceNanos = toleranceMs * 1000000L;
+        mMaxDelayNanos = maxDelayMs * 1000000L;
+        mInterpolate = interpolate;
+        mCapacity = capacity;
+        mListener = listener;
+    }
+
+    private static boolean isTriplet(int sampleType) {
+        return sampleType == SensorSample.TYPE_ACCELEROMETER || sampleType == SensorSample.TYPE_MAGNETOMETER;
+    }
+
+    public void onSample(SensorSample sample) {
+        if (sample.type != mPrimaryType && sample.type != mSecondaryType) {
+            return;
+        }
+        DeviceState state = mDevices.get(sample.device);
+        if (state == null) {
+            state = new DeviceState(mCapacity);
+            mDevices.put(sample.device, state);
+        }
+        if (sample.timestampNanos < state.resolvedNanos) {
+            mLate++;
+            return;
+        }
+        Buffer buffer = sample.type == mPrimaryType ? state.primary : state.secondary;
+        if (buffer.size > 0 && sample.timestampNanos < buffer.nanos[buffer.slot(buffer.size - 1)]) {
+            mLate++;
+            return;
+        }
+        state.streamNanos = Math.max(state.streamNanos, sample.timestampNanos);
+        if (sample.type == mPrimaryType) {
+            if (state.primary.isFull()) {
+                // Resolve the oldest with what there is, rather than holding more
+                mOverflowed++;
+                resolve(state, sample.device);
+            }
+            state.primary.add(sample);
+        } else {
+            if (state.secondary.isFull()) {
+                state.secondary.removeFirst();
+            }
+            state.secondary.add(sample);
+        }
+        drain(state, sample.device);
+    }
+
+    /**
+     * Resolves the device's buffered primary samples with the secondary samples already received,
+     * e.g. when it disconnects.
+     */
+    public void flush(String device) {
+        DeviceState state = mDevices.get(device);
+        if (state == null) {
+            return;
+        }
+        while (state.primary.size > 0) {
+            resolve(state, device);
+        }
+    }
+
+    /**
+     * Resolves every buffered primary sample with the secondary samples already received.
+     */
+    public void flush() {
+        for (Map.Entry<String, DeviceState> entry : mDevices.entrySet()) {
+            DeviceState state = entry.getValue();
+            while (state.primary.size > 0) {
+                resolve(state, entry.getKey());
+            }
+        }
+    }
+
+    private void drain(DeviceState state, String device) {
+        Buffer primary = state.primary;
+        Buffer secondary = state.secondary;
+        while (primary.size > 0) {
+            long nanos = primary.nanos[primary.head];
+            boolean bracketed = secondary.size > 0 && secondary.nanos[secondary.slot(secondary.size - 1)] >= nanos;
+            if (!bracketed && state.streamNanos - nanos < mMaxDelayNanos) {
+                return;
+            }
+            resolve(state, device);
+        }
+    }
+
+    // Emits or drops the oldest primary sample
+    private void resolve(DeviceState state, String device) {
+        Buffer primary = state.primary;
+        Buffer secondary = state.secondary;
+        int slot = primary.head;
+        long nanos = primary.nanos[slot];
+        primary.removeFirst();
+        state.resolvedNanos = nanos;
+
+        // Last secondary sample at or before the primary sample, and the first after it
+        int before = -1;
+        int after = -1;
+        for (int i = 0; i < secondary.size; i++) {
+            if (secondary.nanos[secondary.slot(i)] <= nanos) {
+                before = i;
+            } else {
+                after = i;
+                break;
+            }
+        }
+        // Older secondary samples cannot be needed by later primary samples
+        for (int i = 0; i < before; i++) {
+            secondary.removeFirst();
+        }
+        if (before > 0) {
+            after = after < 0 ? -1 : after - before;
+            before = 0;
+        }
+        long beforeNanos = before < 0 ? Long.MIN_VALUE : secondary.nanos[secondary.slot(before)];
+        long afterNanos = after < 0 ? Long.MAX_VALUE : secondary.nanos[secondary.slot(after)];
+        boolean beforeClose = before >= 0 && nanos - beforeNanos <= mToleranceNanos;
+        boolean afterClose = after >= 0 && afterNanos - nanos <= mToleranceNanos;
+        if (!beforeClose && !afterClose) {
+            mUnmatched++;
+            return;
+        }
+
+        AlignedFrame frame = mFrame;
+        frame.device = device;
+        frame.timestampNanos = nanos;
+        frame.primary[0] = primary.values[slot * 3];
+        frame.primary[1] = primary.values[slot * 3 + 1];
+        frame.primary[2] = primary.values[slot * 3 + 2];
+        int nearest = !afterClose || (beforeClose && nanos - beforeNanos <= afterNanos - nanos) ? before : after;
+        int nearestSlot = secondary.slot(nearest);
+        frame.offsetNanos = secondary.nanos[nearestSlot] - nanos;
+        if (mInterpolate && beforeClose && afterClose) {
+            int beforeSlot = secondary.slot(before);
+            int afterSlot = secondary.slot(after);
+            double fraction = (double) (nanos - beforeNanos) / (afterNanos - beforeNanos);
+            for (int axis = 0; axis < 3; axis++) {
+                short from = secondary.values[beforeSlot * 3 + axis];
+                short to = secondary.values[afterSlot * 3 + axis];
+                frame.secondary[axis] = from + (to - from) * fraction;
+            }
+            frame.interpolated = true;
+            mInterpolated++;
+        } else {
+            for (int axis = 0; axis < 3; axis++) {
+                frame.secondary[axis] = secondary.values[nearestSlot * 3 + axis];
+            }
+            frame.interpolated = false;
+            mNearest++;
+        }
+        mListener.onFrame(frame);
+    }
+
+    public long getEmittedCount() {
+        return mInterpolated + mNearest;
+    }
+
+    /**
+     * @return Primary samples dropped for want of a secondary sample within the tolerance.
+     */
+    public long getUnmatchedCount() {
+        return mUnmatched;
+    }
+
+    /**
+     * @return Samples dropped for arriving older than one already resolved.
+     */
+    public long getLateCount() {
+        return mLate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.UK, "interpolated=%d nearest=%d unmatched=%d late=%d overflowed=%d",
+                mInterpolated, mNearest, mUnmatched, mLate, mOverflowed);
+    }
+}
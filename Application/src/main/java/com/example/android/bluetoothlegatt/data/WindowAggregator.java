@@ -0,0 +1,195 @@
+package com.example.android.bluetoothlegatt.data;
+
+/**
+ * Tumbling or sliding window statistics over the triplet samples of one sensor on one device, using
+ * constant memory.
+ *
+ * Time is divided into panes of one slide. Each pane keeps primitive accumulators for its samples,
+ * and a window is summarised by combining the panes it covers, so a sample is only accumulated once
+ * however many windows it falls in. Windows are aligned to multiples of the slide and are emitted
+ * when the first sample past their end arrives, or on {@link #flush()}. Windows without samples are
+ * not emitted. With a slide equal to the window length the windows tumble.
+ */
+public class WindowAggregator {
+
+    public interface Listener {
+        void onWindow(WindowSummary summary);
+    }
+
+    private final long mPaneNanos;
+    private final int mPaneCount;
+    private final Listener mListener;
+    private final WindowSummary mSummary = new WindowSummary();
+
+    // Accumulators for each pane in the ring, indexed by pane number modulo mPaneCount
+    private final long[] mPaneNumbers;
+    private final int[] mCounts;
+    private final long[] mSums;
+    private final long[] mSumSquares;
+    private final int[] mMins;
+    private final int[] mMaxes;
+    private final double[] mMagnitudeSums;
+    private final double[] mMagnitudeMaxes;
+    private final long[] mFirstNanos;
+    private final long[] mLastNanos;
+    private long mCurrentPane = -1;
+
+    /**
+     * @param windowMs Length of each window.
+     * @param slideMs Time between the starts of consecutive windows, which must divide the window
+     *                length.
+     */
+    public WindowAggregator(long windowMs, long slideMs, Listener listener) {
+        if (slideMs <= 0 || windowMs < slideMs || windowMs % slideMs != 0) {
+            throw new IllegalArgumentException("Window of " + windowMs + " ms is not a multiple of slide " + slideMs + " ms");
+        }
+        mPaneNanos = slideMs * 1000000L;
+        mPaneCount = (int) (windowMs / slideMs);
+        mListener = listener;
+        mPaneNumbers = new long[mPaneCount];
+        mCounts = new int[mPaneCount];
+        mSums = new long[mPaneCount * 3];
+        mSumSquares = new long[mPaneCount * 3];
+        mMins = new int[mPaneCount * 3];
+        mMaxes = new int[mPaneCount * 3];
+        mMagnitudeSums = new double[mPaneCount];
+        mMagnitudeMaxes = new double[mPaneCount];
+        mFirstNanos = new long[mPaneCount];
+        mLastNanos = new long[mPaneCount];
+        for (int i = 0; i < mPaneCount; i++) {
+            mPaneNumbers[i] = -1;
+        }
+    }
+
+    public void add(SensorSample sample) {
+        long pane = sample.timestampNanos / mPaneNanos;
+        if (pane > mCurrentPane) {
+            if (mCurrentPane >= 0) {
+                emitUntil(pane);
+            }
+            mCurrentPane = pane;
+        } else {
+            // Late, count it in the latest pane
+            pane = mCurrentPane;
+        }
+        mSummary.type = sample.type;
+        mSummary.device = sample.device;
+
+        int slot = (int) (pane % mPaneCount);
+        if (mPaneNumbers[slot] != pane) {
+            resetPane(slot, pane, sample.timestampNanos);
+        }
+        mCounts[slot]++;
+        accumulate(slot * 3, sample.x);
+        accumulate(slot * 3 + 1, sample.y);
+        accumulate(slot * 3 + 2, sample.z);
+        // Widened first, as three squares near full scale overflow an int
+        double magnitude = Math.sqrt((double) sample.x * sample.x + (double) sample.y * sample.y
+                + (double) sample.z * sample.z);
+        mMagnitudeSums[slot] += magnitude;
+        mMagnitudeMaxes[slot] = Math.max(mMagnitudeMaxes[slot], magnitude);
+        mLastNanos[slot] = sample.timestampNanos;
+    }
+
+    private void accumulate(int index, int value) {
+        mSums[index] += value;
+        mSumSquares[index] += value * value;
+        mMins[index] = Math.min(mMins[index], value);
+        mMaxes[index] = Math.max(mMaxes[index], value);
+    }
+
+    private void resetPane(int slot, long pane, long firstNanos) {
+        mPaneNumbers[slot] = pane;
+        mCounts[slot] = 0;
+        for (int axis = slot * 3; axis < slot * 3 + 3; axis++) {
+            mSums[axis] = 0;
+            mSumSquares[axis] = 0;
+            mMins[axis] = Integer.MAX_VALUE;
+            mMaxes[axis] = Integer.MIN_VALUE;
+        }
+        mMagnitudeSums[slot] = 0;
+        mMagnitudeMaxes[slot] = 0;
+        mFirstNanos[slot] = firstNanos;
+    }
+
+    // Emits each window ending after the current pane and up to the start of endPane
+    private void emitUntil(long endPane) {
+        long last = Math.min(endPane, mCurrentPane + mPaneCount);
+        for (long end = mCurrentPane + 1; end <= last; end++) {
+            emitWindow(end);
+        }
+    }
+
+    /**
+     * Emits the windows which have received samples but not yet ended, e.g. when the device
+     * disconnects. Those samples are then discarded.
+     */
+    public void flush() {
+        if (mCurrentPane < 0) {
+            return;
+        }
+        emitUntil(mCurrentPane + mPaneCount);
+        for (int i = 0; i < mPaneCount; i++) {
+            mPaneNumbers[i] = -1;
+        }
+        mCurrentPane = -1;
+    }
+
+    // Combines the panes of the window which ends at the start of endPane
+    private void emitWindow(long endPane) {
+        WindowSummary summary = mSummary;
+        int count = 0;
+        long firstNanos = Long.MAX_VALUE;
+        long lastNanos = 0;
+        double magnitudeSum = 0;
+        double magnitudeMax = 0;
+        long sumX = 0, sumY = 0, sumZ = 0;
+        long squaresX = 0, squaresY = 0, squaresZ = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            summary.min[axis] = Integer.MAX_VALUE;
+            summary.max[axis] = Integer.MIN_VALUE;
+        }
+        for (long pane = endPane - mPaneCount; pane < endPane; pane++) {
+            if (pane < 0) {
+                continue;
+            }
+            int slot = (int) (pane % mPaneCount);
+            if (mPaneNumbers[slot] != pane || mCounts[slot] == 0) {
+                continue;
+            }
+            count += mCounts[slot];
+            firstNanos = Math.min(firstNanos, mFirstNanos[slot]);
+            lastNanos = Math.max(lastNanos, mLastNanos[slot]);
+            magnitudeSum += mMagnitudeSums[slot];
+            magnitudeMax = Math.max(magnitudeMax, mMagnitudeMaxes[slot]);
+            int base = slot * 3;
+            sumX += mSums[base];
+            sumY += mSums[base + 1];
+            sumZ += mSums[base + 2];
+            squaresX += mSumSquares[base];
+            squaresY += mSumSquares[base + 1];
+            squaresZ += mSumSquares[base + 2];
+            for (int axis = 0; axis < 3; axis++) {
+                summary.min[axis] = Math.min(summary.min[axis], mMins[base + axis]);
+                summary.max[axis] = Math.max(summary.max[axis], mMaxes[base + axis]);
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        summary.count = count;
+        summary.startNanos = (endPane - mPaneCount) * mPaneNanos;
+        summary.endNanos = endPane * mPaneNanos;
+        summary.firstSampleNanos = firstNanos;
+        summary.lastSampleNanos = lastNanos;
+        summary.mean[0] = (double) sumX / count;
+        summary.mean[1] = (double) sumY / count;
+        summary.mean[2] = (double) sumZ / count;
+        summary.rms[0] = Math.sqrt((double) squaresX / count);
+        summary.rms[1] = Math.sqrt((double) squaresY / count);
+        summary.rms[2] = Math.sqrt((double) squaresZ / count);
+        summary.meanMagnitude = magnitudeSum / count;
+        summary.maxMagnitude = magnitudeMax;
+        mListener.onWindow(summary);
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.android.bluetoothlegatt.data;
+
+/**
+ * Per-axis statistics of the triplet samples in one window, in raw sensor units. Reused by the
+ * {@link WindowAggregator} which fills it in, so listeners must copy anything they keep.
+ */
+public class WindowSummary {
+
+    public int type;
+    public String device;
+    // System.nanoTime() bounds of the window, and ingress time of its first and last samples
+    public long startNanos;
+    public long endNanos;
+    public long firstSampleNanos;
+    public long lastSampleNanos;
+    public int count;
+    // x, y and z
+    public final double[] mean = new double[3];
+    public final int[] min = new int[3];
+    public final int[] max = new int[3];
+    public final double[] rms = new double[3];
+    // of the (x, y, z) vector of each sample
+    public double meanMagnitude;
+    public double maxMagnitude;
+}
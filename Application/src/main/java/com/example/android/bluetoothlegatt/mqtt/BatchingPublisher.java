@@ -0,0 +1,243 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregates payloads per topic and forwards them to the next {@link MessageSink} as a single framed
+ * message once either {@code maxSamples} payloads or {@code maxDelayMs} have accumulated.
+ *
+ * A batch frame is laid out as
+ * <pre>
+ * offset size  field
+ *  0     1     batch version (currently 1)
+ *  1     2     count, little-endian uint16
+ *  3     ...   count entries of: little-endian uint16 length, then that many payload bytes
+ * </pre>
+ * With {@code maxSamples} of 1 batching is disabled and payloads are passed through unframed, which
+ * is what consumers of the text topics expect.
+ *
+ * Frames are handed to the sink while holding the lock, so a frame drained by the flush timer cannot
+ * be overtaken by a later one drained on the caller's thread, and each topic's frames reach the sink
+ * in order. After {@link #close()} each payload is sent at once as a frame of its own.
+ */
+public class BatchingPublisher implements MessageSink {
+
+    public static final int BATCH_VERSION = 1;
+    public static final int BATCH_HEADER_LENGTH = 3;
+    private static final int INITIAL_BATCH_BYTES = 512;
+
+    private final MessageSink mSink;
+    private final int mMaxSamples;
+    private final long mMaxDelayMs;
+    private final HashMap<String, Batch> mBatches = new HashMap<>();
+    private final ScheduledExecutorService mTimer;
+    private final Stats mStats = new Stats();
+    private boolean mClosed = false;
+
+    public BatchingPublisher(MessageSink sink, int maxSamples, long maxDelayMs) {
+        mSink = sink;
+        mMaxSamples = Math.max(1, Math.min(maxSamples, 0xFFFF));
+        mMaxDelayMs = maxDelayMs;
+        mTimer = mMaxSamples > 1 ? Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BatchingPublisher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+    }
+
+    @Override
+    public void publish(String topic, byte[] payload, long timestampNanos) {
+        if (mMaxSamples == 1) {
+            mSink.publish(topic, payload, timestampNanos);
+            return;
+        }
+        synchronized (this) {
+            Batch batch = mBatches.get(topic);
+            if (batch == null) {
+                batch = new Batch(topic);
+                mBatches.put(topic, batch);
+            }
+            batch.add(payload, timestampNanos);
+            if (mClosed) {
+                // The timer has stopped, e.g. a sample handled while the pipeline was closing
+                batch.flush(Stats.TRIGGER_FORCED);
+            } else if (batch.mCount >= mMaxSamples) {
+                batch.flush(Stats.TRIGGER_SIZE);
+            } else if (batch.mCount == 1) {
+                batch.mFlushTimer = mTimer.schedule(batch, mMaxDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Immediately publishes every pending batch, e.g. before disconnecting or shutting down.
+     */
+    public synchronized void flushAll() {
+        if (mMaxSamples == 1) {
+            return;
+        }
+        for (Batch batch : mBatches.values()) {
+            if (batch.mCount > 0) {
+                batch.flush(Stats.TRIGGER_FORCED);
+            }
+        }
+    }
+
+    /**
+     * Flushes pending batches and stops the flush timer. Payloads published afterwards are sent
+     * unbatched.
+     */
+    public void close() {
+        synchronized (this) {
+            flushAll();
+            mClosed = true;
+        }
+        if (mTimer != null) {
+            mTimer.shutdownNow();
+        }
+    }
+
+    public synchronized Stats getStats() {
+        Stats copy = new Stats();
+        copy.copyFrom(mStats);
+        return copy;
+    }
+
+    private class Batch implements Runnable {
+        private final String mTopic;
+        private byte[] mBuffer = new byte[INITIAL_BATCH_BYTES];
+        private int mLength = BATCH_HEADER_LENGTH;
+        private int mCount = 0;
+        private long mFirstNanos;
+        private long mOldestSampleNanos;
+        private ScheduledFuture<?> mFlushTimer;
+
+        Batch(String topic) {
+            mTopic = topic;
+        }
+
+        void add(byte[] payload, long timestampNanos) {
+            int needed = mLength + 2 + payload.length;
+            if (needed > mBuffer.length) {
+                byte[] grown = new byte[Math.max(needed, mBuffer.length * 2)];
+                System.arraycopy(mBuffer, 0, grown, 0, mLength);
+                mBuffer = grown;
+            }
+            if (mCount == 0) {
+                mFirstNanos = System.nanoTime();
+                mOldestSampleNanos = timestampNanos;
+            }
+            mBuffer[mLength] = (byte) payload.length;
+            mBuffer[mLength + 1] = (byte) (payload.length >> 8);
+            System.arraycopy(payload, 0, mBuffer, mLength + 2, payload.length);
+            mLength = needed;
+            mCount++;
+        }
+
+        // Called with the lock held
+        void flush(int trigger) {
+            long oldestNanos = mOldestSampleNanos;
+            mSink.publish(mTopic, drain(trigger), oldestNanos);
+        }
+
+        byte[] drain(int trigger) {
+            mBuffer[0] = (byte) BATCH_VERSION;
+            mBuffer[1] = (byte) mCount;
+            mBuffer[2] = (byte) (mCount >> 8);
+            byte[] frame = new byte[mLength];
+            System.arraycopy(mBuffer, 0, frame, 0, mLength);
+            mStats.record(trigger, mCount, (System.nanoTime() - mFirstNanos) / 1000L);
+            if (mFlushTimer != null) {
+                mFlushTimer.cancel(false);
+                mFlushTimer = null;
+            }
+            mLength = BATCH_HEADER_LENGTH;
+            mCount = 0;
+            return frame;
+        }
+
+        // Flush timer for the batch's oldest payload
+        @Override
+        public void run() {
+            synchronized (BatchingPublisher.this) {
+                if (mCount == 0) {
+                    return;
+                }
+                mFlushTimer = null;
+                flush(Stats.TRIGGER_TIMER);
+            }
+        }
+    }
+
+    /**
+     * Batch sizes and flush latencies achieved so far, used to tune {@code maxSamples} and
+     * {@code maxDelayMs} against end-to-end delay.
+     */
+    public static class Stats {
+        static final int TRIGGER_SIZE = 0;
+        static final int TRIGGER_TIMER = 1;
+        static final int TRIGGER_FORCED = 2;
+
+        public long batches;
+        public long samples;
+        public int maxBatchSize;
+        public long sizeFlushes;
+        public long timerFlushes;
+        public long forcedFlushes;
+        // Time from the first payload entering a batch until it was flushed
+        public long totalFlushLatencyMicros;
+        public long maxFlushLatencyMicros;
+
+        void record(int trigger, int size, long latencyMicros) {
+            batches++;
+            samples += size;
+            maxBatchSize = Math.max(maxBatchSize, size);
+            totalFlushLatencyMicros += latencyMicros;
+            maxFlushLatencyMicros = Math.max(maxFlushLatencyMicros, latencyMicros);
+            if (trigger == TRIGGER_SIZE) {
+                sizeFlushes++;
+            } else if (trigger == TRIGGER_TIMER) {
+                timerFlushes++;
+            } else {
+                forcedFlushes++;
+            }
+        }
+
+        void copyFrom(Stats other) {
+            batches = other.batches;
+            samples = other.samples;
+            maxBatchSize = other.maxBatchSize;
+            sizeFlushes = other.sizeFlushes;
+            timerFlushes = other.timerFlushes;
+            forcedFlushes = other.forcedFlushes;
+            totalFlushLatencyMicros = other.totalFlushLatencyMicros;
+            maxFlushLatencyMicros = other.maxFlushLatencyMicros;
+        }
+
+        public double getMeanBatchSize() {
+            return batches == 0 ? 0 : (double) samples / batches;
+        }
+
+        public double getMeanFlushLatencyMs() {
+            return batches == 0 ? 0 : totalFlushLatencyMicros / 1000.0 / batches;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.UK,
+                    "batches=%d samples=%d meanSize=%.1f maxSize=%d flushes(size/timer/forced)=%d/%d/%d " +
+                            "meanLatency=%.1fms maxLatency=%.1fms",
+                    batches, samples, getMeanBatchSize(), maxBatchSize, sizeFlushes, timerFlushes,
+                    forcedFlushes, getMeanFlushLatencyMs(), maxFlushLatencyMicros / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+import com.example.android.bluetoothlegatt.Utility;
+import com.example.android.bluetoothlegatt.data.SensorSample;
+
+/**
+ * Versioned binary MQTT payload for sensor samples, and the reference decoder for it.
+ *
+ * All multi-byte fields are little-endian, matching the micro:bit characteristic values.
+ * <pre>
+ * offset size field
+ *  0     1    version (currently 1)
+ *  1     1    schema id, one of the SCHEMA_ constants, which identifies the sensor and body layout
+ *  2     6    device id, the Bluetooth address of the micro:bit most significant byte first
+ *  8     4    sequence number, per schema, wrapping uint32
+ * 12     8    timestamp, ms since the epoch when the value was received from the device
+ * 20     6    body for triplet schemas: x, y, z int16 raw axes
+ * 20     2    body for scalar schemas: int16 value
+ * </pre>
+ */
+public class BinaryPayload {
+
+    public static final int VERSION = 1;
+
+    public static final int SCHEMA_ACCELEROMETER = 1;
+    public static final int SCHEMA_MAGNETOMETER = 2;
+    public static final int SCHEMA_TEMPERATURE = 3;
+    public static final int SCHEMA_BUTTON_A = 4;
+    public static final int SCHEMA_BUTTON_B = 5;
+    public static final int SCHEMA_MAGNETOMETER_BEARING = 6;
+    private static final int SCHEMA_COUNT = 7;
+
+    public static final int HEADER_LENGTH = 20;
+    public static final int TRIPLET_LENGTH = HEADER_LENGTH + 6;
+    public static final int SCALAR_LENGTH = HEADER_LENGTH + 2;
+    public static final int DEVICE_ID_LENGTH = 6;
+
+    private final byte[] mDeviceId;
+    private final int[] mSequences = new int[SCHEMA_COUNT];
+
+    /**
+     * @param deviceAddress Bluetooth address of the micro:bit the samples come from.
+     */
+    public BinaryPayload(String deviceAddress) {
+        mDeviceId = deviceIdFromAddress(deviceAddress);
+    }
+
+    /**
+     * @return The schema a sample of the given {@code SensorSample} type is encoded with, or 0 if
+     *         the type is not published.
+     */
+    public static int schemaFor(int sampleType) {
+        switch (sampleType) {
+            case SensorSample.TYPE_ACCELEROMETER: return SCHEMA_ACCELEROMETER;
+            case SensorSample.TYPE_MAGNETOMETER: return SCHEMA_MAGNETOMETER;
+            case SensorSample.TYPE_TEMPERATURE: return SCHEMA_TEMPERATURE;
+            case SensorSample.TYPE_BUTTON_A: return SCHEMA_BUTTON_A;
+            case SensorSample.TYPE_BUTTON_B: return SCHEMA_BUTTON_B;
+            case SensorSample.TYPE_MAGNETOMETER_BEARING: return SCHEMA_MAGNETOMETER_BEARING;
+            default: return 0;
+        }
+    }
+
+    public static boolean isTriplet(int schema) {
+        return schema == SCHEMA_ACCELEROMETER || schema == SCHEMA_MAGNETOMETER;
+    }
+
+    public static int encodedLength(int schema) {
+        return isTriplet(schema) ? TRIPLET_LENGTH : SCALAR_LENGTH;
+    }
+
+    /**
+     * Encodes the sample into a new array sized to fit it exactly.
+     */
+    public byte[] encode(SensorSample sample, long timestampMillis) {
+        int schema = schemaFor(sample.type);
+        byte[] out = new byte[encodedLength(schema)];
+        encode(sample, timestampMillis, out, 0);
+        return out;
+    }
+
+    /**
+     * Encodes the sample into {@code out} starting at {@code offset}.
+     *
+     * @return The number of bytes written.
+     */
+    public int encode(SensorSample sample, long timestampMillis, byte[] out, int offset) {
+        int schema = schemaFor(sample.type);
+        if (schema == 0) {
+            throw new IllegalArgumentException("No payload schema for sample type " + sample.type);
+        }
+        out[offset] = (byte) VERSION;
+        out[offset + 1] = (byte) schema;
+        System.arraycopy(mDeviceId, 0, out, offset + 2, DEVICE_ID_LENGTH);
+        writeInt(mSequences[schema]++, out, offset + 8);
+        writeLong(timestampMillis, out, offset + 12);
+        if (isTriplet(schema)) {
+            Utility.leBytesFromShort(sample.x, out, offset + HEADER_LENGTH);
+            Utility.leBytesFromShort(sample.y, out, offset + HEADER_LENGTH + 2);
+            Utility.leBytesFromShort(sample.z, out, offset + HEADER_LENGTH + 4);
+            return TRIPLET_LENGTH;
+        }
+        Utility.leBytesFromShort((short) sample.value, out, offset + HEADER_LENGTH);
+        return SCALAR_LENGTH;
+    }
+
+    /**
+     * A decoded payload.
+     */
+    public static class Frame {
+        public int version;
+        public int schema;
+        public final byte[] deviceId = new byte[DEVICE_ID_LENGTH];
+        public long sequence;
+        public long timestampMillis;
+        public short x;
+        public short y;
+        public short z;
+        public short value;
+    }
+
+    /**
+     * Reference decoder for payloads produced by {@link #encode}.
+     *
+     * @return {@code out}, for convenience.
+     * @throws IllegalArgumentException If the payload is truncated or of an unknown version or schema.
+     */
+    public static Frame decode(byte[] payload, int offset, int length, Frame out) {
+        if (length < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Payload too short: " + length);
+        }
+        out.version = payload[offset] & 0xFF;
+        if (out.version != VERSION) {
+            throw new IllegalArgumentException("Unsupported payload version " + out.version);
+        }
+        out.schema = payload[offset + 1] & 0xFF;
+        if (out.schema == 0 || out.schema >= SCHEMA_COUNT) {
+            throw new IllegalArgumentException("Unknown payload schema " + out.schema);
+        }
+        if (length < encodedLength(out.schema)) {
+            throw new IllegalArgumentException("Payload too short for schema " + out.schema + ": " + length);
+        }
+        System.arraycopy(payload, offset + 2, out.deviceId, 0, DEVICE_ID_LENGTH);
+        out.sequence = readInt(payload, offset + 8) & 0xFFFFFFFFL;
+        out.timestampMillis = readLong(payload, offset + 12);
+        if (isTriplet(out.schema)) {
+            out.x = Utility.shortFromLittleEndianBytes(payload, offset + HEADER_LENGTH);
+            out.y = Utility.shortFromLittleEndianBytes(payload, offset + HEADER_LENGTH + 2);
+            out.z = Utility.shortFromLittleEndianBytes(payload, offset + HEADER_LENGTH + 4);
+        } else {
+            out.value = Utility.shortFromLittleEndianBytes(payload, offset + HEADER_LENGTH);
+        }
+        return out;
+    }
+
+    public static Frame decode(byte[] payload) {
+        return decode(payload, 0, payload.length, new Frame());
+    }
+
+    /**
+     * Parses a Bluetooth address of the form {@code "01:23:45:67:89:AB"} into its six bytes.
+     * Anything unparseable gives an all zero id rather than failing the publish.
+     */
+    public static byte[] deviceIdFromAddress(String address) {
+        byte[] id = new byte[DEVICE_ID_LENGTH];
+        if (address == null || address.length() != 17) {
+            return id;
+        }
+        for (int i = 0; i < DEVICE_ID_LENGTH; i++) {
+            int hi = Character.digit(address.charAt(i * 3), 16);
+            int lo = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return new byte[DEVICE_ID_LENGTH];
+            }
+            id[i] = (byte) ((hi << 4) | lo);
+        }
+        return id;
+    }
+
+    static void writeInt(int v, byte[] out, int offset) {
+        out[offset] = (byte) v;
+        out[offset + 1] = (byte) (v >> 8);
+        out[offset + 2] = (byte) (v >> 16);
+        out[offset + 3] = (byte) (v >> 24);
+    }
+
+    static void writeLong(long v, byte[] out, int offset) {
+        writeInt((int) v, out, offset);
+        writeInt((int) (v >> 32), out, offset + 4);
+    }
+
+    static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16 | b[offset + 3] << 24;
+    }
+
+    static long readLong(byte[] b, int offset) {
+        return (readInt(b, offset) & 0xFFFFFFFFL) | ((long) readInt(b, offset + 4)) << 32;
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+import com.example.android.bluetoothlegatt.ble.GattDispatchTable;
+import com.example.android.bluetoothlegatt.data.SensorSample;
+import com.example.android.bluetoothlegatt.data.WindowSummary;
+
+import java.util.HashMap;
+
+/**
+ * Resolves the topic a sample or window summary is published to, building and caching the
+ * per-device topics when {@link MqttConfig#PER_DEVICE_TOPICS} is set. Not thread safe.
+ */
+public class DeviceTopics {
+
+    private final GattDispatchTable mDispatchTable;
+    private final HashMap<String, String[]> mDeviceTopics = new HashMap<>();
+    private final HashMap<String, String[]> mDeviceSummaryTopics = new HashMap<>();
+    private final HashMap<String, String> mDeviceOrientationTopics = new HashMap<>();
+    private final HashMap<String, String> mDeviceAlignedTopics = new HashMap<>();
+
+    public DeviceTopics(GattDispatchTable dispatchTable) {
+        mDispatchTable = dispatchTable;
+    }
+
+    /**
+     * @return The topic for the sample, or null if its type is not published raw.
+     */
+    public String topicFor(SensorSample sample) {
+        String topic = mDispatchTable.lookup(sample.type).topic;
+        if (topic == null || !MqttConfig.publishRaw(topic)) {
+            return null;
+        }
+        if (!MqttConfig.PER_DEVICE_TOPICS) {
+            return topic;
+        }
+        String[] topics = mDeviceTopics.get(sample.device);
+        if (topics == null) {
+            topics = new String[SensorSample.TYPE_COUNT];
+            for (int type = 0; type < SensorSample.TYPE_COUNT; type++) {
+                GattDispatchTable.Route route = mDispatchTable.lookup(type);
+                if (route != null && route.topic != null) {
+                    topics[type] = MqttConfig.deviceTopic(sample.device, route.topic);
+                }
+            }
+            mDeviceTopics.put(sample.device, topics);
+        }
+        return topics[sample.type];
+    }
+
+    /**
+     * @return The topic for summaries of the sample type, or null if it is not summarised.
+     */
+    public String summaryTopicFor(WindowSummary summary) {
+        String topic = summaryTopic(summary.type);
+        if (topic == null || !MqttConfig.PER_DEVICE_TOPICS) {
+            return topic;
+        }
+        String[] topics = mDeviceSummaryTopics.get(summary.device);
+        if (topics == null) {
+            topics = new String[SensorSample.TYPE_COUNT];
+            for (int type = 0; type < SensorSample.TYPE_COUNT; type++) {
+                String typeTopic = summaryTopic(type);
+                if (typeTopic != null) {
+                    topics[type] = MqttConfig.deviceTopic(summary.device, typeTopic);
+                }
+            }
+            mDeviceSummaryTopics.put(summary.device, topics);
+        }
+        return topics[summary.type];
+    }
+
+    /**
+     * @return The topic for fused orientation records of the device.
+     */
+    public String orientationTopicFor(String device) {
+        return deviceTopic(mDeviceOrientationTopics, device, MqttConfig.TOPIC_ORIENTATION);
+    }
+
+    /**
+     * @return The topic for aligned accelerometer and magnetometer frames of the device.
+     */
+    public String alignedTopicFor(String device) {
+        return deviceTopic(mDeviceAlignedTopics, device, MqttConfig.TOPIC_ALIGNED);
+    }
+
+    private static String deviceTopic(HashMap<String, String> cache, String device, String topic) {
+        if (!MqttConfig.PER_DEVICE_TOPICS) {
+            return topic;
+        }
+        String deviceTopic = cache.get(device);
+        if (deviceTopic == null) {
+            deviceTopic = MqttConfig.deviceTopic(device, topic);
+            cache.put(device, deviceTopic);
+        }
+        return deviceTopic;
+    }
+
+    private static String summaryTopic(int sampleType) {
+        switch (sampleType) {
+            case SensorSample.TYPE_ACCELEROMETER:
+                return MqttConfig.TOPIC_ACCELEROMETER_SUMMARY;
+            case SensorSample.TYPE_MAGNETOMETER:
+                return MqttConfig.TOPIC_MAGNETOMETER_SUMMARY;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+import com.example.android.bluetoothlegatt.data.LatencyHistogram;
+
+import java.util.Locale;
+
+/**
+ * Flow control for publishes to the MQTT client. Each QoS level has its own window of messages
+ * which may be in flight, that is published but without a {@code deliveryComplete} yet, so a
+ * publisher can keep the link busy without running into the client's own max in-flight limit and
+ * having publishes rejected.
+ *
+ * A publisher passes a {@link Ticket} to {@link #tryAcquire} before each publish, uses it as the
+ * publish's user context, and hands it back to {@link #complete} from {@code deliveryComplete} or to
+ * {@link #reject} if the publish throws. When the connection is lost every outstanding ticket is
+ * abandoned by {@link #reset}, and tickets completing afterwards are ignored.
+ */
+public class InflightWindow {
+
+    public static final int QOS_LEVELS = 3;
+
+    private static final long HIGHEST_TRACKABLE_NANOS = 60L * 1000 * 1000 * 1000;
+    private static final int PRECISION_BITS = 7;
+
+    private final int[] mWindows;
+    private final int[] mInFlight = new int[QOS_LEVELS];
+    private final LatencyHistogram mAckLatency = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS, PRECISION_BITS);
+    // Bumped on reset so tickets from an earlier connection are not counted twice
+    private int mEpoch = 0;
+    private int mMaxInFlight = 0;
+    private long mCompleted = 0;
+    private long mRejected = 0;
+    private long mWindowFull = 0;
+
+    /**
+     * A single publish's claim on the window, passed as its user context.
+     */
+    public static class Ticket {
+        public final int qos;
+        int mEpoch = -1;
+        long mSentNanos;
+
+        public Ticket(int qos) {
+            if (qos < 0 || qos >= QOS_LEVELS) {
+                throw new IllegalArgumentException("Invalid QoS " + qos);
+            }
+            this.qos = qos;
+        }
+
+        /**
+         * @return {@code System.nanoTime()} when the ticket was acquired.
+         */
+        public long getSentNanos() {
+            return mSentNanos;
+        }
+    }
+
+    /**
+     * @param qos0 Messages which may be in flight at QoS 0, and likewise for 1 and 2.
+     */
+    public InflightWindow(int qos0, int qos1, int qos2) {
+        if (qos0 <= 0 || qos1 <= 0 || qos2 <= 0) {
+            throw new IllegalArgumentException("Windows must be positive: " + qos0 + "/" + qos1 + "/" + qos2);
+        }
+        mWindows = new int[]{qos0, qos1, qos2};
+    }
+
+    /**
+     * @return A window sized from {@link MqttConfig}.
+     */
+    public static InflightWindow fromConfig() {
+        return new InflightWindow(MqttConfig.INFLIGHT_WINDOW_QOS0, MqttConfig.INFLIGHT_WINDOW_QOS1,
+                MqttConfig.INFLIGHT_WINDOW_QOS2);
+    }
+
+    /**
+     * Claims a slot in the ticket's QoS window.
+     *
+     * @return False if the window is full, in which case the publish should wait for a completion.
+     */
+    public synchronized boolean tryAcquire(Ticket ticket) {
+        if (mInFlight[ticket.qos] >= mWindows[ticket.qos]) {
+            mWindowFull++;
+            return false;
+        }
+        mInFlight[ticket.qos]++;
+        mMaxInFlight = Math.max(mMaxInFlight, getInFlightCount());
+        ticket.mEpoch = mEpoch;
+        ticket.mSentNanos = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Releases the ticket's slot on delivery, recording the time since it was acquired.
+     */
+    public synchronized void complete(Ticket ticket) {
+        if (ticket.mEpoch != mEpoch) {
+            return;
+        }
+        ticket.mEpoch = -1;
+        mInFlight[ticket.qos]--;
+        mCompleted++;
+        mAckLatency.record(System.nanoTime() - ticket.mSentNanos);
+    }
+
+    /**
+     * Releases the ticket's slot when the client refused the publish.
+     */
+    public synchronized void reject(Ticket ticket) {
+        mRejected++;
+        if (ticket.mEpoch == mEpoch) {
+            ticket.mEpoch = -1;
+            mInFlight[ticket.qos]--;
+        }
+    }
+
+    /**
+     * Abandons every outstanding ticket, e.g. when the connection is lost.
+     */
+    public synchronized void reset() {
+        mEpoch++;
+        for (int i = 0; i < QOS_LEVELS; i++) {
+            mInFlight[i] = 0;
+        }
+    }
+
+    public synchronized int getInFlightCount(int qos) {
+        return mInFlight[qos];
+    }
+
+    public synchronized int getInFlightCount() {
+        return mInFlight[0] + mInFlight[1] + mInFlight[2];
+    }
+
+    /**
+     * @return Time from publish to delivery of each completed ticket.
+     */
+    public LatencyHistogram getAckLatency() {
+        return mAckLatency;
+    }
+
+    /**
+     * @return Publishes refused by the client.
+     */
+    public synchronized long getRejectedCount() {
+        return mRejected;
+    }
+
+    /**
+     * @return Attempts to publish which found their window full.
+     */
+    public synchronized long getWindowFullCount() {
+        return mWindowFull;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.UK,
+                "inFlight(qos0/1/2)=%d/%d/%d of %d/%d/%d maxInFlight=%d completed=%d rejected=%d windowFull=%d ack: %s",
+                mInFlight[0], mInFlight[1], mInFlight[2], mWindows[0], mWindows[1], mWindows[2],
+                mMaxInFlight, mCompleted, mRejected, mWindowFull, mAckLatency);
+    }
+}
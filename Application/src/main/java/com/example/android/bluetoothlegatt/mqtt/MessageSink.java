@@ -0,0 +1,12 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+/**
+ * A stage of the outbound MQTT path which accepts encoded payloads for a topic.
+ */
+public interface MessageSink {
+    /**
+     * @param timestampNanos {@link System#nanoTime()} at ingress of the oldest sample in the
+     *                       payload, used to measure latency.
+     */
+    void publish(String topic, byte[] payload, long timestampNanos);
+}
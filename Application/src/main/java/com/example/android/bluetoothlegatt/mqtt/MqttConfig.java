@@ -13,4 +13,183 @@ public class MqttConfig {
     public static final String TOPIC_MAGNETOMETER = "MAGNETOMETER";
     public static final String TOPIC_MAGNETOMETER_DATA = TOPIC_MAGNETOMETER+"/DATA";
     public static final String TOPIC_MAGNETOMETER_BEARING = TOPIC_MAGNETOMETER+"/BEARING";
+
+    // When relaying several micro:bits, each device's data can be published under its own topics,
+    // e.g. MICROBIT/E1223A4B5CFF/ACCELEROMETER, see deviceTopic
+    public static final boolean PER_DEVICE_TOPICS = false;
+    public static final String TOPIC_DEVICE_PREFIX = "MICROBIT";
+
+    // Payload formats, see TextPayload and BinaryPayload
+    public static final int PAYLOAD_TEXT = 0;
+    public static final int PAYLOAD_BINARY = 1;
+
+    // Payload format per topic. Text is the default for existing consumers.
+    public static final int PAYLOAD_FORMAT_ACCELEROMETER = PAYLOAD_TEXT;
+    public static final int PAYLOAD_FORMAT_BUTTON = PAYLOAD_TEXT;
+    public static final int PAYLOAD_FORMAT_TEMPERATURE = PAYLOAD_TEXT;
+    public static final int PAYLOAD_FORMAT_MAGNETOMETER_DATA = PAYLOAD_TEXT;
+    public static final int PAYLOAD_FORMAT_MAGNETOMETER_BEARING = PAYLOAD_TEXT;
+
+    public static int payloadFormat(String topic) {
+        if (TOPIC_ACCELEROMETER.equals(topic)) {
+            return PAYLOAD_FORMAT_ACCELEROMETER;
+        } else if (TOPIC_BUTTON.equals(topic)) {
+            return PAYLOAD_FORMAT_BUTTON;
+        } else if (TOPIC_TEMPERATURE.equals(topic)) {
+            return PAYLOAD_FORMAT_TEMPERATURE;
+        } else if (TOPIC_MAGNETOMETER_DATA.equals(topic)) {
+            return PAYLOAD_FORMAT_MAGNETOMETER_DATA;
+        } else if (TOPIC_MAGNETOMETER_BEARING.equals(topic)) {
+            return PAYLOAD_FORMAT_MAGNETOMETER_BEARING;
+        }
+        return PAYLOAD_TEXT;
+    }
+
+    // Batching of payloads per topic, see BatchingPublisher. A batch is flushed once it holds
+    // BATCH_MAX_SAMPLES payloads or its oldest payload is BATCH_MAX_DELAY_MS old. A size of 1
+    // disables batching so consumers of the existing topics receive one payload per message.
+    public static final int BATCH_MAX_SAMPLES = 1;
+    public static final long BATCH_MAX_DELAY_MS = 1000;
+
+    // Raw samples can be turned off per topic, e.g. where only the summaries below are needed
+    public static final boolean PUBLISH_RAW_ACCELEROMETER = true;
+    public static final boolean PUBLISH_RAW_BUTTON = true;
+    public static final boolean PUBLISH_RAW_TEMPERATURE = true;
+    public static final boolean PUBLISH_RAW_MAGNETOMETER_DATA = true;
+    public static final boolean PUBLISH_RAW_MAGNETOMETER_BEARING = true;
+
+    public static boolean publishRaw(String topic) {
+        if (TOPIC_ACCELEROMETER.equals(topic)) {
+            return PUBLISH_RAW_ACCELEROMETER;
+        } else if (TOPIC_BUTTON.equals(topic)) {
+            return PUBLISH_RAW_BUTTON;
+        } else if (TOPIC_TEMPERATURE.equals(topic)) {
+            return PUBLISH_RAW_TEMPERATURE;
+        } else if (TOPIC_MAGNETOMETER_DATA.equals(topic)) {
+            return PUBLISH_RAW_MAGNETOMETER_DATA;
+        } else if (TOPIC_MAGNETOMETER_BEARING.equals(topic)) {
+            return PUBLISH_RAW_MAGNETOMETER_BEARING;
+        }
+        return true;
+    }
+
+    // Change-only publishing of buttons, temperature and bearing, see ChangeFilter. Buttons are
+    // published when they change, temperature and bearing when they move by the delta, and any of
+    // them at least every CHANGE_HEARTBEAT_MS while notifications arrive. This is on by default, so
+    // consumers of those topics no longer see every notification; a value not published is the
+    // same as, or within the delta of, the last one that was. Each device's first values after it
+    // connects are always published. Set false to publish every notification as before.
+    public static final boolean PUBLISH_CHANGES_ONLY = true;
+    public static final int CHANGE_DELTA_TEMPERATURE = 1;
+    public static final int CHANGE_DELTA_BEARING = 5;
+    public static final long CHANGE_HEARTBEAT_MS = 30000;
+
+    // Windowed per-axis summaries (count, mean, min, max, RMS and magnitude) of the accelerometer
+    // and magnetometer, see AggregationStage. Windows are SUMMARY_WINDOW_MS long and start every
+    // SUMMARY_SLIDE_MS, which must divide the window; equal values give tumbling windows.
+    public static final String TOPIC_SUMMARY = "SUMMARY";
+    public static final String TOPIC_ACCELEROMETER_SUMMARY = TOPIC_SUMMARY + "/" + TOPIC_ACCELEROMETER;
+    public static final String TOPIC_MAGNETOMETER_SUMMARY = TOPIC_SUMMARY + "/" + TOPIC_MAGNETOMETER_DATA;
+    public static final boolean SUMMARISE_ACCELEROMETER = false;
+    public static final boolean SUMMARISE_MAGNETOMETER = false;
+    public static final long SUMMARY_WINDOW_MS = 1000;
+    public static final long SUMMARY_SLIDE_MS = 1000;
+
+    // Pitch, roll and tilt compensated heading fused from the accelerometer and magnetometer, see
+    // OrientationFusion, published as one record per magnetometer sample. With the raw
+    // accelerometer, magnetometer and bearing turned off above, one message replaces three.
+    // FUSION_SMOOTHING is the weight of the previous reading in a low pass filter on each vector,
+    // 0 to disable. Accelerometer samples older than FUSION_MAX_SKEW_MS are not fused.
+    public static final String TOPIC_ORIENTATION = "ORIENTATION";
+    public static final boolean FUSE_ORIENTATION = false;
+    public static final double FUSION_SMOOTHING = 0;
+    public static final long FUSION_MAX_SKEW_MS = 200;
+
+    // Accelerometer frames with the magnetometer aligned to each by ingress time, see StreamJoin.
+    // The magnetometer is interpolated between the samples either side, or with JOIN_INTERPOLATE
+    // off taken from the nearest, which must be within JOIN_TOLERANCE_MS. Each accelerometer sample
+    // waits at most JOIN_MAX_DELAY_MS for a later magnetometer sample, in a buffer of
+    // JOIN_BUFFER_SAMPLES per stream.
+    public static final String TOPIC_ALIGNED = "ALIGNED";
+    public static final boolean JOIN_ACCELEROMETER_MAGNETOMETER = false;
+    public static final boolean JOIN_INTERPOLATE = true;
+    public static final long JOIN_TOLERANCE_MS = 50;
+    public static final long JOIN_MAX_DELAY_MS = 100;
+    public static final int JOIN_BUFFER_SAMPLES = 16;
+
+    // Bounds in ms on the period of each sensor while AdaptivePeriodController slows it down under
+    // load and speeds it back up, see AdaptivePeriodController. Only periods the micro:bit supports
+    // within the bounds are used, so each range must include at least one of them: 20, 80, 160 or
+    // 640 ms for the accelerometer and magnetometer, 1, 2, 5, 10, 30 or 60 s for the temperature.
+    public static final int ADAPTIVE_ACCELEROMETER_MIN_PERIOD_MS = 20;
+    public static final int ADAPTIVE_ACCELEROMETER_MAX_PERIOD_MS = 640;
+    public static final int ADAPTIVE_MAGNETOMETER_MIN_PERIOD_MS = 20;
+    public static final int ADAPTIVE_MAGNETOMETER_MAX_PERIOD_MS = 640;
+    public static final int ADAPTIVE_TEMPERATURE_MIN_PERIOD_MS = 1000;
+    public static final int ADAPTIVE_TEMPERATURE_MAX_PERIOD_MS = 60000;
+
+    // Outbound messages are spooled to disk until delivered, see Outbox. When the budget is
+    // exceeded the oldest undelivered messages are discarded.
+    public static final String OUTBOX_DIRECTORY = "outbox";
+    public static final int OUTBOX_SEGMENT_BYTES = 1024 * 1024;
+    public static final long OUTBOX_MAX_BYTES = 32 * 1024 * 1024;
+
+    // QoS per topic. QoS 0 suits high rate streams where a lost sample is soon replaced; the outbox
+    // only gives at least once delivery for QoS 1 and 2.
+    public static final int QOS_ACCELEROMETER = 1;
+    public static final int QOS_BUTTON = 1;
+    public static final int QOS_TEMPERATURE = 1;
+    public static final int QOS_MAGNETOMETER_DATA = 1;
+    public static final int QOS_MAGNETOMETER_BEARING = 1;
+    public static final int QOS_SUMMARY = 1;
+    public static final int QOS_ORIENTATION = 1;
+    public static final int QOS_ALIGNED = 1;
+    public static final int QOS_DEFAULT = 1;
+
+    public static int qos(String topic) {
+        String baseTopic = baseTopic(topic);
+        if (baseTopic.startsWith(TOPIC_SUMMARY + "/")) {
+            return QOS_SUMMARY;
+        } else if (TOPIC_ACCELEROMETER.equals(baseTopic)) {
+            return QOS_ACCELEROMETER;
+        } else if (TOPIC_BUTTON.equals(baseTopic)) {
+            return QOS_BUTTON;
+        } else if (TOPIC_TEMPERATURE.equals(baseTopic)) {
+            return QOS_TEMPERATURE;
+        } else if (TOPIC_MAGNETOMETER_DATA.equals(baseTopic)) {
+            return QOS_MAGNETOMETER_DATA;
+        } else if (TOPIC_MAGNETOMETER_BEARING.equals(baseTopic)) {
+            return QOS_MAGNETOMETER_BEARING;
+        } else if (TOPIC_ORIENTATION.equals(baseTopic)) {
+            return QOS_ORIENTATION;
+        } else if (TOPIC_ALIGNED.equals(baseTopic)) {
+            return QOS_ALIGNED;
+        }
+        return QOS_DEFAULT;
+    }
+
+    // Messages which may await deliveryComplete at each QoS, see InflightWindow. Publishes beyond
+    // the window wait for a delivery rather than being rejected by the client, whose own limit,
+    // MAX_INFLIGHT, must cover all three windows.
+    public static final int INFLIGHT_WINDOW_QOS0 = 64;
+    public static final int INFLIGHT_WINDOW_QOS1 = 64;
+    public static final int INFLIGHT_WINDOW_QOS2 = 16;
+    public static final int MAX_INFLIGHT = INFLIGHT_WINDOW_QOS0 + INFLIGHT_WINDOW_QOS1 + INFLIGHT_WINDOW_QOS2;
+
+    public static String deviceTopic(String deviceAddress, String topic) {
+        return TOPIC_DEVICE_PREFIX + "/" + deviceAddress.replace(":", "") + "/" + topic;
+    }
+
+    /**
+     * @return The topic without the prefix added by {@link #deviceTopic}.
+     */
+    public static String baseTopic(String topic) {
+        if (topic.startsWith(TOPIC_DEVICE_PREFIX + "/")) {
+            int end = topic.indexOf('/', TOPIC_DEVICE_PREFIX.length() + 1);
+            if (end >= 0) {
+                return topic.substring(end + 1);
+            }
+        }
+        return topic;
+    }
 }
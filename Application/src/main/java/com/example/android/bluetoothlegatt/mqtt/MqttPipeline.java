@@ -0,0 +1,354 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+import android.content.Context;
+import android.util.Log;
+import com.example.android.bluetoothlegatt.ble.GattDispatchTable;
+import com.example.android.bluetoothlegatt.data.AggregationStage;
+import com.example.android.bluetoothlegatt.data.ChangeFilter;
+import com.example.android.bluetoothlegatt.data.OrientationFusion;
+import com.example.android.bluetoothlegatt.data.PipelineLatency;
+import com.example.android.bluetoothlegatt.data.SampleHandler;
+import com.example.android.bluetoothlegatt.data.SensorSample;
+import com.example.android.bluetoothlegatt.data.StreamJoin;
+import com.example.android.bluetoothlegatt.data.WindowAggregator;
+import com.example.android.bluetoothlegatt.data.WindowSummary;
+import org.eclipse.paho.android.service.MqttAndroidClient;
+import org.eclipse.paho.client.mqttv3.*;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Publishes the samples of every connected device to the broker, independently of any UI.
+ *
+ * Owned by the {@code BluetoothLeService}, which feeds it from its own consumer of the sample ring
+ * buffer. Each sample is summarised, filtered, encoded and batched, then spooled through the outbox
+ * to the MQTT client. {@link #onSample(SensorSample)} runs on the consumer thread; the other methods
+ * are called on the main thread.
+ */
+public class MqttPipeline implements SampleHandler {
+    private final static String TAG = MqttPipeline.class.getSimpleName();
+
+    public interface Listener {
+        /**
+         * Called on an MQTT client thread when the broker connection is made or lost.
+         */
+        void onConnectionStateChanged(boolean connected);
+    }
+
+    private final Listener mListener;
+    private final PipelineLatency mLatency;
+    private final MqttAndroidClient mMqttAndroidClient;
+    private volatile boolean mMqttConnected = false;
+    private final BatchingPublisher mBatchingPublisher;
+    private final InflightWindow mWindow = InflightWindow.fromConfig();
+    private OutboxPublisher mOutboxPublisher;
+
+    // Only used on the consumer thread
+    private final PayloadEncoder mPayloadEncoder;
+    private final DeviceTopics mDeviceTopics;
+    // The stages are driven by the consumer thread but flushed from the service's, so they are
+    // guarded by this
+    private final Object mStageLock = new Object();
+    private final AggregationStage mAggregation;
+    private ChangeFilter mChangeFilter;
+    private OrientationFusion mOrientationFusion;
+    private StreamJoin mStreamJoin;
+
+    public MqttPipeline(Context context, GattDispatchTable dispatchTable, PipelineLatency latency, Listener listener) {
+        mListener = listener;
+        mLatency = latency;
+        mPayloadEncoder = new PayloadEncoder(dispatchTable);
+        mDeviceTopics = new DeviceTopics(dispatchTable);
+        mAggregation = new AggregationStage(MqttConfig.SUMMARY_WINDOW_MS, MqttConfig.SUMMARY_SLIDE_MS,
+                mSummaryListener);
+        if (MqttConfig.SUMMARISE_ACCELEROMETER) {
+            mAggregation.enable(SensorSample.TYPE_ACCELEROMETER);
+        }
+        if (MqttConfig.SUMMARISE_MAGNETOMETER) {
+            mAggregation.enable(SensorSample.TYPE_MAGNETOMETER);
+        }
+        if (MqttConfig.FUSE_ORIENTATION) {
+            mOrientationFusion = new OrientationFusion(MqttConfig.FUSION_SMOOTHING,
+                    MqttConfig.FUSION_MAX_SKEW_MS, mOrientationListener);
+        }
+        if (MqttConfig.JOIN_ACCELEROMETER_MAGNETOMETER) {
+            mStreamJoin = new StreamJoin(SensorSample.TYPE_ACCELEROMETER, SensorSample.TYPE_MAGNETOMETER,
+                    MqttConfig.JOIN_TOLERANCE_MS, MqttConfig.JOIN_MAX_DELAY_MS, MqttConfig.JOIN_INTERPOLATE,
+                    MqttConfig.JOIN_BUFFER_SAMPLES, mFrameListener);
+        }
+        if (MqttConfig.PUBLISH_CHANGES_ONLY) {
+            mChangeFilter = new ChangeFilter(MqttConfig.CHANGE_DELTA_TEMPERATURE,
+                    MqttConfig.CHANGE_DELTA_BEARING, MqttConfig.CHANGE_HEARTBEAT_MS);
+        }
+
+        mMqttAndroidClient = new MqttAndroidClient(context.getApplicationContext(),
+                MqttConfig.SERVER_URI, MqttConfig.CLIENT_ID);
+        mMqttAndroidClient.setCallback(mMqttCallbackExtended);
+        MessageSink sink = mMqttSink;
+        try {
+            Outbox outbox = new Outbox(new File(context.getFilesDir(), MqttConfig.OUTBOX_DIRECTORY),
+                    MqttConfig.OUTBOX_SEGMENT_BYTES, MqttConfig.OUTBOX_MAX_BYTES);
+            Log.d(TAG, "MQTT outbox opened with " + outbox.getBacklogBytes() + " bytes undelivered");
+            mOutboxPublisher = new OutboxPublisher(outbox, mMqttAndroidClient, mWindow);
+            mOutboxPublisher.setLatency(latency);
+            mOutboxPublisher.setErrorListener(mOutboxErrorListener);
+            sink = mOutboxPublisher;
+        } catch (IOException e) {
+            // Publish directly, losing anything sent while disconnected
+            Log.e(TAG, "Unable to open MQTT outbox", e);
+        }
+        mBatchingPublisher = new BatchingPublisher(sink,
+                MqttConfig.BATCH_MAX_SAMPLES, MqttConfig.BATCH_MAX_DELAY_MS);
+    }
+
+    @Override
+    public void onSample(SensorSample sample) {
+        long receivedNanos = System.nanoTime();
+        mLatency.record(PipelineLatency.STAGE_RECEIVE, receivedNanos - sample.timestampNanos);
+        synchronized (mStageLock) {
+            mAggregation.onSample(sample);
+            if (mOrientationFusion != null) {
+                mOrientationFusion.onSample(sample);
+            }
+            if (mStreamJoin != null) {
+                mStreamJoin.onSample(sample);
+            }
+            String topic = mDeviceTopics.topicFor(sample);
+            if (topic != null && (mChangeFilter == null || mChangeFilter.accept(sample))) {
+                mBatchingPublisher.publish(topic, mPayloadEncoder.encode(sample, receivedNanos),
+                        sample.timestampNanos);
+                mLatency.record(PipelineLatency.STAGE_CONSUMER, System.nanoTime() - receivedNanos);
+            }
+        }
+    }
+
+    /**
+     * Forgets the values last published for a device which has connected, so its first samples
+     * are published whether or not they differ from those before it disconnected.
+     */
+    public void onDeviceConnected(String address) {
+        synchronized (mStageLock) {
+            if (mChangeFilter != null) {
+                mChangeFilter.reset(address);
+            }
+        }
+    }
+
+    /**
+     * Emits the partial summary windows and buffered aligned frames of a device which has
+     * disconnected, rather than holding them until it reconnects. Samples of the device still
+     * queued for the consumer start new windows.
+     */
+    public void onDeviceDisconnected(String address) {
+        synchronized (mStageLock) {
+            mAggregation.flush(address);
+            if (mStreamJoin != null) {
+                mStreamJoin.flush(address);
+            }
+        }
+    }
+
+    // Emits whatever the stages are holding, before the publishers are closed
+    private void flushStages() {
+        synchronized (mStageLock) {
+            mAggregation.flush();
+            if (mStreamJoin != null) {
+                mStreamJoin.flush();
+            }
+        }
+    }
+
+    // Called with mStageLock held as each summary window closes, or is flushed
+    private final WindowAggregator.Listener mSummaryListener = new WindowAggregator.Listener() {
+        @Override
+        public void onWindow(WindowSummary summary) {
+            String topic = mDeviceTopics.summaryTopicFor(summary);
+            long timestampMillis = System.currentTimeMillis() - (System.nanoTime() - summary.endNanos) / 1000000L;
+            mBatchingPublisher.publish(topic, TextPayload.formatSummary(summary, timestampMillis).getBytes(),
+                    summary.firstSampleNanos);
+        }
+    };
+
+    // Called on the consumer thread for each fused record
+    private final OrientationFusion.Listener mOrientationListener = new OrientationFusion.Listener() {
+        @Override
+        public void onOrientation(OrientationFusion.Orientation orientation) {
+            String topic = mDeviceTopics.orientationTopicFor(orientation.device);
+            long timestampMillis = System.currentTimeMillis() - (System.nanoTime() - orientation.timestampNanos) / 1000000L;
+            mBatchingPublisher.publish(topic, TextPayload.formatOrientation(orientation, timestampMillis).getBytes(),
+                    orientation.timestampNanos);
+        }
+    };
+
+    // Called with mStageLock held for each aligned frame
+    private final StreamJoin.Listener mFrameListener = new StreamJoin.Listener() {
+        @Override
+        public void onFrame(StreamJoin.AlignedFrame frame) {
+            String topic = mDeviceTopics.alignedTopicFor(frame.device);
+            long timestampMillis = System.currentTimeMillis() - (System.nanoTime() - frame.timestampNanos) / 1000000L;
+            mBatchingPublisher.publish(topic, TextPayload.formatAligned(frame, timestampMillis).getBytes(),
+                    frame.timestampNanos);
+        }
+    };
+
+    private final OutboxPublisher.ErrorListener mOutboxErrorListener = new OutboxPublisher.ErrorListener() {
+        @Override
+        public void onError(String message, Exception e) {
+            Log.e(TAG, message, e);
+        }
+    };
+
+    private final MqttCallbackExtended mMqttCallbackExtended = new MqttCallbackExtended() {
+        @Override
+        public void connectComplete(boolean reconnect, String serverURI) {
+            mMqttConnected = true;
+            if (mOutboxPublisher != null) {
+                mOutboxPublisher.onConnected();
+            }
+            if (reconnect) {
+                Log.d(TAG, "MQTT reconnected: " + serverURI);
+            } else {
+                Log.d(TAG, "MQTT connected: " + serverURI);
+            }
+            mListener.onConnectionStateChanged(true);
+        }
+
+        @Override
+        public void connectionLost(Throwable cause) {
+            mMqttConnected = false;
+            if (mOutboxPublisher != null) {
+                mOutboxPublisher.onDisconnected();
+            } else {
+                mWindow.reset();
+            }
+            Log.d(TAG, "MQTT disconnected: " + MqttConfig.SERVER_URI);
+            mListener.onConnectionStateChanged(false);
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) throws Exception {
+            Log.d(TAG,"MQTT message: " + new String(message.getPayload()));
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+            if (mOutboxPublisher != null) {
+                mOutboxPublisher.deliveryComplete(token);
+            } else if (token.getUserContext() instanceof InflightWindow.Ticket) {
+                mWindow.complete((InflightWindow.Ticket) token.getUserContext());
+            }
+        }
+    };
+
+    private final MessageSink mMqttSink = new MessageSink() {
+        @Override
+        public void publish(String topic, byte[] payload, long timestampNanos) {
+            if (!mMqttConnected) {
+                return;
+            }
+            // Without the outbox there is nowhere to hold a message while the window is full, so
+            // it is dropped
+            InflightWindow.Ticket ticket = new InflightWindow.Ticket(MqttConfig.qos(topic));
+            if (!mWindow.tryAcquire(ticket)) {
+                return;
+            }
+            try {
+                MqttMessage m = new MqttMessage();
+                m.setPayload(payload);
+                m.setQos(ticket.qos);
+                mMqttAndroidClient.publish(topic, m, ticket, null);
+            } catch (MqttException e) {
+                mWindow.reject(ticket);
+                Log.e(TAG, "Error Publishing: " + e.getMessage());
+            }
+        }
+    };
+
+    public void connect() {
+        if (!mMqttConnected) {
+            MqttConnectOptions mqttConnectOptions = new MqttConnectOptions();
+            mqttConnectOptions.setAutomaticReconnect(true);
+            mqttConnectOptions.setCleanSession(false);
+            mqttConnectOptions.setMaxInflight(MqttConfig.MAX_INFLIGHT);
+            try {
+                // Messages published while disconnected are held in the outbox rather than the
+                // client's in-memory buffer
+                mMqttAndroidClient.connect(mqttConnectOptions, null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken asyncActionToken) {
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                        Log.e(TAG, "MQTT connect failed: " + MqttConfig.SERVER_URI);
+                    }
+                });
+            } catch (MqttException ex) {
+                Log.e(TAG, "MQTT connect failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    public void disconnect() {
+        if (mMqttConnected) {
+            // Publish anything still waiting to be batched before the connection goes away
+            mBatchingPublisher.flushAll();
+            logStats();
+            try {
+                mMqttConnected = false;
+                if (mOutboxPublisher != null) {
+                    mOutboxPublisher.onDisconnected();
+                } else {
+                    mWindow.reset();
+                }
+                mMqttAndroidClient.disconnect(0);
+                mListener.onConnectionStateChanged(false);
+            } catch (MqttException ex) {
+                Log.e(TAG, "MQTT disconnect failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    public boolean isConnected() {
+        return mMqttConnected;
+    }
+
+    /**
+     * @return Bytes waiting to be delivered to the broker.
+     */
+    public long getQueuedBytes() {
+        return mOutboxPublisher != null ? mOutboxPublisher.getOutbox().getBacklogBytes() : 0;
+    }
+
+    public void logStats() {
+        Log.d(TAG, "MQTT batching: " + mBatchingPublisher.getStats());
+        Log.d(TAG, "MQTT in-flight: " + mWindow);
+        if (mOutboxPublisher != null) {
+            Log.d(TAG, "MQTT outbox: " + mOutboxPublisher);
+        }
+        if (mChangeFilter != null) {
+            Log.d(TAG, "MQTT change filter: " + mChangeFilter);
+        }
+        if (mOrientationFusion != null) {
+            Log.d(TAG, "MQTT orientation fusion: " + mOrientationFusion);
+        }
+        if (mStreamJoin != null) {
+            Log.d(TAG, "MQTT stream join: " + mStreamJoin);
+        }
+    }
+
+    /**
+     * Disconnects and releases the client and outbox. Anything undelivered stays in the outbox for
+     * the next run.
+     */
+    public void close() {
+        flushStages();
+        disconnect();
+        mBatchingPublisher.close();
+        if (mOutboxPublisher != null) {
+            mOutboxPublisher.close();
+        }
+        mMqttAndroidClient.unregisterResources();
+    }
+}
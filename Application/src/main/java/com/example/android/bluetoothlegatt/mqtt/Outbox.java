@@ -0,0 +1,423 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Durable append-only log of outbound MQTT messages, so data survives broker outages and the
+ * process being killed.
+ *
+ * Messages are appended to fixed size memory-mapped segment files. Each record is
+ * <pre>
+ * int   body length
+ * int   CRC32 of the body
+ * short topic length, topic bytes (UTF-8), payload bytes
+ * </pre>
+ * and is identified by its logical offset, which increases across segments. Records are read in
+ * order from a read cursor; {@link #acknowledge(long)} is called as each delivery completes and the
+ * commit offset, persisted in its own mapped file, is advanced over the contiguous acknowledged
+ * records. {@link #rewind()} moves the read cursor back to the commit offset so anything not yet
+ * acknowledged is replayed in order after a reconnect.
+ *
+ * Segments wholly before the commit offset are deleted. If the log grows beyond its disk budget
+ * the oldest segment is deleted whether or not it has been delivered.
+ */
+public class Outbox implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMMIT_FILE = "commit";
+    private static final int RECORD_HEADER_LENGTH = 8;
+    // Written where a record would not fit in the rest of the segment
+    private static final int END_OF_SEGMENT = -1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A record read from the outbox. Reused across calls to {@link #next(Record)}.
+     */
+    public static class Record {
+        public String topic;
+        public byte[] payload;
+        // Logical offset of this record, and of the one after it. The latter identifies the record
+        // when acknowledging it.
+        public long offset;
+        public long nextOffset;
+    }
+
+    private final File mDir;
+    private final int mSegmentBytes;
+    private final int mMaxSegments;
+    // Base offsets of the segment files on disk
+    private final TreeSet<Long> mSegments = new TreeSet<>();
+    private final RandomAccessFile mCommitFile;
+    private final MappedByteBuffer mCommitBuffer;
+    private MappedByteBuffer mWriteBuffer;
+    private long mWriteBase;
+    private MappedByteBuffer mReadBuffer;
+    private long mReadBase = -1;
+
+    private long mAppendOffset;
+    private long mReadOffset;
+    private long mCommitOffset;
+
+    // End offsets of records read but not yet acknowledged, in read order, and of those
+    // acknowledged ahead of an earlier record
+    private final ArrayDeque<Long> mUnacknowledged = new ArrayDeque<>();
+    private final TreeSet<Long> mAcknowledgedAhead = new TreeSet<>();
+
+    private final CRC32 mCrc = new CRC32();
+    private final HashMap<String, byte[]> mTopicBytes = new HashMap<>();
+
+    private long mAppendedCount = 0;
+    private long mDroppedSegments = 0;
+    private long mCorruptRecords = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Opens the outbox in {@code dir}, recovering any records left from a previous run.
+     *
+     * @param segmentBytes Size of each segment file.
+     * @param maxBytes Disk budget; at least two segments are always kept.
+     */
+    public Outbox(File dir, int segmentBytes, long maxBytes) throws IOException {
+        mDir = dir;
+        mSegmentBytes = segmentBytes;
+        mMaxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create outbox directory " + dir);
+        }
+        mCommitFile = new RandomAccessFile(new File(dir, COMMIT_FILE), "rw");
+        mCommitBuffer = mCommitFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        mCommitOffset = mCommitBuffer.getLong(0);
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        mSegments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        if (mSegments.isEmpty()) {
+            mWriteBase = segmentBase(mCommitOffset);
+            mWriteBuffer = mapSegment(mWriteBase);
+            mSegments.add(mWriteBase);
+            mAppendOffset = mCommitOffset;
+        } else {
+            mWriteBase = mSegments.last();
+            mWriteBuffer = mapSegment(mWriteBase);
+            mAppendOffset = mWriteBase + recoverSegmentEnd(mWriteBuffer);
+            if (mCommitOffset < mSegments.first()) {
+                mCommitOffset = mSegments.first();
+            }
+            if (mCommitOffset > mAppendOffset) {
+                mCommitOffset = mAppendOffset;
+            }
+        }
+        mReadOffset = mCommitOffset;
+    }
+
+    private long segmentBase(long offset) {
+        return offset - offset % mSegmentBytes;
+    }
+
+    private File segmentFile(long base) {
+        return new File(mDir, String.format("%020d%s", base, SEGMENT_SUFFIX));
+    }
+
+    private MappedByteBuffer mapSegment(long base) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(base), "rw");
+        try {
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentBytes);
+        } finally {
+            // the mapping remains valid after the channel is closed
+            file.close();
+        }
+    }
+
+    // Finds the end of the last intact record, so a torn write from a crash is overwritten
+    private int recoverSegmentEnd(MappedByteBuffer buffer) {
+        int position = 0;
+        while (position + RECORD_HEADER_LENGTH <= mSegmentBytes) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + RECORD_HEADER_LENGTH + length > mSegmentBytes
+                    || !checksumMatches(buffer, position, length)) {
+                break;
+            }
+            position += RECORD_HEADER_LENGTH + length;
+        }
+        return position;
+    }
+
+    private boolean checksumMatches(MappedByteBuffer buffer, int position, int length) {
+        byte[] body = new byte[length];
+        buffer.position(position + RECORD_HEADER_LENGTH);
+        buffer.get(body);
+        mCrc.reset();
+        mCrc.update(body, 0, length);
+        return (int) mCrc.getValue() == buffer.getInt(position + 4);
+    }
+
+    /**
+     * Appends a message to the log.
+     *
+     * @return The offset following the record.
+     */
+    public synchronized long append(String topic, byte[] payload) throws IOException {
+        checkOpen();
+        byte[] topicBytes = mTopicBytes.get(topic);
+        if (topicBytes == null) {
+            topicBytes = topic.getBytes(UTF_8);
+            mTopicBytes.put(topic, topicBytes);
+        }
+        int length = 2 + topicBytes.length + payload.length;
+        int recordLength = RECORD_HEADER_LENGTH + length;
+        if (recordLength + 4 > mSegmentBytes) {
+            throw new IllegalArgumentException("Message of " + payload.length + " bytes is larger than a segment");
+        }
+        int position = (int) (mAppendOffset - mWriteBase);
+        if (position + recordLength + 4 > mSegmentBytes) {
+            mWriteBuffer.putInt(position, END_OF_SEGMENT);
+            rollSegment();
+            position = 0;
+        }
+
+        mCrc.reset();
+        mCrc.update((byte) topicBytes.length);
+        mCrc.update((byte) (topicBytes.length >> 8));
+        mCrc.update(topicBytes, 0, topicBytes.length);
+        mCrc.update(payload, 0, payload.length);
+
+        mWriteBuffer.putInt(position + 4, (int) mCrc.getValue());
+        mWriteBuffer.position(position + RECORD_HEADER_LENGTH);
+        mWriteBuffer.put((byte) topicBytes.length);
+        mWriteBuffer.put((byte) (topicBytes.length >> 8));
+        mWriteBuffer.put(topicBytes);
+        mWriteBuffer.put(payload);
+        // The length is written last so a partially written record is never read back
+        mWriteBuffer.putInt(position, length);
+
+        mAppendOffset = mWriteBase + position + recordLength;
+        mAppendedCount++;
+        return mAppendOffset;
+    }
+
+    private void rollSegment() throws IOException {
+        mWriteBase += mSegmentBytes;
+        mWriteBuffer = mapSegment(mWriteBase);
+        mSegments.add(mWriteBase);
+        mAppendOffset = mWriteBase;
+        while (mSegments.size() > mMaxSegments) {
+            // Over the disk budget: lose the oldest data rather than stop accepting new data
+            long oldest = mSegments.first();
+            deleteSegment(oldest);
+            mDroppedSegments++;
+            long next = oldest + mSegmentBytes;
+            if (mCommitOffset < next) {
+                // Forget the records which were in the deleted segment; those read from later
+                // segments are still awaiting acknowledgement
+                while (!mUnacknowledged.isEmpty() && mUnacknowledged.peekFirst() <= next) {
+                    mUnacknowledged.pollFirst();
+                }
+                mAcknowledgedAhead.headSet(next, true).clear();
+                setCommitOffset(next);
+                commitAcknowledgedAhead();
+            }
+            if (mReadOffset < next) {
+                mReadOffset = next;
+            }
+        }
+    }
+
+    private void deleteSegment(long base) {
+        mSegments.remove(base);
+        if (base == mReadBase) {
+            mReadBuffer = null;
+            mReadBase = -1;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        segmentFile(base).delete();
+    }
+
+    /**
+     * Reads the record at the read cursor and advances past it.
+     *
+     * @return False if every appended record has been read.
+     */
+    public synchronized boolean next(Record out) throws IOException {
+        checkOpen();
+        while (mReadOffset < mAppendOffset) {
+            long base = segmentBase(mReadOffset);
+            MappedByteBuffer buffer = readBuffer(base);
+            int position = (int) (mReadOffset - base);
+            int length = position + RECORD_HEADER_LENGTH <= mSegmentBytes ? buffer.getInt(position) : 0;
+            if (length <= 0) {
+                // end of segment marker, or the unused tail of the segment
+                mReadOffset = base + mSegmentBytes;
+                continue;
+            }
+            byte[] body = null;
+            if (position + RECORD_HEADER_LENGTH + length <= mSegmentBytes) {
+                body = new byte[length];
+                buffer.position(position + RECORD_HEADER_LENGTH);
+                buffer.get(body);
+                mCrc.reset();
+                mCrc.update(body, 0, length);
+            }
+            int topicLength = body != null && length >= 2 ? (body[0] & 0xFF) | (body[1] & 0xFF) << 8 : -1;
+            if (body == null || (int) mCrc.getValue() != buffer.getInt(position + 4)
+                    || topicLength < 0 || 2 + topicLength > length) {
+                // Corrupt, the rest of this segment cannot be trusted
+                mCorruptRecords++;
+                mReadOffset = base + mSegmentBytes;
+                continue;
+            }
+            out.topic = new String(body, 2, topicLength, UTF_8);
+            out.payload = Arrays.copyOfRange(body, 2 + topicLength, length);
+            out.offset = mReadOffset;
+            mReadOffset += RECORD_HEADER_LENGTH + length;
+            out.nextOffset = mReadOffset;
+            mUnacknowledged.add(out.nextOffset);
+            return true;
+        }
+        return false;
+    }
+
+    private MappedByteBuffer readBuffer(long base) throws IOException {
+        if (base == mWriteBase) {
+            return mWriteBuffer;
+        }
+        if (base != mReadBase) {
+            mReadBuffer = mapSegment(base);
+            mReadBase = base;
+        }
+        return mReadBuffer;
+    }
+
+    /**
+     * Returns the record most recently read by {@link #next(Record)} so it is read again, e.g. when
+     * it could not be sent.
+     */
+    public synchronized void unread(Record record) {
+        mUnacknowledged.pollLast();
+        mReadOffset = record.offset;
+    }
+
+    /**
+     * Marks a record as delivered, advancing the commit offset if every earlier record has also
+     * been delivered.
+     *
+     * @param nextOffset The {@link Record#nextOffset} of the delivered record.
+     */
+    public synchronized void acknowledge(long nextOffset) {
+        Long head = mUnacknowledged.peekFirst();
+        if (head == null || nextOffset < head) {
+            // already committed, or from before a rewind
+            return;
+        }
+        if (head != nextOffset) {
+            mAcknowledgedAhead.add(nextOffset);
+            return;
+        }
+        setCommitOffset(mUnacknowledged.pollFirst());
+        commitAcknowledgedAhead();
+        while (mSegments.first() + mSegmentBytes <= mCommitOffset && mSegments.first() != mWriteBase) {
+            deleteSegment(mSegments.first());
+        }
+    }
+
+    // Advances the commit offset over records at the head which were acknowledged out of order
+    private void commitAcknowledgedAhead() {
+        while (!mUnacknowledged.isEmpty() && mAcknowledgedAhead.remove(mUnacknowledged.peekFirst())) {
+            setCommitOffset(mUnacknowledged.pollFirst());
+        }
+    }
+
+    private void setCommitOffset(long offset) {
+        mCommitOffset = offset;
+        mCommitBuffer.putLong(0, offset);
+    }
+
+    /**
+     * Moves the read cursor back to the commit offset, so every record not yet acknowledged is read
+     * again in order.
+     */
+    public synchronized void rewind() {
+        mReadOffset = mCommitOffset;
+        mUnacknowledged.clear();
+        mAcknowledgedAhead.clear();
+    }
+
+    /**
+     * @return Bytes appended but not yet acknowledged.
+     */
+    public synchronized long getBacklogBytes() {
+        return mAppendOffset - mCommitOffset;
+    }
+
+    /**
+     * @return Records read but not yet acknowledged.
+     */
+    public synchronized int getUnacknowledgedCount() {
+        return mUnacknowledged.size();
+    }
+
+    public synchronized long getAppendedCount() {
+        return mAppendedCount;
+    }
+
+    /**
+     * @return Segments deleted before delivery because the disk budget was exceeded.
+     */
+    public synchronized long getDroppedSegmentCount() {
+        return mDroppedSegments;
+    }
+
+    public synchronized long getCorruptRecordCount() {
+        return mCorruptRecords;
+    }
+
+    /**
+     * Flushes the mapped segments to disk. Appends survive the process being killed without this,
+     * but not the device losing power.
+     */
+    public synchronized void sync() {
+        if (mClosed) {
+            return;
+        }
+        mWriteBuffer.force();
+        mCommitBuffer.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        sync();
+        mClosed = true;
+        mCommitFile.close();
+        mWriteBuffer = null;
+        mReadBuffer = null;
+    }
+
+    private void checkOpen() throws IOException {
+        if (mClosed) {
+            throw new IOException("Outbox is closed");
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+import com.example.android.bluetoothlegatt.data.PipelineLatency;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends every outbound message through an {@link Outbox}, so messages are kept on disk until the
+ * broker confirms delivery.
+ *
+ * Messages are appended on the caller's thread and sent from a single drain thread whenever the
+ * client is connected. Each publish carries the record's offset as its user context, which is
+ * handed back in {@link #deliveryComplete(IMqttDeliveryToken)} to commit it. On reconnect the
+ * outbox is rewound and anything not yet confirmed is sent again in order, so delivery is at least
+ * once for QoS 1 and 2.
+ *
+ * Each record is published at the QoS {@link MqttConfig#qos} gives its topic. Publishes are
+ * pipelined up to the {@link InflightWindow} for that QoS; once it is full the drain stops until a
+ * delivery completes, rather than running into the client's max in-flight limit.
+ *
+ * If a {@link PipelineLatency} is set, the time each message waits in the outbox and the time to
+ * delivery are recorded. Timings are held in memory, so messages replayed after a restart or
+ * reconnect are only measured from when they are sent.
+ *
+ * Failures to append to, read from or close the outbox are counted and passed to the
+ * {@link ErrorListener}, which by default writes them to standard error. A drain stopped by a read
+ * failure is retried a second later, as nothing else may arrive to restart it.
+ */
+public class OutboxPublisher implements MessageSink {
+
+    /**
+     * Told of outbox failures, on the thread which hit them.
+     */
+    public interface ErrorListener {
+        void onError(String message, Exception e);
+    }
+
+    private static final ErrorListener STDERR = new ErrorListener() {
+        @Override
+        public void onError(String message, Exception e) {
+            System.err.println(e != null ? message + ": " + e.getMessage() : message);
+        }
+    };
+
+    // Timings kept for messages not yet sent; beyond this the oldest are not measured
+    private static final int TIMING_CAPACITY = 4096;
+    // Longest close waits for a drain already running to finish
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+    // Delay before draining again after failing to read the outbox
+    private static final long READ_RETRY_MS = 1000;
+
+    private final Outbox mOutbox;
+    private final IMqttAsyncClient mClient;
+    private final InflightWindow mWindow;
+    private final ScheduledExecutorService mExecutor;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+    // Only used on the drain thread
+    private final Outbox.Record mRecord = new Outbox.Record();
+    private final HashMap<String, Integer> mTopicQos = new HashMap<>();
+    private volatile boolean mConnected = false;
+    // Appended to from the caller's thread and the batching timer
+    private final AtomicLong mAppendFailures = new AtomicLong();
+    private final AtomicLong mReadFailures = new AtomicLong();
+    private final AtomicLong mCloseFailures = new AtomicLong();
+    private volatile ErrorListener mErrorListener = STDERR;
+    private volatile PipelineLatency mLatency;
+
+    // Ring of offset, ingress and append time of each appended record, in offset order. Guarded by
+    // mTimingOffsets.
+    private final long[] mTimingOffsets = new long[TIMING_CAPACITY];
+    private final long[] mTimingIngress = new long[TIMING_CAPACITY];
+    private final long[] mTimingAppend = new long[TIMING_CAPACITY];
+    private int mTimingHead = 0;
+    private int mTimingSize = 0;
+
+    /**
+     * User context of each publish, identifying the record and when it was sent.
+     */
+    private static class InFlight extends InflightWindow.Ticket {
+        final long mOffset;
+        boolean mTimed;
+        long mIngressNanos;
+
+        InFlight(long offset, int qos) {
+            super(qos);
+            mOffset = offset;
+        }
+    }
+
+    /**
+     * Publishes with a window sized from {@link MqttConfig}.
+     */
+    public OutboxPublisher(Outbox outbox, IMqttAsyncClient client) {
+        this(outbox, client, InflightWindow.fromConfig());
+    }
+
+    public OutboxPublisher(Outbox outbox, IMqttAsyncClient client, InflightWindow window) {
+        mOutbox = outbox;
+        mClient = client;
+        mWindow = window;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "OutboxPublisher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            drain();
+        }
+    };
+
+    @Override
+    public void publish(String topic, byte[] payload, long timestampNanos) {
+        try {
+            if (mLatency == null) {
+                mOutbox.append(topic, payload);
+            } else {
+                // Appended under the lock so timings stay in offset order
+                synchronized (mTimingOffsets) {
+                    long offset = mOutbox.append(topic, payload);
+                    if (mTimingSize == TIMING_CAPACITY) {
+                        mTimingHead = (mTimingHead + 1) % TIMING_CAPACITY;
+                        mTimingSize--;
+                    }
+                    int tail = (mTimingHead + mTimingSize) % TIMING_CAPACITY;
+                    mTimingOffsets[tail] = offset;
+                    mTimingIngress[tail] = timestampNanos;
+                    mTimingAppend[tail] = System.nanoTime();
+                    mTimingSize++;
+                }
+            }
+        } catch (IOException e) {
+            mAppendFailures.incrementAndGet();
+            mErrorListener.onError("Error appending to outbox", e);
+            return;
+        }
+        requestDrain();
+    }
+
+    /**
+     * Called once the client has connected, to replay anything not yet delivered.
+     */
+    public void onConnected() {
+        mConnected = true;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Everything unconfirmed is sent again, so forget what was in flight
+                mWindow.reset();
+                mOutbox.rewind();
+                drain();
+            }
+        });
+    }
+
+    public void onDisconnected() {
+        mConnected = false;
+        mWindow.reset();
+    }
+
+    /**
+     * Called from the client's {@code deliveryComplete} callback.
+     */
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        Object context = token.getUserContext();
+        if (context instanceof InFlight) {
+            InFlight inFlight = (InFlight) context;
+            mWindow.complete(inFlight);
+            mOutbox.acknowledge(inFlight.mOffset);
+            PipelineLatency latency = mLatency;
+            if (latency != null) {
+                long now = System.nanoTime();
+                latency.record(PipelineLatency.STAGE_DELIVERY, now - inFlight.getSentNanos());
+                if (inFlight.mTimed) {
+                    latency.record(PipelineLatency.STAGE_TOTAL, now - inFlight.mIngressNanos);
+                }
+            }
+        }
+        // Completion frees a slot in the window
+        requestDrain();
+    }
+
+    private void requestDrain() {
+        if (mConnected && mDrainScheduled.compareAndSet(false, true)) {
+            try {
+                mExecutor.execute(mDrain);
+            } catch (RejectedExecutionException e) {
+                // closed
+                mDrainScheduled.set(false);
+            }
+        }
+    }
+
+    private void retryDrain() {
+        if (mConnected && mDrainScheduled.compareAndSet(false, true)) {
+            try {
+                mExecutor.schedule(mDrain, READ_RETRY_MS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // closed
+                mDrainScheduled.set(false);
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            while (mConnected && mOutbox.next(mRecord)) {
+                InFlight inFlight = new InFlight(mRecord.nextOffset, qosFor(mRecord.topic));
+                if (!mWindow.tryAcquire(inFlight)) {
+                    // Records go out in order, so wait for a completion even if another QoS level
+                    // has room
+                    mOutbox.unread(mRecord);
+                    break;
+                }
+                MqttMessage message = new MqttMessage(mRecord.payload);
+                message.setQos(inFlight.qos);
+                long appendNanos = findTiming(inFlight);
+                try {
+                    mClient.publish(mRecord.topic, message, inFlight, null);
+                } catch (MqttException e) {
+                    // The client is full with messages it restored itself, or the connection has
+                    // gone; try this record again on the next completion or reconnect
+                    mWindow.reject(inFlight);
+                    mOutbox.unread(mRecord);
+                    break;
+                }
+                if (inFlight.mTimed) {
+                    removeTiming(inFlight.mOffset);
+                    PipelineLatency latency = mLatency;
+                    if (latency != null) {
+                        latency.record(PipelineLatency.STAGE_QUEUED, inFlight.getSentNanos() - appendNanos);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            mReadFailures.incrementAndGet();
+            mErrorListener.onError("Error reading outbox", e);
+            // Nothing else may arrive to restart the drain
+            retryDrain();
+        }
+    }
+
+    private int qosFor(String topic) {
+        Integer qos = mTopicQos.get(topic);
+        if (qos == null) {
+            qos = MqttConfig.qos(topic);
+            mTopicQos.put(topic, qos);
+        }
+        return qos;
+    }
+
+    // Fills in the ingress time of the record and returns its append time, discarding timings for
+    // records which were skipped
+    private long findTiming(InFlight inFlight) {
+        synchronized (mTimingOffsets) {
+            while (mTimingSize > 0 && mTimingOffsets[mTimingHead] < inFlight.mOffset) {
+                mTimingHead = (mTimingHead + 1) % TIMING_CAPACITY;
+                mTimingSize--;
+            }
+            if (mTimingSize > 0 && mTimingOffsets[mTimingHead] == inFlight.mOffset) {
+                inFlight.mTimed = true;
+                inFlight.mIngressNanos = mTimingIngress[mTimingHead];
+                return mTimingAppend[mTimingHead];
+            }
+            return 0;
+        }
+    }
+
+    private void removeTiming(long offset) {
+        synchronized (mTimingOffsets) {
+            if (mTimingSize > 0 && mTimingOffsets[mTimingHead] == offset) {
+                mTimingHead = (mTimingHead + 1) % TIMING_CAPACITY;
+                mTimingSize--;
+            }
+        }
+    }
+
+    /**
+     * Starts recording outbox and delivery latency into {@code latency}.
+     */
+    public void setLatency(PipelineLatency latency) {
+        mLatency = latency;
+    }
+
+    public Outbox getOutbox() {
+        return mOutbox;
+    }
+
+    public InflightWindow getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Replaces the default listener, which writes failures to standard error.
+     */
+    public void setErrorListener(ErrorListener listener) {
+        mErrorListener = listener;
+    }
+
+    public long getAppendFailureCount() {
+        return mAppendFailures.get();
+    }
+
+    public long getReadFailureCount() {
+        return mReadFailures.get();
+    }
+
+    public long getCloseFailureCount() {
+        return mCloseFailures.get();
+    }
+
+    @Override
+    public String toString() {
+        return "appendFailures=" + mAppendFailures.get() + " readFailures=" + mReadFailures.get()
+                + " closeFailures=" + mCloseFailures.get();
+    }
+
+    public void close() {
+        mConnected = false;
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                mErrorListener.onError("Outbox drain still running after " + CLOSE_TIMEOUT_MS
+                        + " ms, closing anyway", null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            mOutbox.close();
+        } catch (IOException e) {
+            mCloseFailures.incrementAndGet();
+            mErrorListener.onError("Error closing outbox", e);
+        }
+    }
+}
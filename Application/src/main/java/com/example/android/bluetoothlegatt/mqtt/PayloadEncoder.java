@@ -0,0 +1,47 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+import com.example.android.bluetoothlegatt.ble.GattDispatchTable;
+import com.example.android.bluetoothlegatt.data.SensorSample;
+
+import java.util.HashMap;
+
+/**
+ * Encodes samples using the payload format configured for their topic in {@link MqttConfig}. Not
+ * thread safe, each consumer should have its own encoder.
+ */
+public class PayloadEncoder {
+
+    private final int[] mFormats = new int[SensorSample.TYPE_COUNT];
+    // Binary payloads carry a device id and per-device sequence numbers
+    private final HashMap<String, BinaryPayload> mBinaryPayloads = new HashMap<>();
+
+    public PayloadEncoder(GattDispatchTable dispatchTable) {
+        for (int type = 0; type < SensorSample.TYPE_COUNT; type++) {
+            GattDispatchTable.Route route = dispatchTable.lookup(type);
+            mFormats[type] = route == null || route.topic == null
+                    ? MqttConfig.PAYLOAD_TEXT : MqttConfig.payloadFormat(route.topic);
+        }
+    }
+
+    public int getFormat(int sampleType) {
+        return mFormats[sampleType];
+    }
+
+    /**
+     * @param sample The sample to encode.
+     * @param nowNanos {@code System.nanoTime()} at the time of the call, used to convert the
+     *                 sample's ingress time into a wall clock timestamp.
+     */
+    public byte[] encode(SensorSample sample, long nowNanos) {
+        if (mFormats[sample.type] == MqttConfig.PAYLOAD_BINARY) {
+            long timestampMillis = System.currentTimeMillis() - (nowNanos - sample.timestampNanos) / 1000000L;
+            BinaryPayload binaryPayload = mBinaryPayloads.get(sample.device);
+            if (binaryPayload == null) {
+                binaryPayload = new BinaryPayload(sample.device);
+                mBinaryPayloads.put(sample.device, binaryPayload);
+            }
+            return binaryPayload.encode(sample, timestampMillis);
+        }
+        return TextPayload.format(sample).getBytes();
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+import com.example.android.bluetoothlegatt.Utility;
+import com.example.android.bluetoothlegatt.data.OrientationFusion;
+import com.example.android.bluetoothlegatt.data.SensorSample;
+import com.example.android.bluetoothlegatt.data.StreamJoin;
+import com.example.android.bluetoothlegatt.data.WindowSummary;
+
+import java.util.Locale;
+
+/**
+ * The original human readable payloads, kept for existing consumers of the text topics.
+ */
+public class TextPayload {
+
+    /**
+     * @return The value as displayed and published, e.g. {@code "(0.120,-0.980,0.004)"} for the
+     *         accelerometer or {@code "NE - 50"} for the bearing.
+     */
+    public static String formatValue(SensorSample sample) {
+        switch (sample.type) {
+            case SensorSample.TYPE_ACCELEROMETER:
+            case SensorSample.TYPE_MAGNETOMETER:
+                // range is -1024 : +1024 for the accelerometer
+                // Starting with the LED display face up and level (perpendicular to gravity) and edge connector towards your body:
+                // A negative X value means tilting left, a positive X value means tilting right
+                // A negative Y value means tilting away from you, a positive Y value means tilting towards you
+                // A negative Z value means ?
+                return String.format(Locale.UK, "(%.3f,%.3f,%.3f)", sample.x / 1000f, sample.y / 1000f, sample.z / 1000f);
+            case SensorSample.TYPE_MAGNETOMETER_BEARING:
+                return String.format(Locale.UK, "%s - %d", Utility.compassBearing((short) sample.value), sample.value);
+            case SensorSample.TYPE_ACCELEROMETER_PERIOD:
+            case SensorSample.TYPE_TEMPERATURE_PERIOD:
+            case SensorSample.TYPE_MAGNETOMETER_PERIOD:
+                return String.format(Locale.UK, "%d ms", sample.value);
+            default:
+                return Integer.toString(sample.value);
+        }
+    }
+
+    /**
+     * @return The MQTT text payload, which prefixes the button state with the button name since
+     *         both buttons share a topic.
+     */
+    public static String format(SensorSample sample) {
+        switch (sample.type) {
+            case SensorSample.TYPE_BUTTON_A:
+                return "A_" + sample.value;
+            case SensorSample.TYPE_BUTTON_B:
+                return "B_" + sample.value;
+            default:
+                return formatValue(sample);
+        }
+    }
+
+    /**
+     * @param timestampMillis Wall clock time of the end of the window.
+     * @return A JSON summary of the window, with the axes scaled as in {@link #formatValue}, e.g.
+     *         {@code {"t":1481385600000,"n":12,"mean":[0.120,-0.980,0.004],...}}.
+     */
+    public static String formatSummary(WindowSummary summary, long timestampMillis) {
+        return String.format(Locale.UK,
+                "{\"t\":%d,\"window\":%d,\"n\":%d,\"mean\":[%.3f,%.3f,%.3f],\"min\":[%.3f,%.3f,%.3f]," +
+                        "\"max\":[%.3f,%.3f,%.3f],\"rms\":[%.3f,%.3f,%.3f],\"magnitude\":%.3f,\"maxMagnitude\":%.3f}",
+                timestampMillis, (summary.endNanos - summary.startNanos) / 1000000L, summary.count,
+                summary.mean[0] / 1000, summary.mean[1] / 1000, summary.mean[2] / 1000,
+                summary.min[0] / 1000f, summary.min[1] / 1000f, summary.min[2] / 1000f,
+                summary.max[0] / 1000f, summary.max[1] / 1000f, summary.max[2] / 1000f,
+                summary.rms[0] / 1000, summary.rms[1] / 1000, summary.rms[2] / 1000,
+                summary.meanMagnitude / 1000, summary.maxMagnitude / 1000);
+    }
+
+    /**
+     * @param timestampMillis Wall clock time of the magnetometer sample.
+     * @return A JSON record of the fused orientation in degrees, with the age of the accelerometer
+     *         sample used, e.g. {@code {"t":1481385600000,"pitch":-2.1,"roll":0.4,"heading":187.3,"skew":12}}.
+     */
+    public static String formatOrientation(OrientationFusion.Orientation orientation, long timestampMillis) {
+        return String.format(Locale.UK, "{\"t\":%d,\"pitch\":%.1f,\"roll\":%.1f,\"heading\":%.1f,\"skew\":%d}",
+                timestampMillis, orientation.pitch, orientation.roll, orientation.heading,
+                (orientation.timestampNanos - orientation.accelerometerNanos) / 1000000L);
+    }
+
+    /**
+     * @param timestampMillis Wall clock time of the accelerometer sample.
+     * @return A JSON record of an accelerometer sample and the magnetometer at its time, scaled as
+     *         in {@link #formatValue}, with the offset in ms of the nearest magnetometer sample, e.g.
+     *         {@code {"t":1481385600000,"acc":[0.120,-0.980,0.004],"mag":[0.190,-0.052,-0.401],"dt":-4,"interp":true}}.
+     */
+    public static String formatAligned(StreamJoin.AlignedFrame frame, long timestampMillis) {
+        return String.format(Locale.UK,
+                "{\"t\":%d,\"acc\":[%.3f,%.3f,%.3f],\"mag\":[%.3f,%.3f,%.3f],\"dt\":%d,\"interp\":%b}",
+                timestampMillis, frame.primary[0] / 1000f, frame.primary[1] / 1000f, frame.primary[2] / 1000f,
+                frame.secondary[0] / 1000, frame.secondary[1] / 1000, frame.secondary[2] / 1000,
+                frame.offsetNanos / 1000000L, frame.interpolated);
+    }
+}
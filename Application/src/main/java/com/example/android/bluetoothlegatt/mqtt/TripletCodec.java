@@ -0,0 +1,272 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+/**
+ * Compressed encoding of a batch of timestamped int16 triplets from one sensor, such as a run of
+ * accelerometer or magnetometer samples.
+ *
+ * Consecutive samples are strongly correlated, so rather than the values each sample stores the
+ * change from the previous one as a zigzag varint: one byte for changes within +/-63. Timestamps
+ * are sampled at a near constant period, so they store the change in the interval between samples
+ * (delta of delta), usually a single byte of 0 or close to it.
+ * <pre>
+ * offset size  field
+ *  0     1     version (currently 1)
+ *  1     1     schema id, BinaryPayload.SCHEMA_ACCELEROMETER or SCHEMA_MAGNETOMETER
+ *  2     2     sample count, little-endian uint16
+ *  4     8     timestamp of the first sample, little-endian int64 ms since the epoch
+ * 12     ...   per sample:
+ *              timestamp: nothing for the first sample, the zigzag varint interval from the first
+ *                         for the second, then the zigzag varint change in interval
+ *              x, y, z:   zigzag varint change from the previous sample (from 0 for the first)
+ * </pre>
+ * A varint holds 7 bits per byte, least significant group first, with the top bit set on every
+ * byte but the last.
+ */
+public class TripletCodec {
+
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 12;
+    public static final int MAX_SAMPLES = 0xFFFF;
+    // 10 bytes for a 64 bit timestamp change and 3 for each 17 bit axis change
+    public static final int MAX_SAMPLE_LENGTH = 10 + 3 * 3;
+
+    /**
+     * Appends samples one at a time to a buffer sized up front for the largest batch, so encoding
+     * never reallocates. Not thread safe.
+     */
+    public static class Encoder {
+        private final byte[] mBuffer;
+        private final int mMaxSamples;
+        private int mLength;
+        private int mCount;
+        private long mPreviousTimestamp;
+        private long mPreviousInterval;
+        private int mPreviousX;
+        private int mPreviousY;
+        private int mPreviousZ;
+
+        /**
+         * @param schema BinaryPayload schema recorded in the header.
+         * @param maxSamples Most samples a batch will hold, at most {@link #MAX_SAMPLES}.
+         */
+        public Encoder(int schema, int maxSamples) {
+            if (maxSamples < 1 || maxSamples > MAX_SAMPLES) {
+                throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_SAMPLES);
+            }
+            mMaxSamples = maxSamples;
+            mBuffer = new byte[HEADER_LENGTH + maxSamples * MAX_SAMPLE_LENGTH];
+            mBuffer[0] = (byte) VERSION;
+            mBuffer[1] = (byte) schema;
+            reset();
+        }
+
+        /**
+         * Starts a new batch.
+         */
+        public void reset() {
+            mLength = HEADER_LENGTH;
+            mCount = 0;
+            mBuffer[2] = 0;
+            mBuffer[3] = 0;
+            mPreviousX = 0;
+            mPreviousY = 0;
+            mPreviousZ = 0;
+        }
+
+        /**
+         * @return False if the batch is full and the sample was not added.
+         */
+        public boolean append(long timestampMillis, short x, short y, short z) {
+            if (mCount == mMaxSamples) {
+                return false;
+            }
+            if (mCount == 0) {
+                BinaryPayload.writeLong(timestampMillis, mBuffer, 4);
+                mPreviousInterval = 0;
+            } else {
+                long interval = timestampMillis - mPreviousTimestamp;
+                mLength = writeVarLong(zigzag(interval - mPreviousInterval), mBuffer, mLength);
+                mPreviousInterval = interval;
+            }
+            mPreviousTimestamp = timestampMillis;
+            mLength = writeVarInt(zigzag(x - mPreviousX), mBuffer, mLength);
+            mLength = writeVarInt(zigzag(y - mPreviousY), mBuffer, mLength);
+            mLength = writeVarInt(zigzag(z - mPreviousZ), mBuffer, mLength);
+            mPreviousX = x;
+            mPreviousY = y;
+            mPreviousZ = z;
+            mCount++;
+            mBuffer[2] = (byte) mCount;
+            mBuffer[3] = (byte) (mCount >> 8);
+            return true;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return Bytes of {@link #getBuffer()} holding the encoded batch.
+         */
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * @return The encoder's own buffer, valid until the next append or reset.
+         */
+        public byte[] getBuffer() {
+            return mBuffer;
+        }
+
+        /**
+         * @return A copy of the encoded batch, e.g. to publish.
+         */
+        public byte[] toByteArray() {
+            byte[] out = new byte[mLength];
+            System.arraycopy(mBuffer, 0, out, 0, mLength);
+            return out;
+        }
+    }
+
+    /**
+     * Reads the samples of an encoded batch in order without allocating. Not thread safe.
+     */
+    public static class Decoder {
+        private byte[] mData;
+        private int mPosition;
+        private int mEnd;
+        private int mSchema;
+        private int mCount;
+        private int mRead;
+        private long mTimestamp;
+        private long mInterval;
+        private int mX;
+        private int mY;
+        private int mZ;
+
+        /**
+         * Starts reading a batch.
+         *
+         * @throws IllegalArgumentException If the batch is truncated or of an unknown version.
+         */
+        public Decoder reset(byte[] data, int offset, int length) {
+            if (length < HEADER_LENGTH) {
+                throw new IllegalArgumentException("Batch too short: " + length);
+            }
+            if ((data[offset] & 0xFF) != VERSION) {
+                throw new IllegalArgumentException("Unsupported batch version " + (data[offset] & 0xFF));
+            }
+            mData = data;
+            mSchema = data[offset + 1] & 0xFF;
+            mCount = (data[offset + 2] & 0xFF) | (data[offset + 3] & 0xFF) << 8;
+            mTimestamp = BinaryPayload.readLong(data, offset + 4);
+            mPosition = offset + HEADER_LENGTH;
+            mEnd = offset + length;
+            mRead = 0;
+            mInterval = 0;
+            mX = 0;
+            mY = 0;
+            mZ = 0;
+            return this;
+        }
+
+        public Decoder reset(byte[] data) {
+            return reset(data, 0, data.length);
+        }
+
+        public int getSchema() {
+            return mSchema;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Advances to the next sample.
+         *
+         * @return False once every sample has been read.
+         * @throws IllegalArgumentException If the batch is truncated.
+         */
+        public boolean next() {
+            if (mRead == mCount) {
+                return false;
+            }
+            if (mRead > 0) {
+                mInterval += unzigzag(readVarLong());
+                mTimestamp += mInterval;
+            }
+            mX += unzigzag((int) readVarLong());
+            mY += unzigzag((int) readVarLong());
+            mZ += unzigzag((int) readVarLong());
+            mRead++;
+            return true;
+        }
+
+        public long getTimestampMillis() {
+            return mTimestamp;
+        }
+
+        public short getX() {
+            return (short) mX;
+        }
+
+        public short getY() {
+            return (short) mY;
+        }
+
+        public short getZ() {
+            return (short) mZ;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (mPosition >= mEnd) {
+                    throw new IllegalArgumentException("Batch truncated at sample " + mRead);
+                }
+                byte b = mData[mPosition++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint at sample " + mRead);
+        }
+    }
+
+    static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static int writeVarInt(int v, byte[] out, int offset) {
+        while ((v & ~0x7F) != 0) {
+            out[offset++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out[offset++] = (byte) v;
+        return offset;
+    }
+
+    static int writeVarLong(long v, byte[] out, int offset) {
+        while ((v & ~0x7FL) != 0) {
+            out[offset++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out[offset++] = (byte) v;
+        return offset;
+    }
+}
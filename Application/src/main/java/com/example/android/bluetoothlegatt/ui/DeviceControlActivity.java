@@ -28,18 +28,23 @@ import android.content.res.Configuration;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.*;
 import com.example.android.bluetoothlegatt.R;
-import com.example.android.bluetoothlegatt.Utility;
 import com.example.android.bluetoothlegatt.ble.BluetoothLeService;
 import com.example.android.bluetoothlegatt.ble.GattAttributes;
+import com.example.android.bluetoothlegatt.data.LatencyHistogram;
+import com.example.android.bluetoothlegatt.data.SampleHandler;
+import com.example.android.bluetoothlegatt.data.SampleRingBuffer;
+import com.example.android.bluetoothlegatt.data.SampleSnapshot;
+import com.example.android.bluetoothlegatt.data.SensorSample;
 import com.example.android.bluetoothlegatt.mqtt.MqttConfig;
-import org.eclipse.paho.android.service.MqttAndroidClient;
-import org.eclipse.paho.client.mqttv3.*;
+import com.example.android.bluetoothlegatt.mqtt.TextPayload;
 
 import java.util.*;
 
@@ -47,19 +52,23 @@ import java.util.*;
  * For a given BLE device, this Activity provides the user interface to connect, display data,
  * and display GATT services and characteristics supported by the device.  The Activity
  * communicates with {@code BluetoothLeService}, which in turn interacts with the
- * Bluetooth LE API.
+ * Bluetooth LE API. The service subscribes to the sensors and publishes them over MQTT on its
+ * own, so this Activity only observes it and closing it leaves the device streaming.
  */
 public class DeviceControlActivity extends Activity {
     private final static String TAG = DeviceControlActivity.class.getSimpleName();
 
-    public static final short SAMPLE_RATE = 80;
-
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
 
+    // Shortest time between redraws of the sample values, 0 redraws on every display frame with a
+    // change
+    public static final long UI_REFRESH_INTERVAL_MS = 0;
+    // Render times above this are clamped in the histogram
+    private static final long HIGHEST_RENDER_NANOS = 1000L * 1000 * 1000;
+
 
     //MqttVariable
-    private MqttAndroidClient mMqttAndroidClient;
     private TextView mMqttConnectState;
     private boolean mMqttConnected = false;
 
@@ -74,6 +83,16 @@ public class DeviceControlActivity extends Activity {
     private TextView mMagnData;
     private TextView mMagnPeriod;
     private TextView mMagnBearing;
+    private final TextView[] mSampleViews = new TextView[SensorSample.TYPE_COUNT];
+    // Latest values written by the consumer thread and drawn at most once per frame
+    private final SampleSnapshot mSnapshot = new SampleSnapshot();
+    private final SensorSample[] mFrameSamples = new SensorSample[SensorSample.TYPE_COUNT];
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final LatencyHistogram mRenderTime = new LatencyHistogram(HIGHEST_RENDER_NANOS, 5);
+    private boolean mResumed = false;
+    private long mLastFrameNanos;
+    private long mFrameCount;
+    private long mViewUpdateCount;
     private Button mMqttButton;
     private String mDeviceName;
     private String mDeviceAddress;
@@ -85,6 +104,8 @@ public class DeviceControlActivity extends Activity {
     private boolean mBleConnected = false;
     private BluetoothGattCharacteristic mNotifyCharacteristic;
     private boolean mSetupComplete = false;
+    private BluetoothLeService.LocalBinder mServiceBinder;
+    private SampleRingBuffer.Consumer mSampleConsumer;
 
     private final String LIST_NAME = "NAME";
     private final String LIST_UUID = "UUID";
@@ -94,11 +115,15 @@ public class DeviceControlActivity extends Activity {
 
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
-            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            mServiceBinder = (BluetoothLeService.LocalBinder) service;
+            mBluetoothLeService = mServiceBinder.getService();
             if (!mBluetoothLeService.initialize()) {
                 Log.e(TAG, "Unable to initialize Bluetooth");
                 finish();
             }
+            mMqttConnected = mBluetoothLeService.isMqttConnected();
+            updateMqttConnectState(mMqttConnected ? R.string.connected : R.string.disconnected);
+            mSampleConsumer = mServiceBinder.addSampleHandler(TAG, mSampleHandler);
             // Automatically connects to the device upon successful start-up initialization.
             mBluetoothLeService.connect(mDeviceAddress);
         }
@@ -106,6 +131,8 @@ public class DeviceControlActivity extends Activity {
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             mBluetoothLeService = null;
+            mServiceBinder = null;
+            mSampleConsumer = null;
         }
     };
 
@@ -113,12 +140,25 @@ public class DeviceControlActivity extends Activity {
     // ACTION_GATT_CONNECTED: connected to a GATT server.
     // ACTION_GATT_DISCONNECTED: disconnected from a GATT server.
     // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
-    // ACTION_DATA_AVAILABLE: received data from the device.  This can be a result of read
-    //                        or notification operations.
+    // ACTION_DEVICE_READY: the service has subscribed to the device's sensors.
+    // ACTION_MQTT_CONNECTED, ACTION_MQTT_DISCONNECTED: the broker connection changed.
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
+            if (BluetoothLeService.ACTION_MQTT_CONNECTED.equals(action)) {
+                mMqttConnected = true;
+                updateMqttConnectState(R.string.connected);
+                return;
+            } else if (BluetoothLeService.ACTION_MQTT_DISCONNECTED.equals(action)) {
+                mMqttConnected = false;
+                updateMqttConnectState(R.string.disconnected);
+                return;
+            }
+            if (!mDeviceAddress.equals(intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS))) {
+                // The service may also be connected to other devices
+                return;
+            }
             if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
                 mBleConnected = true;
                 updateBleConnectState(R.string.connected);
@@ -130,196 +170,71 @@ public class DeviceControlActivity extends Activity {
                 clearUI();
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
                 // Show all the supported services and characteristics on the user interface.
-                List<BluetoothGattService> services = mBluetoothLeService.getSupportedGattServices();
+                List<BluetoothGattService> services = mBluetoothLeService.getSupportedGattServices(mDeviceAddress);
                 displayGattServices(services);
-
-                // find accelerometer characteristic
-                boolean accelActive = false;
-                boolean tempActive = false;
-                boolean btnActive = false;
-                boolean magnetActive = false;
-
-                HashMap<String, BluetoothGattCharacteristic> characteristics = new HashMap<>();
-                // Finding all characteristics of services which are defined with a name in the GattAttributes class
-                // (characteristics which are known to us) and stored in an easy to access way
-                for (BluetoothGattService s: services) {
-                    Log.d(TAG, "service uuid: "+s.getUuid());
-                    if (s.getUuid().equals(UUID.fromString(GattAttributes.ACCELEROMETER_SERVICE))) {
-                        accelActive = true;
-                    } else if (s.getUuid().equals(UUID.fromString(GattAttributes.TEMPERATURE_SERVICE))) {
-                        tempActive = true;
-                    } else if (s.getUuid().equals(UUID.fromString(GattAttributes.BUTTON_SERVICE))) {
-                        btnActive = true;
-                    } else if (s.getUuid().equals(UUID.fromString(GattAttributes.MAGNETOMETER_SERVICE))) {
-                        magnetActive = true;
-                    }
-                    for (BluetoothGattCharacteristic c: s.getCharacteristics()) {
-                        String name = GattAttributes.lookup(c.getUuid().toString(), null);
-                        if (name != null) {
-                            characteristics.put(c.getUuid().toString(), c);
-                        }
-                    }
-                }
-                final List<BluetoothGattCharacteristic> notifyCharacteristic = new ArrayList<>();
-                final List<BluetoothGattCharacteristic> readCharacteristic = new ArrayList<>();
-                if (accelActive) {
-                    // Set the accelerometer period to our defined value and read to check
-                    notifyCharacteristic.add(characteristics.get(GattAttributes.ACCELEROMETER_MEASUREMENT));
-                    final BluetoothGattCharacteristic pchar = characteristics.get(GattAttributes.ACCELEROMETER_PERIOD);
-                    readCharacteristic.add(pchar);
-                    Log.d(TAG, "Accelerometer period set to "+SAMPLE_RATE+" ms");
-                    mBluetoothLeService.writeCharacteristic(pchar, Utility.leBytesFromShort(SAMPLE_RATE));
-                } else {
-                    Log.d(TAG, "Accelerometer service not found");
-                }
-                if (tempActive) {
-                    notifyCharacteristic.add(characteristics.get(GattAttributes.TEMPERATURE_MEASUREMENT));
-                    BluetoothGattCharacteristic pchar = characteristics.get(GattAttributes.TEMPERATURE_PERIOD);
-                    readCharacteristic.add(pchar);
-                    // if we want to update the period set it here
-                    //TODO: change sample rate?
-                } else {
-                    Log.d(TAG, "Temperature service not found");
-                }
-                if (btnActive) {
-                    notifyCharacteristic.add(characteristics.get(GattAttributes.BUTTON_A_MEASUREMENT));
-                    notifyCharacteristic.add(characteristics.get(GattAttributes.BUTTON_B_MEASUREMENT));
-                } else {
-                    Log.d(TAG, "Button service not found");
-                }
-                if (magnetActive) {
-                    notifyCharacteristic.add(characteristics.get(GattAttributes.MAGNETOMETER_MEASUREMENT));
-                    notifyCharacteristic.add(characteristics.get(GattAttributes.MAGNETOMETER_BEARING));
-                    BluetoothGattCharacteristic pchar = characteristics.get(GattAttributes.MAGNETOMETER_PERIOD);
-                    readCharacteristic.add(pchar);
-                    // If the sample rate should be changed for magnetometer, do it here
-                    //TODO: change sample rate?
-                } else {
-                    Log.d(TAG, "Magnetometer service not found");
-                }
-
-                // Reading all of the readChar characteristics with a delay to ensure there is significant time
-                // to read
-                Handler handler = new Handler();
-                int delay = 500;
-                for (int i = 0; i < readCharacteristic.size(); i++) {
-                    final int pos = i;
-                    handler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            mBluetoothLeService.readCharacteristic(readCharacteristic.get(pos));
-                            if ((pos == (readCharacteristic.size()-1)) && (notifyCharacteristic.size() == 0)) {
-                                // last iteration and no notifies to register
-                                mSetupComplete = true;
-                                invalidateOptionsMenu();
-                            }
-                        }
-                    }, delay);
-                    delay = delay + 100;
-                }
-
-                // Setting notifications for all added to the notify list
-                delay = 1000;
-                for (int i = 0; i < notifyCharacteristic.size(); i++) {
-                    final int pos = i;
-                    handler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            mBluetoothLeService.setCharacteristicNotification(notifyCharacteristic.get(pos), true);
-                            if (pos == (notifyCharacteristic.size()-1)) {
-                                // last iteration
-                                mSetupComplete = true;
-                                invalidateOptionsMenu();
-                            }
-                        }
-                    }, delay);
-                    delay = delay + 200;
-                }
-
-                if (readCharacteristic.size() == 0 && notifyCharacteristic.size() == 0) {
-                    mSetupComplete = true;
-                    invalidateOptionsMenu();
-                }
-
-            } else if (BluetoothLeService.ACTION_DATA_AVAILABLE.equals(action)) {
-                // ACCELEROMETER HANDLERS
-                if (intent.hasCategory(BluetoothLeService.ACCELEROMETER_MEASUREMENT)) {
-                    String strData = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                    displayData(mAccellData, strData);
-                    publishMqttMessage(MqttConfig.TOPIC_ACCELEROMETER, strData);
-                } else if (intent.hasCategory(BluetoothLeService.ACCELEROMETER_PERIOD)) {
-                    displayPeriod(mAccellPeriod, intent.getShortExtra(BluetoothLeService.EXTRA_DATA, (short) 0));
-                }
-                // TEMPERATURE HANDLERS
-                else if (intent.hasCategory(BluetoothLeService.TEMPERATURE_MEASUREMENT)) {
-                    String strData = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                    displayData(mTempData, strData);
-                    publishMqttMessage(MqttConfig.TOPIC_TEMPERATURE, strData);
-                } else if (intent.hasCategory(BluetoothLeService.TEMPERATURE_PERIOD)) {
-                    displayPeriod(mTempPeriod, intent.getShortExtra(BluetoothLeService.EXTRA_DATA, (short) 0));
-                }
-                // BUTTON HANDLERS
-                else if (intent.hasCategory(BluetoothLeService.BUTTON_A_MEASUREMENT)) {
-                    String strData = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                    displayData(mButtonAData, strData);
-                    publishMqttMessage(MqttConfig.TOPIC_BUTTON, "A_"+strData);
-                } else if (intent.hasCategory(BluetoothLeService.BUTTON_B_MEASUREMENT)) {
-                    String strData = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                    displayData(mButtonBData, strData);
-                    publishMqttMessage(MqttConfig.TOPIC_BUTTON, "B_"+strData);
-                }
-                // MAGNETOMETER HANDLERS
-                else if (intent.hasCategory(BluetoothLeService.MAGNETOMETER_MEASUREMENT)) {
-                    String strData = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                    displayData(mMagnData, strData);
-                    publishMqttMessage(MqttConfig.TOPIC_MAGNETOMETER_DATA, strData);
-                } else if (intent.hasCategory(BluetoothLeService.MAGNETOMETER_PERIOD)) {
-                    displayPeriod(mMagnPeriod, intent.getShortExtra(BluetoothLeService.EXTRA_DATA, (short) 0));
-                } else if (intent.hasCategory(BluetoothLeService.MAGNETOMETER_BEARING)) {
-                    String strData = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                    displayData(mMagnBearing, strData);
-                    publishMqttMessage(MqttConfig.TOPIC_MAGNETOMETER_BEARING, strData);
-                } else {
-                    // Our cases are specific - should know the data coming back is one of these categories, as that is
-                    // all we have requested
-                    Log.d(TAG, "Unknown data: "+intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
-                }
+            } else if (BluetoothLeService.ACTION_DEVICE_READY.equals(action)) {
+                mSetupComplete = true;
+                invalidateOptionsMenu();
             }
         }
     };
 
-    private final MqttCallbackExtended mMqttCallbackExtended = new MqttCallbackExtended() {
+    // Receives data from the device on the service's consumer thread. This can be a result of read
+    // or notification operations.
+    private final SampleHandler mSampleHandler = new SampleHandler() {
         @Override
-        public void connectComplete(boolean reconnect, String serverURI) {
-            mMqttConnected = true;
-            if (reconnect) {
-                Log.d(TAG, "MQTT reconnected: " + serverURI);
-                updateMqttConnectState(R.string.connected);
-            } else {
-                Log.d(TAG, "MQTT connected: " + serverURI);
-                updateMqttConnectState(R.string.connected);
+        public void onSample(SensorSample sample) {
+            if (!mDeviceAddress.equals(sample.device)) {
+                // The service may also be connected to other devices
+                return;
+            }
+            if (mSnapshot.write(sample)) {
+                mHandler.post(mRequestFrame);
             }
         }
+    };
 
+    // Runs on the main thread after the first change since the last frame
+    private final Runnable mRequestFrame = new Runnable() {
         @Override
-        public void connectionLost(Throwable cause) {
-            mMqttConnected = false;
-            Log.d(TAG, "MQTT disconnected: " + MqttConfig.SERVER_URI);
-            updateMqttConnectState(R.string.disconnected);
-        }
-
-        @Override
-        public void messageArrived(String topic, MqttMessage message) throws Exception {
-            Log.d(TAG,"MQTT message: " + new String(message.getPayload()));
+        public void run() {
+            if (!mResumed) {
+                // onResume requests the frame
+                return;
+            }
+            long delayMs = 0;
+            if (UI_REFRESH_INTERVAL_MS > 0) {
+                long sinceLastMs = (System.nanoTime() - mLastFrameNanos) / 1000000L;
+                delayMs = Math.max(0, UI_REFRESH_INTERVAL_MS - sinceLastMs);
+            }
+            Choreographer.getInstance().postFrameCallbackDelayed(mFrameCallback, delayMs);
         }
+    };
 
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
         @Override
-        public void deliveryComplete(IMqttDeliveryToken token) {
-
+        public void doFrame(long frameTimeNanos) {
+            long start = System.nanoTime();
+            mLastFrameNanos = start;
+            int changed = mSnapshot.read(mFrameSamples);
+            for (int type = 0; type < SensorSample.TYPE_COUNT; type++) {
+                if ((changed & (1 << type)) == 0) {
+                    continue;
+                }
+                SensorSample sample = mFrameSamples[type];
+                TextView view = mSampleViews[type];
+                if (view != null && (sample.value > 0 || !isPeriod(type))) {
+                    view.setText(TextPayload.formatValue(sample));
+                    mViewUpdateCount++;
+                }
+            }
+            mFrameCount++;
+            mRenderTime.record(System.nanoTime() - start);
         }
     };
 
     private void clearUI() {
+        mSnapshot.clear();
         mGattServicesList.removeAllViews();
         mAccellData.setText(R.string.no_data);
         mAccellPeriod.setText(R.string.no_data);
@@ -342,6 +257,9 @@ public class DeviceControlActivity extends Activity {
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
 
         // Sets up UI references.
+        for (int i = 0; i < mFrameSamples.length; i++) {
+            mFrameSamples[i] = new SensorSample();
+        }
         ((TextView) findViewById(R.id.device_address)).setText(mDeviceAddress);
         mGattServicesList = (LinearLayout) findViewById(R.id.gatt_services_list);
         mBleConnectState = (TextView) findViewById(R.id.ble_connect_state);
@@ -355,14 +273,26 @@ public class DeviceControlActivity extends Activity {
         mMagnData = (TextView) findViewById(R.id.magn_data_value);
         mMagnPeriod = (TextView) findViewById(R.id.magn_period_value);
         mMagnBearing = (TextView) findViewById(R.id.magn_bearing_value);
+        mSampleViews[SensorSample.TYPE_ACCELEROMETER] = mAccellData;
+        mSampleViews[SensorSample.TYPE_ACCELEROMETER_PERIOD] = mAccellPeriod;
+        mSampleViews[SensorSample.TYPE_TEMPERATURE] = mTempData;
+        mSampleViews[SensorSample.TYPE_TEMPERATURE_PERIOD] = mTempPeriod;
+        mSampleViews[SensorSample.TYPE_BUTTON_A] = mButtonAData;
+        mSampleViews[SensorSample.TYPE_BUTTON_B] = mButtonBData;
+        mSampleViews[SensorSample.TYPE_MAGNETOMETER] = mMagnData;
+        mSampleViews[SensorSample.TYPE_MAGNETOMETER_PERIOD] = mMagnPeriod;
+        mSampleViews[SensorSample.TYPE_MAGNETOMETER_BEARING] = mMagnBearing;
         mMqttButton = (Button) findViewById(R.id.mqtt_connect);
         mMqttButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
+                if (mBluetoothLeService == null) {
+                    return;
+                }
                 if (mMqttConnected) {
-                    mqttDisconnect();
+                    mBluetoothLeService.disconnectMqtt();
                 } else {
-                    mqttConnect();
+                    mBluetoothLeService.connectMqtt();
                 }
             }
         });
@@ -370,68 +300,27 @@ public class DeviceControlActivity extends Activity {
         getActionBar().setTitle(mDeviceName);
         getActionBar().setDisplayHomeAsUpEnabled(true);
 
-        //gatt service bind
+        // Started as well as bound so the service outlives this Activity
         Intent gattServiceIntent = new Intent(this, BluetoothLeService.class);
+        startService(gattServiceIntent);
         bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
 
         // MQTT Setup
         ((TextView) findViewById(R.id.server_address)).setText(MqttConfig.SERVER_URI);
         mMqttConnectState = (TextView) findViewById(R.id.mqtt_connect_state);
-        if (savedInstanceState == null) {
-            mMqttAndroidClient = new MqttAndroidClient(getApplicationContext(), MqttConfig.SERVER_URI, MqttConfig.CLIENT_ID);
-            mMqttAndroidClient.setCallback(mMqttCallbackExtended);
-        }
-    }
-
-
-    public void mqttConnect() {
-        if (!mMqttConnected) {
-            MqttConnectOptions mqttConnectOptions = new MqttConnectOptions();
-            mqttConnectOptions.setAutomaticReconnect(true);
-            mqttConnectOptions.setCleanSession(false);
-            try {
-                mMqttAndroidClient.connect(mqttConnectOptions, null, new IMqttActionListener() {
-                    @Override
-                    public void onSuccess(IMqttToken asyncActionToken) {
-                        DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
-                        disconnectedBufferOptions.setBufferEnabled(true);
-                        disconnectedBufferOptions.setBufferSize(5000);
-                        disconnectedBufferOptions.setPersistBuffer(false);
-                        disconnectedBufferOptions.setDeleteOldestMessages(true);
-                        mMqttAndroidClient.setBufferOpts(disconnectedBufferOptions);
-                    }
-
-                    @Override
-                    public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-                        Log.e(TAG, "MQTT connect failed: " + MqttConfig.SERVER_URI);
-                    }
-                });
-            } catch (MqttException ex) {
-                ex.printStackTrace();
-            }
-        }
-    }
-
-    public void mqttDisconnect() {
-        if (mMqttConnected) {
-            try {
-                mMqttConnected = false;
-                mMqttAndroidClient.disconnect(0);
-            } catch (MqttException ex) {
-                ex.printStackTrace();
-            }
-        }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        mResumed = true;
+        // Draws anything which changed while paused
+        mRequestFrame.run();
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
         }
-//        mqttConnect();
     }
 
     // This makes sure that when we rotate the screen do not disconnect and reconnect on BLE
@@ -447,11 +336,19 @@ public class DeviceControlActivity extends Activity {
     protected void onPause() {
         super.onPause();
         unregisterReceiver(mGattUpdateReceiver);
+        mResumed = false;
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        Log.d(TAG, "UI: " + mFrameCount + " frames updated " + mViewUpdateCount + " views for "
+                + mSnapshot.getWrittenCount() + " samples (" + mSnapshot.getChangedCount() + " changed), render "
+                + mRenderTime);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (mServiceBinder != null && mSampleConsumer != null) {
+            mServiceBinder.removeSampleHandler(mSampleConsumer);
+        }
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
@@ -484,8 +381,7 @@ public class DeviceControlActivity extends Activity {
                 return true;
             case R.id.menu_disconnect:
                 mSetupComplete = false;
-                mBluetoothLeService.disconnect();
-                mqttDisconnect();
+                mBluetoothLeService.disconnect(mDeviceAddress);
                 return true;
             case android.R.id.home:
                 onBackPressed();
@@ -494,40 +390,24 @@ public class DeviceControlActivity extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
-    private void updateBleConnectState(final int resourceId) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                mBleConnectState.setText(resourceId);
-            }
-        });
+    // Called on the main thread, from the broadcast receiver or service connection
+    private void updateBleConnectState(int resourceId) {
+        mBleConnectState.setText(resourceId);
     }
 
-    private void updateMqttConnectState(final int resourceId) {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                mMqttConnectState.setText(resourceId);
-                if (resourceId == R.string.connected) {
-                    mMqttButton.setText(R.string.menu_disconnect);
-                } else {
-                    mMqttButton.setText(R.string.menu_connect);
-                }
-
-            }
-        });
-    }
-
-    private void displayData(TextView textView, String data) {
-        if (data != null) {
-            textView.setText(data);
+    private void updateMqttConnectState(int resourceId) {
+        mMqttConnectState.setText(resourceId);
+        if (resourceId == R.string.connected) {
+            mMqttButton.setText(R.string.menu_disconnect);
+        } else {
+            mMqttButton.setText(R.string.menu_connect);
         }
     }
 
-    private void displayPeriod(TextView textView, short period) {
-        if (period > 0) {
-            textView.setText(String.format(Locale.UK,"%d ms", period));
-        }
+    private static boolean isPeriod(int sampleType) {
+        return sampleType == SensorSample.TYPE_ACCELEROMETER_PERIOD
+                || sampleType == SensorSample.TYPE_TEMPERATURE_PERIOD
+                || sampleType == SensorSample.TYPE_MAGNETOMETER_PERIOD;
     }
 
     // Demonstrates how to iterate through the supported GATT Services/Characteristics.
@@ -595,35 +475,9 @@ public class DeviceControlActivity extends Activity {
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_CONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
-        // Additional categories
-        intentFilter.addCategory(BluetoothLeService.ACCELEROMETER_MEASUREMENT);
-        intentFilter.addCategory(BluetoothLeService.ACCELEROMETER_PERIOD);
-        intentFilter.addCategory(BluetoothLeService.TEMPERATURE_MEASUREMENT);
-        intentFilter.addCategory(BluetoothLeService.TEMPERATURE_PERIOD);
-        intentFilter.addCategory(BluetoothLeService.BUTTON_A_MEASUREMENT);
-        intentFilter.addCategory(BluetoothLeService.BUTTON_B_MEASUREMENT);
-        intentFilter.addCategory(BluetoothLeService.MAGNETOMETER_MEASUREMENT);
-        intentFilter.addCategory(BluetoothLeService.MAGNETOMETER_PERIOD);
-        intentFilter.addCategory(BluetoothLeService.MAGNETOMETER_BEARING);
+        intentFilter.addAction(BluetoothLeService.ACTION_DEVICE_READY);
+        intentFilter.addAction(BluetoothLeService.ACTION_MQTT_CONNECTED);
+        intentFilter.addAction(BluetoothLeService.ACTION_MQTT_DISCONNECTED);
         return intentFilter;
     }
-
-    public void publishMqttMessage(String topic, String message){
-        try {
-            if (mMqttConnected) {
-                MqttMessage m = new MqttMessage();
-                m.setPayload(message.getBytes());
-                mMqttAndroidClient.publish(topic, m);
-            }
-
-//            For some reason the buffer is set to null - could be worth figuring this out
-//            if (!mMqttAndroidClient.isConnected()) {
-//                Log.d(TAG, mMqttAndroidClient.getBufferedMessageCount() + " messages in buffer.");
-//            }
-        } catch (MqttException e) {
-            System.err.println("Error Publishing: " + e.getMessage());
-            e.printStackTrace();
-        }
-    }
 }
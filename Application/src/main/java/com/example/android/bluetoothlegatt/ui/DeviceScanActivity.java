@@ -44,6 +44,7 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 import com.example.android.bluetoothlegatt.R;
+import com.example.android.bluetoothlegatt.ble.ScanIndex;
 
 import java.util.ArrayList;
 
@@ -57,10 +58,20 @@ public class DeviceScanActivity extends ListActivity {
     private BluetoothAdapter mBluetoothAdapter;
     private boolean mScanning;
     private Handler mHandler;
+    // Written from the scan callback, read by the refresh below
+    private final ScanIndex mScanIndex = new ScanIndex(MICROBITS_ONLY, RSSI_SMOOTHING, DEVICE_EXPIRY_MS);
+    private long mShownVersion = -1;
 
     private static final int REQUEST_ENABLE_BT = 1;
     // Stops scanning after 10 seconds.
     private static final long SCAN_PERIOD = 10000;
+    // The list is refreshed at most this often while scanning, however many devices advertise
+    private static final long REFRESH_PERIOD = 500;
+    // Devices not heard from for this long are removed from the list
+    private static final long DEVICE_EXPIRY_MS = 5000;
+    // Weight of the previous smoothed RSSI of each device, see ScanIndex
+    private static final double RSSI_SMOOTHING = 0.8;
+    private static final boolean MICROBITS_ONLY = true;
     private static final int PERMISSIONS_COARSE_LOCATION = 200;
     private static final int PERMISSIONS_FINE_LOCATION = 300;
 
@@ -111,6 +122,7 @@ public class DeviceScanActivity extends ListActivity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_scan:
+                mScanIndex.clear();
                 mLeDeviceListAdapter.clear();
                 scanLeDevice(true);
                 break;
@@ -163,18 +175,20 @@ public class DeviceScanActivity extends ListActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
+        mScanIndex.clear();
         mLeDeviceListAdapter.clear();
     }
 
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
-        final BluetoothDevice device = mLeDeviceListAdapter.getDevice(position);
+        final ScanIndex.Entry device = mLeDeviceListAdapter.getDevice(position);
         if (device == null) return;
         final Intent intent = new Intent(this, DeviceControlActivity.class);
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.getName());
-        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_NAME, device.name);
+        intent.putExtra(DeviceControlActivity.EXTRAS_DEVICE_ADDRESS, device.address);
         if (mScanning) {
             mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mHandler.removeCallbacks(mRefresh);
             mScanning = false;
         }
         startActivity(intent);
@@ -188,42 +202,65 @@ public class DeviceScanActivity extends ListActivity {
                 public void run() {
                     mScanning = false;
                     mBluetoothAdapter.stopLeScan(mLeScanCallback);
+                    mHandler.removeCallbacks(mRefresh);
+                    mRefresh.run();
                     invalidateOptionsMenu();
                 }
             }, SCAN_PERIOD);
 
             mScanning = true;
             mBluetoothAdapter.startLeScan(mLeScanCallback);
+            mHandler.removeCallbacks(mRefresh);
+            mHandler.postDelayed(mRefresh, REFRESH_PERIOD);
         } else {
             mScanning = false;
             mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            mHandler.removeCallbacks(mRefresh);
         }
         invalidateOptionsMenu();
     }
 
+    // Expires devices no longer advertising and shows any change to the index since the last
+    // refresh, then repeats while scanning
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mScanIndex.expire(System.nanoTime());
+            long version = mScanIndex.getVersion();
+            if (version != mShownVersion) {
+                mShownVersion = version;
+                mLeDeviceListAdapter.update(mScanIndex);
+                mLeDeviceListAdapter.notifyDataSetChanged();
+            }
+            if (mScanning) {
+                mHandler.postDelayed(this, REFRESH_PERIOD);
+            }
+        }
+    };
+
     // Adapter for holding devices found through scanning.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private ArrayList<ScanIndex.Entry> mLeDevices;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mLeDevices = new ArrayList<ScanIndex.Entry>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
-            }
+        public void update(ScanIndex index) {
+            index.snapshot(mLeDevices);
         }
 
-        public BluetoothDevice getDevice(int position) {
+        public ScanIndex.Entry getDevice(int position) {
             return mLeDevices.get(position);
         }
 
         public void clear() {
             mLeDevices.clear();
+            mShownVersion = -1;
+            notifyDataSetChanged();
         }
 
         @Override
@@ -250,42 +287,40 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
-            final String deviceName = device.getName();
+            ScanIndex.Entry device = mLeDevices.get(i);
+            final String deviceName = device.name;
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
-            viewHolder.deviceAddress.setText(device.getAddress());
+            viewHolder.deviceAddress.setText(device.address);
+            viewHolder.deviceRssi.setText(getString(R.string.device_rssi, Math.round(device.rssi)));
 
             return view;
         }
     }
 
-    // Device scan callback.
+    // Device scan callback. Only updates the index, the list is refreshed by mRefresh. The name is
+    // taken from the scan record, as BluetoothDevice.getName() is a call to the Bluetooth service.
     private BluetoothAdapter.LeScanCallback mLeScanCallback =
             new BluetoothAdapter.LeScanCallback() {
 
         @Override
         public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
-                }
-            });
+            mScanIndex.onAdvertisement(device.getAddress(), rssi, scanRecord, System.nanoTime());
         }
     };
 
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceRssi;
     }
 
     @Override
@@ -0,0 +1,169 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+import com.example.android.bluetoothlegatt.data.SensorSample;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Round trips samples through {@link BinaryPayload#encode} and the reference decoder.
+ */
+public class BinaryPayloadTest {
+
+    private static final String ADDRESS = "E1:22:3A:4B:5C:FF";
+    private static final byte[] DEVICE_ID = {(byte) 0xE1, 0x22, 0x3A, 0x4B, 0x5C, (byte) 0xFF};
+    private static final long TIMESTAMP_MILLIS = 1481500800123L;
+
+    private static SensorSample triplet(int type, int x, int y, int z) {
+        SensorSample sample = new SensorSample();
+        sample.type = type;
+        sample.device = ADDRESS;
+        sample.x = (short) x;
+        sample.y = (short) y;
+        sample.z = (short) z;
+        return sample;
+    }
+
+    private static SensorSample scalar(int type, int value) {
+        SensorSample sample = new SensorSample();
+        sample.type = type;
+        sample.device = ADDRESS;
+        sample.value = value;
+        return sample;
+    }
+
+    private static void assertHeader(BinaryPayload.Frame frame, int schema, long sequence) {
+        assertEquals(BinaryPayload.VERSION, frame.version);
+        assertEquals(schema, frame.schema);
+        assertArrayEquals(DEVICE_ID, frame.deviceId);
+        assertEquals(sequence, frame.sequence);
+        assertEquals(TIMESTAMP_MILLIS, frame.timestampMillis);
+    }
+
+    @Test
+    public void accelerometerRoundTrip() {
+        byte[] payload = new BinaryPayload(ADDRESS).encode(
+                triplet(SensorSample.TYPE_ACCELEROMETER, -1024, 512, Short.MAX_VALUE), TIMESTAMP_MILLIS);
+        assertEquals(BinaryPayload.TRIPLET_LENGTH, payload.length);
+        BinaryPayload.Frame frame = BinaryPayload.decode(payload);
+        assertHeader(frame, BinaryPayload.SCHEMA_ACCELEROMETER, 0);
+        assertEquals(-1024, frame.x);
+        assertEquals(512, frame.y);
+        assertEquals(Short.MAX_VALUE, frame.z);
+    }
+
+    @Test
+    public void magnetometerRoundTrip() {
+        byte[] payload = new BinaryPayload(ADDRESS).encode(
+                triplet(SensorSample.TYPE_MAGNETOMETER, Short.MIN_VALUE, 0, -1), TIMESTAMP_MILLIS);
+        assertEquals(BinaryPayload.TRIPLET_LENGTH, payload.length);
+        BinaryPayload.Frame frame = BinaryPayload.decode(payload);
+        assertHeader(frame, BinaryPayload.SCHEMA_MAGNETOMETER, 0);
+        assertEquals(Short.MIN_VALUE, frame.x);
+        assertEquals(0, frame.y);
+        assertEquals(-1, frame.z);
+    }
+
+    @Test
+    public void scalarRoundTrips() {
+        BinaryPayload encoder = new BinaryPayload(ADDRESS);
+        int[][] cases = {
+                {SensorSample.TYPE_TEMPERATURE, BinaryPayload.SCHEMA_TEMPERATURE, 23},
+                {SensorSample.TYPE_TEMPERATURE, BinaryPayload.SCHEMA_TEMPERATURE, -5},
+                {SensorSample.TYPE_MAGNETOMETER_BEARING, BinaryPayload.SCHEMA_MAGNETOMETER_BEARING, 359},
+                {SensorSample.TYPE_BUTTON_A, BinaryPayload.SCHEMA_BUTTON_A, 2},
+                {SensorSample.TYPE_BUTTON_B, BinaryPayload.SCHEMA_BUTTON_B, 0},
+        };
+        for (int[] c : cases) {
+            byte[] payload = encoder.encode(scalar(c[0], c[2]), TIMESTAMP_MILLIS);
+            assertEquals(BinaryPayload.SCALAR_LENGTH, payload.length);
+            BinaryPayload.Frame frame = BinaryPayload.decode(payload);
+            assertEquals(BinaryPayload.VERSION, frame.version);
+            assertEquals(c[1], frame.schema);
+            assertArrayEquals(DEVICE_ID, frame.deviceId);
+            assertEquals(TIMESTAMP_MILLIS, frame.timestampMillis);
+            assertEquals(c[2], frame.value);
+        }
+    }
+
+    @Test
+    public void sequenceIncrementsPerSchema() {
+        BinaryPayload encoder = new BinaryPayload(ADDRESS);
+        SensorSample accelerometer = triplet(SensorSample.TYPE_ACCELEROMETER, 1, 2, 3);
+        SensorSample temperature = scalar(SensorSample.TYPE_TEMPERATURE, 20);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, BinaryPayload.decode(encoder.encode(accelerometer, TIMESTAMP_MILLIS)).sequence);
+        }
+        // Other schemas count from zero independently
+        assertEquals(0, BinaryPayload.decode(encoder.encode(temperature, TIMESTAMP_MILLIS)).sequence);
+        assertEquals(3, BinaryPayload.decode(encoder.encode(accelerometer, TIMESTAMP_MILLIS)).sequence);
+        assertEquals(1, BinaryPayload.decode(encoder.encode(temperature, TIMESTAMP_MILLIS)).sequence);
+    }
+
+    @Test
+    public void timestampKeepsAllBits() {
+        BinaryPayload encoder = new BinaryPayload(ADDRESS);
+        long[] timestamps = {0, 1, TIMESTAMP_MILLIS, Long.MAX_VALUE, -1};
+        for (long timestamp : timestamps) {
+            byte[] payload = encoder.encode(scalar(SensorSample.TYPE_BUTTON_A, 1), timestamp);
+            assertEquals(timestamp, BinaryPayload.decode(payload).timestampMillis);
+        }
+    }
+
+    @Test
+    public void encodesAtOffset() {
+        byte[] buffer = new byte[4 + BinaryPayload.TRIPLET_LENGTH];
+        int written = new BinaryPayload(ADDRESS).encode(
+                triplet(SensorSample.TYPE_ACCELEROMETER, 7, 8, 9), TIMESTAMP_MILLIS, buffer, 4);
+        assertEquals(BinaryPayload.TRIPLET_LENGTH, written);
+        BinaryPayload.Frame frame = BinaryPayload.decode(buffer, 4, written, new BinaryPayload.Frame());
+        assertHeader(frame, BinaryPayload.SCHEMA_ACCELEROMETER, 0);
+        assertEquals(9, frame.z);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersion() {
+        byte[] payload = new BinaryPayload(ADDRESS).encode(scalar(SensorSample.TYPE_TEMPERATURE, 20), TIMESTAMP_MILLIS);
+        payload[0] = (byte) (BinaryPayload.VERSION + 1);
+        BinaryPayload.decode(payload);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownSchema() {
+        byte[] payload = new BinaryPayload(ADDRESS).encode(scalar(SensorSample.TYPE_TEMPERATURE, 20), TIMESTAMP_MILLIS);
+        payload[1] = 0x7F;
+        BinaryPayload.decode(payload);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSchemaZero() {
+        byte[] payload = new BinaryPayload(ADDRESS).encode(scalar(SensorSample.TYPE_TEMPERATURE, 20), TIMESTAMP_MILLIS);
+        payload[1] = 0;
+        BinaryPayload.decode(payload);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedHeader() {
+        byte[] payload = new BinaryPayload(ADDRESS).encode(scalar(SensorSample.TYPE_TEMPERATURE, 20), TIMESTAMP_MILLIS);
+        BinaryPayload.decode(payload, 0, BinaryPayload.HEADER_LENGTH - 1, new BinaryPayload.Frame());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedTripletBody() {
+        byte[] payload = new BinaryPayload(ADDRESS).encode(
+                triplet(SensorSample.TYPE_ACCELEROMETER, 1, 2, 3), TIMESTAMP_MILLIS);
+        BinaryPayload.decode(payload, 0, BinaryPayload.TRIPLET_LENGTH - 1, new BinaryPayload.Frame());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedScalarBody() {
+        byte[] payload = new BinaryPayload(ADDRESS).encode(scalar(SensorSample.TYPE_BUTTON_B, 1), TIMESTAMP_MILLIS);
+        BinaryPayload.decode(payload, 0, BinaryPayload.SCALAR_LENGTH - 1, new BinaryPayload.Frame());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnpublishedSampleType() {
+        new BinaryPayload(ADDRESS).encode(scalar(SensorSample.TYPE_ACCELEROMETER_PERIOD, 80), TIMESTAMP_MILLIS);
+    }
+}
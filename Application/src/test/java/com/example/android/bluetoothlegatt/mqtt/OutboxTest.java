@@ -0,0 +1,235 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Appends, reads and acknowledges records through {@link Outbox}, including across reopening it.
+ */
+public class OutboxTest {
+
+    private static final String TOPIC = "t";
+    // A record of this payload is 8 + 2 + 1 + 50 = 61 bytes, so four fit in a segment of 256
+    private static final int PAYLOAD_LENGTH = 50;
+    private static final int RECORD_LENGTH = 61;
+    private static final int SEGMENT_BYTES = 256;
+    private static final int RECORDS_PER_SEGMENT = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static byte[] payload(int i) {
+        byte[] payload = new byte[PAYLOAD_LENGTH];
+        for (int b = 0; b < payload.length; b++) {
+            payload[b] = (byte) (i + b);
+        }
+        return payload;
+    }
+
+    private Outbox open(File dir) throws IOException {
+        return new Outbox(dir, SEGMENT_BYTES, 1024 * SEGMENT_BYTES);
+    }
+
+    private static void assertNext(Outbox outbox, Outbox.Record record, int i) throws IOException {
+        assertTrue(outbox.next(record));
+        assertEquals(TOPIC, record.topic);
+        assertArrayEquals(payload(i), record.payload);
+    }
+
+    @Test
+    public void readsInAppendOrder() throws IOException {
+        Outbox outbox = open(mFolder.newFolder());
+        // Enough to span several segments
+        for (int i = 0; i < 10; i++) {
+            assertEquals((i / RECORDS_PER_SEGMENT) * SEGMENT_BYTES + (i % RECORDS_PER_SEGMENT + 1) * RECORD_LENGTH,
+                    outbox.append(TOPIC, payload(i)));
+        }
+        Outbox.Record record = new Outbox.Record();
+        for (int i = 0; i < 10; i++) {
+            assertNext(outbox, record, i);
+        }
+        assertFalse(outbox.next(record));
+        assertEquals(10, outbox.getAppendedCount());
+        outbox.close();
+    }
+
+    @Test
+    public void recoversUnacknowledgedAfterReopen() throws IOException {
+        File dir = mFolder.newFolder();
+        Outbox outbox = open(dir);
+        for (int i = 0; i < 6; i++) {
+            outbox.append(TOPIC, payload(i));
+        }
+        Outbox.Record record = new Outbox.Record();
+        for (int i = 0; i < 3; i++) {
+            assertNext(outbox, record, i);
+            outbox.acknowledge(record.nextOffset);
+        }
+        // Read but never acknowledged, as if the process died while it was in flight
+        assertNext(outbox, record, 3);
+        // Not closed, so nothing is flushed beyond what the mappings already hold
+        outbox.sync();
+
+        Outbox reopened = open(dir);
+        // The last three records, and the unused tail of the first segment
+        assertEquals(SEGMENT_BYTES + 2 * RECORD_LENGTH - 3 * RECORD_LENGTH, reopened.getBacklogBytes());
+        for (int i = 3; i < 6; i++) {
+            assertNext(reopened, record, i);
+        }
+        assertFalse(reopened.next(record));
+        // Appends continue after the last intact record
+        assertEquals(SEGMENT_BYTES + 3 * RECORD_LENGTH, reopened.append(TOPIC, payload(6)));
+        reopened.close();
+        outbox.close();
+    }
+
+    @Test
+    public void overwritesTornWrite() throws IOException {
+        File dir = mFolder.newFolder();
+        Outbox outbox = open(dir);
+        long end = 0;
+        for (int i = 0; i < 2; i++) {
+            end = outbox.append(TOPIC, payload(i));
+        }
+        outbox.close();
+
+        // A record whose length reached the file but whose body did not
+        RandomAccessFile segment = new RandomAccessFile(new File(dir, String.format("%020d.seg", 0)), "rw");
+        try {
+            segment.seek(end);
+            segment.writeInt(RECORD_LENGTH - 8);
+            segment.writeInt(0xdeadbeef);
+        } finally {
+            segment.close();
+        }
+
+        Outbox reopened = open(dir);
+        Outbox.Record record = new Outbox.Record();
+        assertNext(reopened, record, 0);
+        assertNext(reopened, record, 1);
+        assertFalse(reopened.next(record));
+        assertEquals(0, reopened.getCorruptRecordCount());
+        // The next append takes the torn record's place
+        assertEquals(end + RECORD_LENGTH, reopened.append(TOPIC, payload(2)));
+        assertNext(reopened, record, 2);
+        reopened.close();
+    }
+
+    @Test
+    public void commitsOnlyContiguousAcknowledgements() throws IOException {
+        Outbox outbox = open(mFolder.newFolder());
+        long[] ends = new long[3];
+        for (int i = 0; i < ends.length; i++) {
+            outbox.append(TOPIC, payload(i));
+        }
+        Outbox.Record record = new Outbox.Record();
+        for (int i = 0; i < ends.length; i++) {
+            assertNext(outbox, record, i);
+            ends[i] = record.nextOffset;
+        }
+        outbox.acknowledge(ends[2]);
+        assertEquals(3 * RECORD_LENGTH, outbox.getBacklogBytes());
+        outbox.acknowledge(ends[0]);
+        assertEquals(2 * RECORD_LENGTH, outbox.getBacklogBytes());
+        // Commits both the second and the third, which was acknowledged ahead of it
+        outbox.acknowledge(ends[1]);
+        assertEquals(0, outbox.getBacklogBytes());
+        assertEquals(0, outbox.getUnacknowledgedCount());
+        // A repeated acknowledgement is ignored
+        outbox.acknowledge(ends[1]);
+        assertEquals(0, outbox.getBacklogBytes());
+        outbox.close();
+    }
+
+    @Test
+    public void rewindReplaysUnacknowledged() throws IOException {
+        Outbox outbox = open(mFolder.newFolder());
+        for (int i = 0; i < 3; i++) {
+            outbox.append(TOPIC, payload(i));
+        }
+        Outbox.Record record = new Outbox.Record();
+        assertNext(outbox, record, 0);
+        outbox.acknowledge(record.nextOffset);
+        assertNext(outbox, record, 1);
+        assertNext(outbox, record, 2);
+        outbox.rewind();
+        assertEquals(0, outbox.getUnacknowledgedCount());
+        assertNext(outbox, record, 1);
+        assertNext(outbox, record, 2);
+        assertFalse(outbox.next(record));
+        outbox.close();
+    }
+
+    @Test
+    public void evictionKeepsLaterUnacknowledgedRecords() throws IOException {
+        // A budget of two segments
+        Outbox outbox = new Outbox(mFolder.newFolder(), SEGMENT_BYTES, 2 * SEGMENT_BYTES);
+        int count = 2 * RECORDS_PER_SEGMENT;
+        long[] ends = new long[count];
+        for (int i = 0; i < count; i++) {
+            outbox.append(TOPIC, payload(i));
+        }
+        Outbox.Record record = new Outbox.Record();
+        for (int i = 0; i < count; i++) {
+            assertNext(outbox, record, i);
+            ends[i] = record.nextOffset;
+        }
+        outbox.acknowledge(ends[RECORDS_PER_SEGMENT + 1]);
+
+        // Rolls into a third segment, so the first is deleted undelivered
+        outbox.append(TOPIC, payload(count));
+        assertEquals(1, outbox.getDroppedSegmentCount());
+        assertEquals(RECORDS_PER_SEGMENT, outbox.getUnacknowledgedCount());
+        assertEquals(2 * SEGMENT_BYTES + RECORD_LENGTH - SEGMENT_BYTES, outbox.getBacklogBytes());
+
+        // Acknowledgements of records in the deleted segment are ignored
+        outbox.acknowledge(ends[0]);
+        assertEquals(RECORDS_PER_SEGMENT, outbox.getUnacknowledgedCount());
+
+        // Those in the remaining segment still advance the commit offset, including the one
+        // acknowledged ahead before the eviction
+        outbox.acknowledge(ends[RECORDS_PER_SEGMENT]);
+        assertEquals(RECORDS_PER_SEGMENT - 2, outbox.getUnacknowledgedCount());
+        assertEquals(2 * SEGMENT_BYTES + RECORD_LENGTH - ends[RECORDS_PER_SEGMENT + 1], outbox.getBacklogBytes());
+        for (int i = RECORDS_PER_SEGMENT + 2; i < count; i++) {
+            outbox.acknowledge(ends[i]);
+        }
+        assertEquals(0, outbox.getUnacknowledgedCount());
+
+        assertNext(outbox, record, count);
+        assertFalse(outbox.next(record));
+        outbox.close();
+    }
+
+    @Test
+    public void evictionMovesReadCursorPastDeletedSegment() throws IOException {
+        Outbox outbox = new Outbox(mFolder.newFolder(), SEGMENT_BYTES, 2 * SEGMENT_BYTES);
+        for (int i = 0; i <= 2 * RECORDS_PER_SEGMENT; i++) {
+            outbox.append(TOPIC, payload(i));
+        }
+        assertEquals(1, outbox.getDroppedSegmentCount());
+        Outbox.Record record = new Outbox.Record();
+        for (int i = RECORDS_PER_SEGMENT; i <= 2 * RECORDS_PER_SEGMENT; i++) {
+            assertNext(outbox, record, i);
+        }
+        assertFalse(outbox.next(record));
+        outbox.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAppendAfterClose() throws IOException {
+        Outbox outbox = open(mFolder.newFolder());
+        outbox.close();
+        outbox.append(TOPIC, payload(0));
+    }
+}
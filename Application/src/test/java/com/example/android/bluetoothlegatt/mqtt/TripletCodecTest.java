@@ -0,0 +1,200 @@
+package com.example.android.bluetoothlegatt.mqtt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trips batches of triplets through {@link TripletCodec.Encoder} and
+ * {@link TripletCodec.Decoder}.
+ */
+public class TripletCodecTest {
+
+    private static final long TIMESTAMP_MILLIS = 1481500800123L;
+
+    private static byte[] encode(long[] timestamps, short[][] samples) {
+        TripletCodec.Encoder encoder = new TripletCodec.Encoder(BinaryPayload.SCHEMA_ACCELEROMETER,
+                Math.max(1, timestamps.length));
+        for (int i = 0; i < timestamps.length; i++) {
+            assertTrue(encoder.append(timestamps[i], samples[i][0], samples[i][1], samples[i][2]));
+        }
+        assertEquals(timestamps.length, encoder.getCount());
+        return encoder.toByteArray();
+    }
+
+    private static void assertDecodes(byte[] batch, long[] timestamps, short[][] samples) {
+        TripletCodec.Decoder decoder = new TripletCodec.Decoder().reset(batch);
+        assertEquals(BinaryPayload.SCHEMA_ACCELEROMETER, decoder.getSchema());
+        assertEquals(timestamps.length, decoder.getCount());
+        for (int i = 0; i < timestamps.length; i++) {
+            assertTrue(decoder.next());
+            assertEquals("timestamp " + i, timestamps[i], decoder.getTimestampMillis());
+            assertEquals("x " + i, samples[i][0], decoder.getX());
+            assertEquals("y " + i, samples[i][1], decoder.getY());
+            assertEquals("z " + i, samples[i][2], decoder.getZ());
+        }
+        assertFalse(decoder.next());
+    }
+
+    private static void assertRoundTrip(long[] timestamps, short[][] samples) {
+        assertDecodes(encode(timestamps, samples), timestamps, samples);
+    }
+
+    private static long[] periodic(int count, long periodMs) {
+        long[] timestamps = new long[count];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = TIMESTAMP_MILLIS + i * periodMs;
+        }
+        return timestamps;
+    }
+
+    @Test
+    public void smallChangesTakeOneBytePerAxis() {
+        long[] timestamps = periodic(4, 20);
+        short[][] samples = {{0, 0, 0}, {1, -1, 2}, {-60, 3, 63}, {3, 0, 0}};
+        byte[] batch = encode(timestamps, samples);
+        // Three axis bytes per sample, plus one for the first interval and one for each unchanged
+        // interval after it
+        assertEquals(TripletCodec.HEADER_LENGTH + 3 + 4 + 4 + 4, batch.length);
+        assertDecodes(batch, timestamps, samples);
+    }
+
+    @Test
+    public void extremeSteps() {
+        long[] timestamps = periodic(6, 20);
+        short[][] samples = {
+                {Short.MIN_VALUE, Short.MAX_VALUE, 0},
+                {Short.MAX_VALUE, Short.MIN_VALUE, Short.MIN_VALUE},
+                {Short.MIN_VALUE, Short.MAX_VALUE, Short.MAX_VALUE},
+                {Short.MIN_VALUE, Short.MIN_VALUE, Short.MIN_VALUE},
+                {Short.MAX_VALUE, Short.MAX_VALUE, Short.MAX_VALUE},
+                {0, -1, 1},
+        };
+        assertRoundTrip(timestamps, samples);
+        // Each axis change is at most 17 bits, so 3 bytes
+        assertTrue(encode(timestamps, samples).length
+                <= TripletCodec.HEADER_LENGTH + samples.length * TripletCodec.MAX_SAMPLE_LENGTH);
+    }
+
+    @Test
+    public void irregularAndNegativeIntervals() {
+        long[] timestamps = {
+                TIMESTAMP_MILLIS,
+                TIMESTAMP_MILLIS + 20,
+                TIMESTAMP_MILLIS + 20,
+                // Clock stepped back
+                TIMESTAMP_MILLIS - 5000,
+                TIMESTAMP_MILLIS + 86400000L * 365,
+                TIMESTAMP_MILLIS + 86400000L * 365 + 1,
+                0,
+        };
+        short[][] samples = new short[timestamps.length][];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new short[]{(short) i, (short) -i, (short) (i * 1000)};
+        }
+        assertRoundTrip(timestamps, samples);
+    }
+
+    @Test
+    public void extremeTimestamps() {
+        long[] timestamps = {Long.MIN_VALUE, Long.MAX_VALUE, 0, Long.MIN_VALUE, -1, Long.MAX_VALUE};
+        short[][] samples = new short[timestamps.length][3];
+        assertRoundTrip(timestamps, samples);
+    }
+
+    @Test
+    public void fullBatch() {
+        Random random = new Random(42);
+        long[] timestamps = new long[TripletCodec.MAX_SAMPLES];
+        short[][] samples = new short[TripletCodec.MAX_SAMPLES][3];
+        long timestamp = TIMESTAMP_MILLIS;
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamp += 15 + random.nextInt(10);
+            timestamps[i] = timestamp;
+            for (int axis = 0; axis < 3; axis++) {
+                samples[i][axis] = (short) random.nextInt();
+            }
+        }
+        TripletCodec.Encoder encoder = new TripletCodec.Encoder(BinaryPayload.SCHEMA_ACCELEROMETER,
+                TripletCodec.MAX_SAMPLES);
+        for (int i = 0; i < timestamps.length; i++) {
+            assertTrue(encoder.append(timestamps[i], samples[i][0], samples[i][1], samples[i][2]));
+        }
+        assertFalse(encoder.append(timestamp + 20, (short) 0, (short) 0, (short) 0));
+        assertEquals(TripletCodec.MAX_SAMPLES, encoder.getCount());
+        assertDecodes(encoder.toByteArray(), timestamps, samples);
+    }
+
+    @Test
+    public void resetStartsAnEmptyBatch() {
+        TripletCodec.Encoder encoder = new TripletCodec.Encoder(BinaryPayload.SCHEMA_MAGNETOMETER, 4);
+        encoder.append(TIMESTAMP_MILLIS, (short) 100, (short) 200, (short) 300);
+        encoder.append(TIMESTAMP_MILLIS + 80, (short) 101, (short) 201, (short) 301);
+        encoder.reset();
+        TripletCodec.Decoder decoder = new TripletCodec.Decoder().reset(encoder.toByteArray());
+        assertEquals(0, decoder.getCount());
+        assertFalse(decoder.next());
+
+        // The next batch does not carry deltas over from the last
+        encoder.append(TIMESTAMP_MILLIS + 160, (short) -7, (short) 8, (short) -9);
+        decoder.reset(encoder.toByteArray());
+        assertEquals(BinaryPayload.SCHEMA_MAGNETOMETER, decoder.getSchema());
+        assertTrue(decoder.next());
+        assertEquals(TIMESTAMP_MILLIS + 160, decoder.getTimestampMillis());
+        assertEquals(-7, decoder.getX());
+        assertEquals(8, decoder.getY());
+        assertEquals(-9, decoder.getZ());
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void decodesAtOffset() {
+        long[] timestamps = periodic(3, 80);
+        short[][] samples = {{1, 2, 3}, {4, 5, 6}, {-7, -8, -9}};
+        byte[] batch = encode(timestamps, samples);
+        byte[] padded = new byte[batch.length + 8];
+        System.arraycopy(batch, 0, padded, 5, batch.length);
+        TripletCodec.Decoder decoder = new TripletCodec.Decoder().reset(padded, 5, batch.length);
+        for (int i = 0; i < timestamps.length; i++) {
+            assertTrue(decoder.next());
+            assertEquals(timestamps[i], decoder.getTimestampMillis());
+            assertEquals(samples[i][2], decoder.getZ());
+        }
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void rejectsEveryTruncation() {
+        long[] timestamps = {TIMESTAMP_MILLIS, TIMESTAMP_MILLIS + 20, TIMESTAMP_MILLIS + 1000000};
+        short[][] samples = {{Short.MIN_VALUE, 0, 5}, {Short.MAX_VALUE, 1, -5}, {0, Short.MIN_VALUE, 300}};
+        byte[] batch = encode(timestamps, samples);
+        for (int length = 0; length < batch.length; length++) {
+            try {
+                TripletCodec.Decoder decoder = new TripletCodec.Decoder().reset(batch, 0, length);
+                while (decoder.next()) {
+                    // read to the end
+                }
+                fail("Truncated to " + length + " of " + batch.length + " bytes was accepted");
+            } catch (IllegalArgumentException expected) {
+                // truncated
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownVersion() {
+        byte[] batch = encode(periodic(1, 20), new short[][]{{1, 2, 3}});
+        batch[0] = (byte) (TripletCodec.VERSION + 1);
+        new TripletCodec.Decoder().reset(batch);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOversizedBatch() {
+        new TripletCodec.Encoder(BinaryPayload.SCHEMA_ACCELEROMETER, TripletCodec.MAX_SAMPLES + 1);
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.android.bluetoothlegatt.benchmark;
+
+import com.example.android.bluetoothlegatt.mqtt.BatchingPublisher;
+import com.example.android.bluetoothlegatt.mqtt.BinaryPayload;
+import com.example.android.bluetoothlegatt.mqtt.MessageSink;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost per sample of the {@link BatchingPublisher} for binary accelerometer payloads, at a few
+ * batch sizes. A size of 1 is the pass through used when batching is off. The sink discards the
+ * frames, so this is the batching alone; batches fill long before the flush timer fires.
+ */
+@State(Scope.Thread)
+public class BatchingBenchmark {
+
+    private static final String TOPIC = "ACCELEROMETER";
+
+    @Param({"1", "16", "64"})
+    public int batchSize;
+
+    private final byte[] payload = new byte[BinaryPayload.TRIPLET_LENGTH];
+    private BatchingPublisher publisher;
+    private long frames;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        publisher = new BatchingPublisher(new MessageSink() {
+            @Override
+            public void publish(String topic, byte[] payload, long timestampNanos) {
+                frames++;
+            }
+        }, batchSize, 1000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        publisher.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        publisher.publish(TOPIC, payload, System.nanoTime());
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.android.bluetoothlegatt.benchmark;
+
+import com.example.android.bluetoothlegatt.ble.GattDispatchTable;
+import com.example.android.bluetoothlegatt.ble.SensorSource;
+import com.example.android.bluetoothlegatt.ble.SimulatedMicroBit;
+import com.example.android.bluetoothlegatt.data.OrientationFusion;
+import com.example.android.bluetoothlegatt.data.SensorSample;
+import com.example.android.bluetoothlegatt.mqtt.TextPayload;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Cost per accelerometer or magnetometer sample of the {@link OrientationFusion} stage, over a trace
+ * of a tilting and turning {@link SimulatedMicroBit}. Half the samples are magnetometer samples,
+ * each of which produces a record; {@code fuseAndFormat} also formats them as published.
+ */
+@State(Scope.Thread)
+public class FusionBenchmark {
+
+    private static final int TRACE_LENGTH = 1024;
+
+    @Param({"0", "0.5"})
+    public double smoothing;
+
+    private SensorSample[] samples;
+    private OrientationFusion fusion;
+    private OrientationFusion formattingFusion;
+    private double headings;
+    private int length;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void record() {
+        final GattDispatchTable table = GattDispatchTable.forMicroBit();
+        final ArrayList<SensorSample> trace = new ArrayList<>();
+        final SimulatedMicroBit simulator = new SimulatedMicroBit("00:00:00:00:00:00", 1);
+        simulator.reset(0);
+        SensorSource.Listener recorder = new SensorSource.Listener() {
+            @Override
+            public void onCharacteristicValue(String address, UUID characteristic, byte[] value) {
+                SensorSample sample = new SensorSample();
+                GattDispatchTable.decode(table.lookup(characteristic), value, sample);
+                if (sample.type == SensorSample.TYPE_ACCELEROMETER || sample.type == SensorSample.TYPE_MAGNETOMETER) {
+                    sample.device = address;
+                    trace.add(sample);
+                }
+            }
+        };
+        while (trace.size() < TRACE_LENGTH) {
+            simulator.step(recorder);
+        }
+        samples = trace.toArray(new SensorSample[TRACE_LENGTH]);
+        fusion = new OrientationFusion(smoothing, Long.MAX_VALUE / 1000000L, new OrientationFusion.Listener() {
+            @Override
+            public void onOrientation(OrientationFusion.Orientation orientation) {
+                headings += orientation.heading;
+            }
+        });
+        formattingFusion = new OrientationFusion(smoothing, Long.MAX_VALUE / 1000000L, new OrientationFusion.Listener() {
+            @Override
+            public void onOrientation(OrientationFusion.Orientation orientation) {
+                length += TextPayload.formatOrientation(orientation, 0).length();
+            }
+        });
+    }
+
+    @Benchmark
+    public double fuse() {
+        fusion.onSample(samples[next++ & (TRACE_LENGTH - 1)]);
+        return headings;
+    }
+
+    @Benchmark
+    public int fuseAndFormat() {
+        formattingFusion.onSample(samples[next++ & (TRACE_LENGTH - 1)]);
+        return length;
+    }
+}
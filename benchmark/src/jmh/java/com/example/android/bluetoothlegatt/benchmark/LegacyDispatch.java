@@ -0,0 +1,43 @@
+package com.example.android.bluetoothlegatt.benchmark;
+
+import com.example.android.bluetoothlegatt.Utility;
+import com.example.android.bluetoothlegatt.ble.GattAttributes;
+
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * The per-UUID dispatch done by {@code BluetoothLeService.broadcastUpdate} before the dispatch
+ * table, without the Intent and logging: every known UUID string is parsed and compared in turn and
+ * the value formatted as text. Kept here as the baseline the benchmarks compare against.
+ */
+class LegacyDispatch {
+
+    static String dispatch(UUID uuid, byte[] value) {
+        if (UUID.fromString(GattAttributes.ACCELEROMETER_MEASUREMENT).equals(uuid)) {
+            float[] accel_out = LegacyUtility.byteInputToFloat(value);
+            return String.format(Locale.UK, "(%.3f,%.3f,%.3f)", accel_out[0], accel_out[1], accel_out[2]);
+        } else if (UUID.fromString(GattAttributes.ACCELEROMETER_PERIOD).equals(uuid)) {
+            return String.format(Locale.UK, "%d ms", LegacyUtility.shortFromLittleEndianBytes(value));
+        } else if (UUID.fromString(GattAttributes.TEMPERATURE_MEASUREMENT).equals(uuid)) {
+            return Integer.toString(Utility.byteToInteger(value[0]));
+        } else if (UUID.fromString(GattAttributes.TEMPERATURE_PERIOD).equals(uuid)) {
+            return String.format(Locale.UK, "%d ms", LegacyUtility.shortFromLittleEndianBytes(value));
+        } else if (UUID.fromString(GattAttributes.BUTTON_A_MEASUREMENT).equals(uuid)) {
+            return Integer.toString(Utility.byteToInteger(value[0]));
+        } else if (UUID.fromString(GattAttributes.BUTTON_B_MEASUREMENT).equals(uuid)) {
+            return Integer.toString(Utility.byteToInteger(value[0]));
+        } else if (UUID.fromString(GattAttributes.MAGNETOMETER_MEASUREMENT).equals(uuid)) {
+            float[] magn_out = LegacyUtility.byteInputToFloat(value);
+            return String.format(Locale.UK, "(%.3f,%.3f,%.3f)", magn_out[0], magn_out[1], magn_out[2]);
+        } else if (UUID.fromString(GattAttributes.MAGNETOMETER_PERIOD).equals(uuid)) {
+            return String.format(Locale.UK, "%d ms", LegacyUtility.shortFromLittleEndianBytes(value));
+        } else if (UUID.fromString(GattAttributes.MAGNETOMETER_BEARING).equals(uuid)) {
+            byte[] bearing_bytes = new byte[2];
+            System.arraycopy(value, 0, bearing_bytes, 0, 2);
+            short bearing = LegacyUtility.shortFromLittleEndianBytes(bearing_bytes);
+            return String.format(Locale.UK, "%s - %d", Utility.compassBearing(bearing), bearing);
+        }
+        return null;
+    }
+}
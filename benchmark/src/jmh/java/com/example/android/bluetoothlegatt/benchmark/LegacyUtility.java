@@ -0,0 +1,33 @@
+package com.example.android.bluetoothlegatt.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The ByteBuffer based decoding used by {@code Utility} before the allocation free rewrite, kept
+ * here as the baseline the benchmarks compare against.
+ */
+class LegacyUtility {
+
+    static short shortFromLittleEndianBytes(byte[] b) {
+        return ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getShort();
+    }
+
+    static byte[] leBytesFromShort(short s) {
+        return ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN).putShort(s).array();
+    }
+
+    static float[] byteInputToFloat(byte[] b) {
+        byte[] x_bytes = new byte[2];
+        byte[] y_bytes = new byte[2];
+        byte[] z_bytes = new byte[2];
+        System.arraycopy(b, 0, x_bytes, 0, 2);
+        System.arraycopy(b, 2, y_bytes, 0, 2);
+        System.arraycopy(b, 4, z_bytes, 0, 2);
+        float[] out = new float[3];
+        out[0] = shortFromLittleEndianBytes(x_bytes) / 1000f;
+        out[1] = shortFromLittleEndianBytes(y_bytes) / 1000f;
+        out[2] = shortFromLittleEndianBytes(z_bytes) / 1000f;
+        return out;
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.android.bluetoothlegatt.benchmark;
+
+import com.example.android.bluetoothlegatt.mqtt.Outbox;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Cost of spooling a message through the {@link Outbox}, using a binary accelerometer payload.
+ * Appending without acknowledging keeps the log at its disk budget, so this includes rolling and
+ * deleting segments.
+ */
+@State(Scope.Thread)
+public class OutboxBenchmark {
+
+    private static final String TOPIC = "ACCELEROMETER";
+
+    private final byte[] payload = new byte[26];
+    private final Outbox.Record record = new Outbox.Record();
+    private File directory;
+    private Outbox outbox;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        directory = File.createTempFile("outbox", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        outbox = new Outbox(directory, 1024 * 1024, 8 * 1024 * 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        outbox.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    @Benchmark
+    public long append() throws IOException {
+        return outbox.append(TOPIC, payload);
+    }
+
+    @Benchmark
+    public long appendReadAcknowledge() throws IOException {
+        outbox.append(TOPIC, payload);
+        outbox.next(record);
+        outbox.acknowledge(record.nextOffset);
+        return record.nextOffset;
+    }
+}
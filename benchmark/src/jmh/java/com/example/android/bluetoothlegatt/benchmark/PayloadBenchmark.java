@@ -0,0 +1,75 @@
+package com.example.android.bluetoothlegatt.benchmark;
+
+import com.example.android.bluetoothlegatt.ble.GattDispatchTable;
+import com.example.android.bluetoothlegatt.data.SensorSample;
+import com.example.android.bluetoothlegatt.mqtt.BinaryPayload;
+import com.example.android.bluetoothlegatt.mqtt.PayloadEncoder;
+import com.example.android.bluetoothlegatt.mqtt.TextPayload;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Locale;
+
+/**
+ * Cost of turning an accelerometer sample into an MQTT payload: the original text formatting done
+ * for {@code publishMqttMessage}, the {@link TextPayload} and {@link BinaryPayload} encodings, and
+ * the {@link PayloadEncoder} which picks between them as configured in {@code MqttConfig}.
+ */
+@State(Scope.Thread)
+public class PayloadBenchmark {
+
+    private static final String ADDRESS = "E4:1F:2B:3C:4D:5E";
+
+    // x = -120, y = 980, z = -1024 as sent by a micro:bit lying face up
+    private final byte[] triplet = {(byte) 0x88, (byte) 0xFF, (byte) 0xD4, 0x03, 0x00, (byte) 0xFC};
+    private final SensorSample accelerometer = new SensorSample();
+    private final SensorSample bearing = new SensorSample();
+    private final BinaryPayload binaryPayload = new BinaryPayload(ADDRESS);
+    private final PayloadEncoder encoder = new PayloadEncoder(GattDispatchTable.forMicroBit());
+    private final byte[] out = new byte[BinaryPayload.TRIPLET_LENGTH];
+    private final long timestampMillis = 1481385600000L;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        accelerometer.type = SensorSample.TYPE_ACCELEROMETER;
+        accelerometer.device = ADDRESS;
+        accelerometer.x = -120;
+        accelerometer.y = 980;
+        accelerometer.z = -1024;
+        accelerometer.timestampNanos = System.nanoTime();
+        bearing.type = SensorSample.TYPE_MAGNETOMETER_BEARING;
+        bearing.device = ADDRESS;
+        bearing.value = 237;
+    }
+
+    @Benchmark
+    public byte[] textLegacy() {
+        float[] accel = LegacyUtility.byteInputToFloat(triplet);
+        return String.format(Locale.UK, "(%.3f,%.3f,%.3f)", accel[0], accel[1], accel[2]).getBytes();
+    }
+
+    @Benchmark
+    public byte[] text() {
+        return TextPayload.format(accelerometer).getBytes();
+    }
+
+    @Benchmark
+    public byte[] bearingText() {
+        return TextPayload.format(bearing).getBytes();
+    }
+
+    @Benchmark
+    public byte[] binary() {
+        return binaryPayload.encode(accelerometer, timestampMillis);
+    }
+
+    @Benchmark
+    public byte[] binaryReused() {
+        binaryPayload.encode(accelerometer, timestampMillis, out, 0);
+        return out;
+    }
+
+    @Benchmark
+    public byte[] configured() {
+        return encoder.encode(accelerometer, accelerometer.timestampNanos);
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.android.bluetoothlegatt.benchmark;
+
+import com.example.android.bluetoothlegatt.ble.GattDispatchTable;
+import com.example.android.bluetoothlegatt.ble.SampleDecoder;
+import com.example.android.bluetoothlegatt.ble.SensorSource;
+import com.example.android.bluetoothlegatt.ble.SimulatedMicroBit;
+import com.example.android.bluetoothlegatt.data.PipelineLatency;
+import com.example.android.bluetoothlegatt.data.SampleRingBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+
+/**
+ * Ingest cost per characteristic value, from a {@link SimulatedMicroBit} stepped as fast as it will
+ * go through the {@link SampleDecoder} into the ring buffer. {@code generate} is the simulator alone,
+ * so the difference is the cost of decoding and publishing a sample. The ring buffer has no
+ * consumers, so nothing is dropped.
+ */
+@State(Scope.Thread)
+public class SimulatedIngestBenchmark {
+
+    private static final String ADDRESS = "00:00:00:00:00:00";
+
+    private SimulatedMicroBit simulator;
+    private SampleDecoder decoder;
+    private long values;
+    private final SensorSource.Listener counter = new SensorSource.Listener() {
+        @Override
+        public void onCharacteristicValue(String address, UUID characteristic, byte[] value) {
+            values += value.length;
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        decoder = new SampleDecoder(GattDispatchTable.forMicroBit(), new SampleRingBuffer(1024), new PipelineLatency());
+        simulator = new SimulatedMicroBit(ADDRESS, 1);
+        simulator.setJitter(0.1);
+        simulator.setBurst(1000, 4);
+        simulator.reset(0);
+    }
+
+    @Benchmark
+    public void generate() {
+        simulator.step(counter);
+    }
+
+    @Benchmark
+    public void generateAndDecode() {
+        simulator.step(decoder);
+    }
+
+    @TearDown(Level.Trial)
+    public void report() {
+        System.out.println("\nDecoded " + simulator.getEmittedCount() + " values, "
+                + decoder.getUnroutedCount() + " unrouted");
+    }
+}
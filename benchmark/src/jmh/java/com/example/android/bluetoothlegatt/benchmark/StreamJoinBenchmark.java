@@ -0,0 +1,80 @@
+package com.example.android.bluetoothlegatt.benchmark;
+
+import com.example.android.bluetoothlegatt.ble.GattDispatchTable;
+import com.example.android.bluetoothlegatt.ble.SensorSource;
+import com.example.android.bluetoothlegatt.ble.SimulatedMicroBit;
+import com.example.android.bluetoothlegatt.data.SensorSample;
+import com.example.android.bluetoothlegatt.data.StreamJoin;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Cost per accelerometer or magnetometer sample of aligning the two streams with a
+ * {@link StreamJoin}, over a trace of a {@link SimulatedMicroBit} with jittered periods. The trace is
+ * replayed with its timestamps shifted on each pass, so it looks like one continuous stream.
+ */
+@State(Scope.Thread)
+public class StreamJoinBenchmark {
+
+    private static final int TRACE_LENGTH = 1024;
+
+    @Param({"false", "true"})
+    public boolean interpolate;
+
+    private SensorSample[] trace;
+    private long traceNanos;
+    private final SensorSample sample = new SensorSample();
+    private StreamJoin join;
+    private double sum;
+    private long pass = 0;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void record() {
+        final GattDispatchTable table = GattDispatchTable.forMicroBit();
+        final ArrayList<SensorSample> samples = new ArrayList<>();
+        final SimulatedMicroBit simulator = new SimulatedMicroBit("00:00:00:00:00:00", 1);
+        simulator.setJitter(0.3);
+        simulator.reset(0);
+        final long[] now = new long[1];
+        SensorSource.Listener recorder = new SensorSource.Listener() {
+            @Override
+            public void onCharacteristicValue(String address, UUID characteristic, byte[] value) {
+                SensorSample sample = new SensorSample();
+                GattDispatchTable.decode(table.lookup(characteristic), value, sample);
+                if (sample.type == SensorSample.TYPE_ACCELEROMETER || sample.type == SensorSample.TYPE_MAGNETOMETER) {
+                    sample.device = address;
+                    sample.timestampNanos = now[0];
+                    samples.add(sample);
+                }
+            }
+        };
+        while (samples.size() < TRACE_LENGTH) {
+            now[0] = simulator.nextDueNanos();
+            simulator.step(recorder);
+        }
+        trace = samples.toArray(new SensorSample[TRACE_LENGTH]);
+        traceNanos = simulator.nextDueNanos();
+        join = new StreamJoin(SensorSample.TYPE_ACCELEROMETER, SensorSample.TYPE_MAGNETOMETER, 50, 100,
+                interpolate, 16, new StreamJoin.Listener() {
+                    @Override
+                    public void onFrame(StreamJoin.AlignedFrame frame) {
+                        sum += frame.secondary[0];
+                    }
+                });
+    }
+
+    @Benchmark
+    public double join() {
+        int i = next++ & (TRACE_LENGTH - 1);
+        if (i == 0) {
+            pass++;
+        }
+        sample.copyFrom(trace[i]);
+        sample.timestampNanos += pass * traceNanos;
+        join.onSample(sample);
+        return sum;
+    }
+}
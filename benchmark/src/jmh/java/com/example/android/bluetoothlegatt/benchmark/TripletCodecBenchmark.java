@@ -0,0 +1,98 @@
+package com.example.android.bluetoothlegatt.benchmark;
+
+import com.example.android.bluetoothlegatt.mqtt.BinaryPayload;
+import com.example.android.bluetoothlegatt.mqtt.TripletCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Encode and decode cost per sample of the {@link TripletCodec}, reported per sample through
+ * {@link OperationsPerInvocation}. The compression achieved against the text and binary payloads is
+ * printed when the benchmark starts.
+ *
+ * The input is a synthetic accelerometer trace rather than a recording: a micro:bit mostly lying
+ * still and slowly tilting, with sensor noise, readings quantised to the accelerometer's 4 milli-g
+ * resolution, occasional bursts of handling, and an 80 ms period with a few ms of jitter.
+ */
+@State(Scope.Thread)
+public class TripletCodecBenchmark {
+
+    private static final int TRACE_LENGTH = 4096;
+    private static final int BATCH = 64;
+
+    private final long[] timestamps = new long[TRACE_LENGTH];
+    private final short[] xs = new short[TRACE_LENGTH];
+    private final short[] ys = new short[TRACE_LENGTH];
+    private final short[] zs = new short[TRACE_LENGTH];
+    private final TripletCodec.Encoder encoder =
+            new TripletCodec.Encoder(BinaryPayload.SCHEMA_ACCELEROMETER, BATCH);
+    private final TripletCodec.Decoder decoder = new TripletCodec.Decoder();
+    private byte[][] batches;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        Random random = new Random(1);
+        long timestamp = 1481385600000L;
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            timestamp += 80 + Math.round(random.nextGaussian() * 2);
+            double seconds = i * 0.08;
+            // handled for about a second every ten
+            double handling = seconds % 10 < 1 ? 600 : 0;
+            timestamps[i] = timestamp;
+            xs[i] = quantise(200 * Math.sin(seconds / 3) + handling * Math.sin(seconds * 7) + random.nextGaussian() * 8);
+            ys[i] = quantise(150 * Math.cos(seconds / 4) + handling * Math.cos(seconds * 5) + random.nextGaussian() * 8);
+            zs[i] = quantise(-1000 + handling * Math.sin(seconds * 3) / 2 + random.nextGaussian() * 8);
+        }
+
+        batches = new byte[TRACE_LENGTH / BATCH][];
+        long codecBytes = 0;
+        long textBytes = 0;
+        for (int b = 0; b < batches.length; b++) {
+            encodeBatch(b * BATCH);
+            batches[b] = encoder.toByteArray();
+            codecBytes += batches[b].length;
+        }
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            textBytes += String.format(Locale.UK, "(%.3f,%.3f,%.3f)", xs[i] / 1000f, ys[i] / 1000f, zs[i] / 1000f).length();
+        }
+        long binaryBytes = (long) TRACE_LENGTH * BinaryPayload.TRIPLET_LENGTH;
+        System.out.println(String.format(Locale.UK,
+                "%nBytes per sample: text %.1f, binary %d, codec %.2f (batches of %d), %.1fx smaller than text, %.1fx than binary",
+                (double) textBytes / TRACE_LENGTH, BinaryPayload.TRIPLET_LENGTH, (double) codecBytes / TRACE_LENGTH,
+                BATCH, (double) textBytes / codecBytes, (double) binaryBytes / codecBytes));
+    }
+
+    private static short quantise(double milliG) {
+        return (short) (Math.round(Math.max(-2048, Math.min(2044, milliG)) / 4) * 4);
+    }
+
+    private void encodeBatch(int start) {
+        encoder.reset();
+        for (int i = start; i < start + BATCH; i++) {
+            encoder.append(timestamps[i], xs[i], ys[i], zs[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int encode() {
+        encodeBatch(next);
+        next = (next + BATCH) % TRACE_LENGTH;
+        return encoder.getLength();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long decode() {
+        decoder.reset(batches[next / BATCH]);
+        next = (next + BATCH) % TRACE_LENGTH;
+        long sum = 0;
+        while (decoder.next()) {
+            sum += decoder.getTimestampMillis() + decoder.getX() + decoder.getY() + decoder.getZ();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.android.bluetoothlegatt.benchmark;
+
+import com.example.android.bluetoothlegatt.Utility;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decoding of the accelerometer/magnetometer characteristic values, comparing the allocation free
+ * {@link Utility} methods against the previous {@link LegacyUtility} implementation, and the
+ * formatting helpers used for the bearing and for unrecognised values.
+ */
+@State(Scope.Thread)
+public class UtilityBenchmark {
+
+    // x = -120, y = 980, z = -1024 as sent by a micro:bit lying face up
+    private final byte[] triplet = {(byte) 0x88, (byte) 0xFF, (byte) 0xD4, 0x03, 0x00, (byte) 0xFC};
+    private final byte[] period = {0x50, 0x00};
+    private final float[] floatOut = new float[3];
+    private final short[] shortOut = new short[3];
+    private final byte[] shortBytesOut = new byte[2];
+    private short value = 80;
+    private short bearing = 237;
+
+    @Benchmark
+    public float[] byteInputToFloatLegacy() {
+        return LegacyUtility.byteInputToFloat(triplet);
+    }
+
+    @Benchmark
+    public float[] byteInputToFloat() {
+        return Utility.byteInputToFloat(triplet);
+    }
+
+    @Benchmark
+    public float[] byteInputToFloatReused() {
+        return Utility.byteInputToFloat(triplet, floatOut);
+    }
+
+    @Benchmark
+    public short[] shortTriplet() {
+        Utility.shortTripletFromLittleEndianBytes(triplet, shortOut, 0);
+        return shortOut;
+    }
+
+    @Benchmark
+    public short shortFromLittleEndianBytesLegacy() {
+        return LegacyUtility.shortFromLittleEndianBytes(period);
+    }
+
+    @Benchmark
+    public short shortFromLittleEndianBytes() {
+        return Utility.shortFromLittleEndianBytes(period, 0);
+    }
+
+    @Benchmark
+    public byte[] leBytesFromShortLegacy() {
+        return LegacyUtility.leBytesFromShort(value);
+    }
+
+    @Benchmark
+    public void leBytesFromShort(Blackhole bh) {
+        Utility.leBytesFromShort(value, shortBytesOut, 0);
+        bh.consume(shortBytesOut);
+    }
+
+    @Benchmark
+    public String compassBearing() {
+        return Utility.compassBearing(bearing);
+    }
+
+    @Benchmark
+    public String bytesToHexString() {
+        return Utility.bytesToHexString(triplet);
+    }
+}
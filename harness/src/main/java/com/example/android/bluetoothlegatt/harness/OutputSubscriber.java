@@ -0,0 +1,141 @@
+package com.example.android.bluetoothlegatt.harness;
+
+import com.example.android.bluetoothlegatt.Utility;
+import com.example.android.bluetoothlegatt.data.LatencyHistogram;
+import com.example.android.bluetoothlegatt.mqtt.BatchingPublisher;
+import com.example.android.bluetoothlegatt.mqtt.BinaryPayload;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Checks what arrives on the output topics. Each message is unpacked from its batch frame, if
+ * batching is on, and every binary payload in it is counted once per device, schema and sequence
+ * number. Latency is taken from the payload's wall clock timestamp, so has millisecond resolution.
+ */
+class OutputSubscriber implements MqttCallback {
+
+    private static final long HIGHEST_TRACKABLE_NANOS = 60L * 1000 * 1000 * 1000;
+    private static final int PRECISION_BITS = 7;
+
+    private final boolean mBatched;
+    private final BinaryPayload.Frame mFrame = new BinaryPayload.Frame();
+    // Sequence numbers seen for each device and schema, which start from 0 and are dense
+    private final HashMap<Long, BitSet> mSequences = new HashMap<>();
+    private final LatencyHistogram mLatency = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS, PRECISION_BITS);
+    private long mMessages;
+    private long mBytes;
+    private long mSamples;
+    private long mDuplicates;
+    private long mMalformed;
+    private long mLastArrivalNanos;
+
+    /**
+     * Counts received since a point in time, see {@link #snapshot}.
+     */
+    static class Counts {
+        long messages;
+        long bytes;
+        long samples;
+        long duplicates;
+        long malformed;
+        long lastArrivalNanos;
+    }
+
+    /**
+     * @param batched True if payloads arrive in {@link BatchingPublisher} frames.
+     */
+    OutputSubscriber(boolean batched) {
+        mBatched = batched;
+    }
+
+    @Override
+    public synchronized void messageArrived(String topic, MqttMessage message) {
+        long nowMillis = System.currentTimeMillis();
+        byte[] payload = message.getPayload();
+        mMessages++;
+        mBytes += payload.length;
+        mLastArrivalNanos = System.nanoTime();
+        if (!mBatched) {
+            onPayload(payload, 0, payload.length, nowMillis);
+            return;
+        }
+        if (payload.length < BatchingPublisher.BATCH_HEADER_LENGTH
+                || (payload[0] & 0xFF) != BatchingPublisher.BATCH_VERSION) {
+            mMalformed++;
+            return;
+        }
+        int count = Utility.shortFromLittleEndianBytes(payload, 1) & 0xFFFF;
+        int offset = BatchingPublisher.BATCH_HEADER_LENGTH;
+        for (int i = 0; i < count; i++) {
+            if (offset + 2 > payload.length) {
+                mMalformed++;
+                return;
+            }
+            int length = Utility.shortFromLittleEndianBytes(payload, offset) & 0xFFFF;
+            offset += 2;
+            if (offset + length > payload.length) {
+                mMalformed++;
+                return;
+            }
+            onPayload(payload, offset, length, nowMillis);
+            offset += length;
+        }
+    }
+
+    private void onPayload(byte[] payload, int offset, int length, long nowMillis) {
+        try {
+            BinaryPayload.decode(payload, offset, length, mFrame);
+        } catch (IllegalArgumentException e) {
+            mMalformed++;
+            return;
+        }
+        long key = mFrame.schema;
+        for (int i = 0; i < BinaryPayload.DEVICE_ID_LENGTH; i++) {
+            key = (key << 8) | (mFrame.deviceId[i] & 0xFF);
+        }
+        BitSet seen = mSequences.get(key);
+        if (seen == null) {
+            seen = new BitSet();
+            mSequences.put(key, seen);
+        }
+        // The broker may reorder messages, so each is looked up rather than compared with the last
+        if (seen.get((int) mFrame.sequence)) {
+            mDuplicates++;
+            return;
+        }
+        seen.set((int) mFrame.sequence);
+        mSamples++;
+        mLatency.record(Math.max(0, nowMillis - mFrame.timestampMillis) * 1000000L);
+    }
+
+    @Override
+    public void connectionLost(Throwable cause) {
+        System.err.println("Subscriber connection lost: " + cause);
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+
+    synchronized Counts snapshot() {
+        Counts counts = new Counts();
+        counts.messages = mMessages;
+        counts.bytes = mBytes;
+        counts.samples = mSamples;
+        counts.duplicates = mDuplicates;
+        counts.malformed = mMalformed;
+        counts.lastArrivalNanos = mLastArrivalNanos;
+        return counts;
+    }
+
+    /**
+     * @return Latency from ingress to arrival of each distinct sample since the last reset.
+     */
+    LatencyHistogram getLatency() {
+        return mLatency;
+    }
+}
@@ -0,0 +1,388 @@
+package com.example.android.bluetoothlegatt.harness;
+
+import com.example.android.bluetoothlegatt.ble.GattDispatchTable;
+import com.example.android.bluetoothlegatt.ble.SampleDecoder;
+import com.example.android.bluetoothlegatt.ble.SimulatedMicroBit;
+import com.example.android.bluetoothlegatt.data.LatencyHistogram;
+import com.example.android.bluetoothlegatt.data.PipelineLatency;
+import com.example.android.bluetoothlegatt.data.SampleHandler;
+import com.example.android.bluetoothlegatt.data.SampleRingBuffer;
+import com.example.android.bluetoothlegatt.data.SensorSample;
+import com.example.android.bluetoothlegatt.mqtt.BatchingPublisher;
+import com.example.android.bluetoothlegatt.mqtt.BinaryPayload;
+import com.example.android.bluetoothlegatt.mqtt.DeviceTopics;
+import com.example.android.bluetoothlegatt.mqtt.InflightWindow;
+import com.example.android.bluetoothlegatt.mqtt.MqttConfig;
+import com.example.android.bluetoothlegatt.mqtt.Outbox;
+import com.example.android.bluetoothlegatt.mqtt.OutboxPublisher;
+import io.moquette.broker.Server;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many samples per second the publishing path can forward to a broker, and how many
+ * are lost, without a phone or a lab broker.
+ *
+ * A Moquette broker is started in process on localhost. Simulated micro:bits feed the same decoder,
+ * ring buffer, batching publisher and outbox as {@code BluetoothLeService}, stepping through a
+ * series of sample rates, while a second client subscribed to every topic counts what arrives.
+ * Every sample is sent as a binary payload so the subscriber can spot losses and duplicates by
+ * sequence number and measure latency from its timestamp; the change filter and window summaries
+ * are left out, as they would hide losses.
+ *
+ * Run with: ./gradlew :harness:throughput -PharnessArgs="--rates 1000,5000 --duration 10"
+ */
+public class ThroughputHarness {
+
+    private static final String USAGE = "Options: --rates r1,r2,... (samples/s) --duration seconds"
+            + " --devices n --batch samples --window n --max-inflight n --jitter fraction";
+
+    // As in BluetoothLeService
+    private static final int SAMPLE_BUFFER_CAPACITY = 256;
+    private static final int MAX_MESSAGE_BYTES = 1024 * 1024;
+    private static final long POLL_MS = 100;
+    // A step is over once nothing more has arrived for this long after the sources stop
+    private static final long DRAIN_IDLE_MS = 2000;
+    private static final long DRAIN_MAX_MS = 60000;
+
+    private int[] mRates = {100, 500, 1000, 2000, 5000, 10000};
+    private int mDurationSeconds = 10;
+    private int mDevices = 1;
+    private int mBatchSize = MqttConfig.BATCH_MAX_SAMPLES;
+    // In-flight window for every QoS level, or 0 for those in MqttConfig
+    private int mWindow = 0;
+    private int mMaxInflight = MqttConfig.MAX_INFLIGHT;
+    private double mJitter = 0.1;
+
+    private final GattDispatchTable mDispatchTable = GattDispatchTable.forMicroBit();
+    private final PipelineLatency mLatency = new PipelineLatency();
+    private final SampleRingBuffer mSamples = new SampleRingBuffer(SAMPLE_BUFFER_CAPACITY);
+    private final SampleDecoder mSampleDecoder = new SampleDecoder(mDispatchTable, mSamples, mLatency);
+    private final AtomicLong mForwarded = new AtomicLong();
+    private SimulatedMicroBit[] mSimulators;
+    private double mNominalRate;
+    private Server mBroker;
+    private File mOutboxDir;
+    private MqttAsyncClient mPublisherClient;
+    private MqttAsyncClient mSubscriberClient;
+    private OutboxPublisher mOutboxPublisher;
+    private BatchingPublisher mBatchingPublisher;
+    private SampleRingBuffer.Consumer mConsumer;
+    private OutputSubscriber mSubscriber;
+
+    public static void main(String[] args) throws Exception {
+        ThroughputHarness harness = new ThroughputHarness();
+        try {
+            harness.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try {
+            harness.start();
+            harness.run();
+        } finally {
+            harness.stop();
+        }
+        // Client and broker threads are not all daemons
+        System.exit(0);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.isEmpty()) {
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--rates":
+                        String[] rates = value.split(",");
+                        mRates = new int[rates.length];
+                        for (int r = 0; r < rates.length; r++) {
+                            mRates[r] = Integer.parseInt(rates[r].trim());
+                        }
+                        break;
+                    case "--duration":
+                        mDurationSeconds = Integer.parseInt(value);
+                        break;
+                    case "--devices":
+                        mDevices = Integer.parseInt(value);
+                        break;
+                    case "--batch":
+                        mBatchSize = Integer.parseInt(value);
+                        break;
+                    case "--window":
+                        mWindow = Integer.parseInt(value);
+                        break;
+                    case "--max-inflight":
+                        mMaxInflight = Integer.parseInt(value);
+                        break;
+                    case "--jitter":
+                        mJitter = Double.parseDouble(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+            }
+        }
+        for (int rate : mRates) {
+            if (rate <= 0) {
+                throw new IllegalArgumentException("Rates must be positive: " + rate);
+            }
+        }
+        if (mDurationSeconds <= 0 || mDevices <= 0 || mBatchSize <= 0 || mWindow < 0 || mMaxInflight <= 0) {
+            throw new IllegalArgumentException("Duration, devices, batch, window and max in flight must be positive");
+        }
+    }
+
+    private void start() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Properties config = new Properties();
+        config.setProperty("host", "127.0.0.1");
+        config.setProperty("port", Integer.toString(port));
+        config.setProperty("allow_anonymous", "true");
+        // An empty store path keeps sessions and messages in memory
+        config.setProperty("persistent_store", "");
+        config.setProperty("immediate_buffer_flush", "true");
+        config.setProperty("netty.mqtt.message_size", Integer.toString(MAX_MESSAGE_BYTES));
+        mBroker = new Server();
+        mBroker.startServer(config);
+        String serverUri = "tcp://127.0.0.1:" + port;
+
+        mSubscriber = new OutputSubscriber(mBatchSize > 1);
+        mSubscriberClient = new MqttAsyncClient(serverUri, "harness-subscriber", new MemoryPersistence());
+        mSubscriberClient.setCallback(mSubscriber);
+        MqttConnectOptions subscriberOptions = new MqttConnectOptions();
+        subscriberOptions.setCleanSession(true);
+        mSubscriberClient.connect(subscriberOptions).waitForCompletion();
+        // Subscribed at QoS 0, as the broker's in-flight window towards a QoS 1 subscriber would
+        // otherwise cap the rate measured. Nothing is lost over loopback, and losses upstream of
+        // the broker still show up as gaps.
+        mSubscriberClient.subscribe("#", 0).waitForCompletion();
+
+        // The same chain as MqttPipeline, from the consumer of the ring buffer to the client
+        mOutboxDir = Files.createTempDirectory("harness-outbox").toFile();
+        Outbox outbox = new Outbox(mOutboxDir, MqttConfig.OUTBOX_SEGMENT_BYTES, MqttConfig.OUTBOX_MAX_BYTES);
+        mPublisherClient = new MqttAsyncClient(serverUri, MqttConfig.CLIENT_ID, new MemoryPersistence());
+        InflightWindow window = mWindow > 0
+                ? new InflightWindow(mWindow, mWindow, mWindow) : InflightWindow.fromConfig();
+        mOutboxPublisher = new OutboxPublisher(outbox, mPublisherClient, window);
+        mOutboxPublisher.setLatency(mLatency);
+        mBatchingPublisher = new BatchingPublisher(mOutboxPublisher, mBatchSize, MqttConfig.BATCH_MAX_DELAY_MS);
+        mPublisherClient.setCallback(mPublisherCallback);
+        MqttConnectOptions publisherOptions = new MqttConnectOptions();
+        publisherOptions.setAutomaticReconnect(true);
+        publisherOptions.setCleanSession(false);
+        publisherOptions.setMaxInflight(mMaxInflight);
+        mPublisherClient.connect(publisherOptions).waitForCompletion();
+        mConsumer = mSamples.addConsumer("HarnessConsumer", new Forwarder());
+
+        mSimulators = new SimulatedMicroBit[mDevices];
+        for (int i = 0; i < mDevices; i++) {
+            String address = String.format(Locale.UK, "F0:0D:00:00:%02X:%02X", (i >> 8) & 0xFF, i & 0xFF);
+            mSimulators[i] = new SimulatedMicroBit(address, i);
+            mSimulators[i].setJitter(mJitter);
+        }
+        mNominalRate = mSimulators[0].getNominalRate();
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println(String.format(Locale.UK,
+                "%d device(s), %d s per step, batch %d, window %s, max in flight %d, %.0f samples/s per device at real time",
+                mDevices, mDurationSeconds, mBatchSize, mWindow > 0 ? Integer.toString(mWindow) : "from MqttConfig",
+                mMaxInflight, mNominalRate));
+        System.out.println(String.format(Locale.UK, "%8s %9s %9s %9s %9s %9s %8s %8s %7s %8s %8s %8s %8s %8s",
+                "target/s", "offered/s", "sent/s", "recv/s", "msgs/s", "kB/s", "dropped", "lost",
+                "loss%", "p50ms", "p99ms", "p999ms", "maxms", "ack99ms"));
+        for (int rate : mRates) {
+            runStep(rate);
+        }
+        if (mBatchSize > 1) {
+            System.out.println("Batching: " + mBatchingPublisher.getStats());
+        }
+        System.out.println("In flight: " + mOutboxPublisher.getWindow());
+    }
+
+    private void runStep(int rate) throws InterruptedException {
+        for (SimulatedMicroBit simulator : mSimulators) {
+            simulator.setSpeedup((double) rate / mDevices / mNominalRate);
+        }
+        long emittedBefore = getEmittedCount();
+        long droppedBefore = mSamples.getDroppedCount();
+        long forwardedBefore = mForwarded.get();
+        OutputSubscriber.Counts before = mSubscriber.snapshot();
+        mSubscriber.getLatency().reset();
+        mLatency.reset();
+
+        long startNanos = System.nanoTime();
+        for (SimulatedMicroBit simulator : mSimulators) {
+            simulator.start(mSampleDecoder);
+        }
+        Thread.sleep(mDurationSeconds * 1000L);
+        for (SimulatedMicroBit simulator : mSimulators) {
+            simulator.stop();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        while (mConsumer.getBacklog() > 0) {
+            Thread.sleep(1);
+        }
+        mBatchingPublisher.flushAll();
+        long forwarded = mForwarded.get() - forwardedBefore;
+        OutputSubscriber.Counts after = waitForDrain(before.samples + forwarded);
+
+        long emitted = getEmittedCount() - emittedBefore;
+        long dropped = mSamples.getDroppedCount() - droppedBefore;
+        long received = after.samples - before.samples;
+        long lost = forwarded - received;
+        // Rates at the subscriber run until the last arrival, so include any backlog cleared after
+        // the sources stopped
+        double receiveSeconds = Math.max(seconds, (after.lastArrivalNanos - startNanos) / 1e9);
+        LatencyHistogram latency = mSubscriber.getLatency();
+        System.out.println(String.format(Locale.UK,
+                "%8d %9.0f %9.0f %9.0f %9.0f %9.1f %8d %8d %7.2f %8.1f %8.1f %8.1f %8.1f %8.1f",
+                rate, emitted / seconds, forwarded / seconds, received / receiveSeconds,
+                (after.messages - before.messages) / receiveSeconds,
+                (after.bytes - before.bytes) / receiveSeconds / 1024, dropped, lost,
+                forwarded > 0 ? 100.0 * lost / forwarded : 0.0,
+                latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(99) / 1e6,
+                latency.getValueAtPercentile(99.9) / 1e6, latency.getMaxNanos() / 1e6,
+                mLatency.getStage(PipelineLatency.STAGE_TOTAL).getValueAtPercentile(99) / 1e6));
+        long duplicates = after.duplicates - before.duplicates;
+        long malformed = after.malformed - before.malformed;
+        if (duplicates > 0 || malformed > 0) {
+            System.out.println("  " + duplicates + " duplicate and " + malformed + " malformed samples");
+        }
+    }
+
+    // Waits until the subscriber has seen every sample forwarded, or arrivals have stopped
+    private OutputSubscriber.Counts waitForDrain(long expectedSamples) throws InterruptedException {
+        long startMillis = System.currentTimeMillis();
+        long idleSinceMillis = startMillis;
+        OutputSubscriber.Counts counts = mSubscriber.snapshot();
+        while (counts.samples < expectedSamples) {
+            Thread.sleep(POLL_MS);
+            long nowMillis = System.currentTimeMillis();
+            OutputSubscriber.Counts latest = mSubscriber.snapshot();
+            if (latest.messages != counts.messages) {
+                idleSinceMillis = nowMillis;
+            } else if (nowMillis - idleSinceMillis > DRAIN_IDLE_MS || nowMillis - startMillis > DRAIN_MAX_MS) {
+                return latest;
+            }
+            counts = latest;
+        }
+        return counts;
+    }
+
+    private long getEmittedCount() {
+        long emitted = 0;
+        for (SimulatedMicroBit simulator : mSimulators) {
+            emitted += simulator.getEmittedCount();
+        }
+        return emitted;
+    }
+
+    private void stop() throws Exception {
+        if (mSimulators != null) {
+            for (SimulatedMicroBit simulator : mSimulators) {
+                simulator.stop();
+            }
+        }
+        mSamples.close();
+        if (mBatchingPublisher != null) {
+            mBatchingPublisher.close();
+        }
+        if (mOutboxPublisher != null) {
+            mOutboxPublisher.close();
+        }
+        if (mPublisherClient != null && mPublisherClient.isConnected()) {
+            mPublisherClient.disconnect().waitForCompletion();
+        }
+        if (mSubscriberClient != null && mSubscriberClient.isConnected()) {
+            mSubscriberClient.disconnect().waitForCompletion();
+        }
+        if (mBroker != null) {
+            mBroker.stopServer();
+        }
+        if (mOutboxDir != null) {
+            File[] files = mOutboxDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            mOutboxDir.delete();
+        }
+    }
+
+    /**
+     * Mirrors {@code MqttPipeline.onSample}, but always encodes binary payloads.
+     */
+    private class Forwarder implements SampleHandler {
+        private final DeviceTopics mDeviceTopics = new DeviceTopics(mDispatchTable);
+        private final HashMap<String, BinaryPayload> mBinaryPayloads = new HashMap<>();
+
+        @Override
+        public void onSample(SensorSample sample) {
+            long receivedNanos = System.nanoTime();
+            mLatency.record(PipelineLatency.STAGE_RECEIVE, receivedNanos - sample.timestampNanos);
+            String topic = mDeviceTopics.topicFor(sample);
+            if (topic == null) {
+                return;
+            }
+            BinaryPayload binaryPayload = mBinaryPayloads.get(sample.device);
+            if (binaryPayload == null) {
+                binaryPayload = new BinaryPayload(sample.device);
+                mBinaryPayloads.put(sample.device, binaryPayload);
+            }
+            long timestampMillis = System.currentTimeMillis() - (receivedNanos - sample.timestampNanos) / 1000000L;
+            mBatchingPublisher.publish(topic, binaryPayload.encode(sample, timestampMillis), sample.timestampNanos);
+            mForwarded.incrementAndGet();
+            mLatency.record(PipelineLatency.STAGE_CONSUMER, System.nanoTime() - receivedNanos);
+        }
+    }
+
+    private final MqttCallbackExtended mPublisherCallback = new MqttCallbackExtended() {
+        @Override
+        public void connectComplete(boolean reconnect, String serverURI) {
+            mOutboxPublisher.onConnected();
+        }
+
+        @Override
+        public void connectionLost(Throwable cause) {
+            mOutboxPublisher.onDisconnected();
+            System.err.println("Publisher connection lost: " + cause);
+        }
+
+        @Override
+        public void messageArrived(String topic, MqttMessage message) {
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken token) {
+            mOutboxPublisher.deliveryComplete(token);
+        }
+    };
+}